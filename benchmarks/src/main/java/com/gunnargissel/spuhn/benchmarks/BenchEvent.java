@@ -0,0 +1,5 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+public enum BenchEvent {
+    NEXT, TOGGLE
+}
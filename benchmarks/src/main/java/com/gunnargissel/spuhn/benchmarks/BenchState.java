@@ -0,0 +1,15 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.State;
+
+/**
+ * A small enum of states, arranged by Machines into a ring, used to measure the compiled
+ * enum-indexed dispatch path
+ */
+public enum BenchState implements State<Object> {
+    S0, S1, S2, S3, S4, S5, S6, S7, S8, S9;
+
+    @Override
+    public void enter(Object ctx) {
+    }
+}
@@ -0,0 +1,48 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FiniteStateMachineBuilder;
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FiniteStateMachineBuilder.buildDefinition(), which compiles the transition table and
+ * runs the reachability validation, on large transition lists, and the cost of resetting an
+ * instance with initialize(). A HUB is shallow and wide, a CHAIN is as deep as it has transitions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BuildBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int transitions;
+
+    @Param({ "HUB", "CHAIN" })
+    public String shape;
+
+    private FiniteStateMachineBuilder<IndexedState, String, Object> builder;
+    private FsmInstance<IndexedState, String, Object> fsm;
+
+    @Setup
+    public void setUp() {
+        builder = "HUB".equals(shape) ? Machines.hub(transitions / 2 + 1) : Machines.chain(transitions);
+        fsm = builder.buildDefinition().newInstance(null);
+    }
+
+    @Benchmark
+    public FsmDefinition<IndexedState, String, Object> buildDefinition() {
+        return builder.buildDefinition();
+    }
+
+    @Benchmark
+    public FsmInstance<IndexedState, String, Object> initialize() {
+        fsm.initialize();
+        return fsm;
+    }
+}
@@ -0,0 +1,70 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.BulkResult;
+import com.gunnargissel.spuhn.FsmBulkStore;
+import com.gunnargissel.spuhn.FsmInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FsmBulkStore.fireBatch on a million instances of the enum ring, each event fired at a
+ * random instance, the same batch split over the common ForkJoinPool with fireParallel, and the same
+ * events fired at one FsmInstance object per instance for comparison. Scores are the time per event
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkStoreBenchmark {
+    private static final int INSTANCES = 1 << 20;
+    private static final int EVENTS = 1 << 20;
+
+    private FsmBulkStore<BenchState, BenchEvent, Object> store;
+    private List<FsmInstance<BenchState, BenchEvent, Object>> objects;
+    private int[] instances;
+    private BenchEvent[] events;
+
+    @Setup
+    public void setUp() {
+        store = Machines.enumRing(BenchEvent.NEXT).buildDefinition().newBulkStore(INSTANCES, null, FsmBulkStore.HookPolicy.SKIP);
+        objects = new ArrayList<>(INSTANCES);
+        for (int i = 0; i < INSTANCES; i++) {
+            objects.add(store.getDefinition().newInstance(null));
+        }
+        Random random = new Random(42);
+        instances = new int[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            instances[i] = random.nextInt(INSTANCES);
+        }
+        events = new BenchEvent[EVENTS];
+        Arrays.fill(events, BenchEvent.NEXT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int bulkStore() {
+        return store.fireBatch(instances, events);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public BulkResult<BenchState> bulkStoreParallel() {
+        return store.fireParallel(instances, events);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int instanceObjects() {
+        for (int i = 0; i < EVENTS; i++) {
+            objects.get(instances[i]).fire(events[i]);
+        }
+        return EVENTS;
+    }
+}
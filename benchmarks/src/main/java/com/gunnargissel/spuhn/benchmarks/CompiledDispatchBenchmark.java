@@ -0,0 +1,81 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FiniteStateMachineBuilder;
+import com.gunnargissel.spuhn.FsmCompiler;
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Compares FsmInstance.fire with dispatchers from FsmCompiler held in static final fields. Four
+ * rings like enumRing, each with an action of its own class, are fired in turn, so the action call
+ * site fire shares between them sees four receivers, as it would in an application running several
+ * kinds of machine. Each benchmark fires one event at each of the four instances
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompiledDispatchBenchmark {
+
+    private static final FsmDefinition<BenchState, BenchEvent, Object> A = ring(ctx -> ((long[]) ctx)[0]++);
+    private static final FsmDefinition<BenchState, BenchEvent, Object> B = ring(ctx -> ((long[]) ctx)[1] += 2);
+    private static final FsmDefinition<BenchState, BenchEvent, Object> C = ring(ctx -> ((long[]) ctx)[2] ^= 3);
+    private static final FsmDefinition<BenchState, BenchEvent, Object> D = ring(ctx -> ((long[]) ctx)[3]--);
+    private static final MethodHandle FIRE_A = FsmCompiler.compile(A);
+    private static final MethodHandle FIRE_B = FsmCompiler.compile(B);
+    private static final MethodHandle FIRE_C = FsmCompiler.compile(C);
+    private static final MethodHandle FIRE_D = FsmCompiler.compile(D);
+
+    private long[] counters;
+    private FsmInstance<BenchState, BenchEvent, Object> a;
+    private FsmInstance<BenchState, BenchEvent, Object> b;
+    private FsmInstance<BenchState, BenchEvent, Object> c;
+    private FsmInstance<BenchState, BenchEvent, Object> d;
+
+    @Setup
+    public void setUp() {
+        counters = new long[4];
+        a = A.newInstance(counters);
+        b = B.newInstance(counters);
+        c = C.newInstance(counters);
+        d = D.newInstance(counters);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public long interpreted() {
+        a.fire(BenchEvent.NEXT);
+        b.fire(BenchEvent.NEXT);
+        c.fire(BenchEvent.NEXT);
+        d.fire(BenchEvent.NEXT);
+        return counters[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public long compiled() {
+        FsmCompiler.fire(FIRE_A, a, BenchEvent.NEXT);
+        FsmCompiler.fire(FIRE_B, b, BenchEvent.NEXT);
+        FsmCompiler.fire(FIRE_C, c, BenchEvent.NEXT);
+        FsmCompiler.fire(FIRE_D, d, BenchEvent.NEXT);
+        return counters[0];
+    }
+
+    private static FsmDefinition<BenchState, BenchEvent, Object> ring(Consumer<Object> action) {
+        FiniteStateMachineBuilder<BenchState, BenchEvent, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        BenchState[] states = BenchState.values();
+        for (int i = 0; i < states.length; i++) {
+            builder.transition().from(states[i]).to(states[(i + 1) % states.length]).on(BenchEvent.NEXT).during(action);
+        }
+        builder.setInitialState(states[0]);
+        return builder.buildDefinition();
+    }
+}
@@ -0,0 +1,53 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.ConcurrentFiniteStateMachine;
+import com.gunnargissel.spuhn.ConcurrentFiniteStateMachine.RacePolicy;
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures many threads firing events at one shared machine: an FsmInstance behind a synchronized
+ * wrapper, against a ConcurrentFiniteStateMachine under the RETRY and SERIALIZED policies. Vary the
+ * thread count with -t to see how each scales
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+
+    private FsmInstance<BenchState, BenchEvent, Object> synchronizedFsm;
+    private ConcurrentFiniteStateMachine<BenchState, BenchEvent, Object> retryFsm;
+    private ConcurrentFiniteStateMachine<BenchState, BenchEvent, Object> serializedFsm;
+
+    @Setup
+    public void setUp() {
+        FsmDefinition<BenchState, BenchEvent, Object> definition = Machines.toggle().buildDefinition();
+        synchronizedFsm = definition.newInstance(null);
+        retryFsm = definition.newConcurrentInstance(null, RacePolicy.RETRY);
+        serializedFsm = definition.newConcurrentInstance(null, RacePolicy.SERIALIZED);
+    }
+
+    @Benchmark
+    public void synchronizedWrapper() {
+        synchronized (synchronizedFsm) {
+            synchronizedFsm.fire(BenchEvent.TOGGLE);
+        }
+    }
+
+    @Benchmark
+    public void concurrentRetry() {
+        retryFsm.fire(BenchEvent.TOGGLE);
+    }
+
+    @Benchmark
+    public void concurrentSerialized() {
+        serializedFsm.fire(BenchEvent.TOGGLE);
+    }
+}
@@ -0,0 +1,71 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmActions;
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmDefinitions;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measures getting the 4096 transition wide mesh definition by running its builder chain, against
+ * reading it with FsmDefinitions from the text and the binary format in memory. The builder chain
+ * and the text format end in the FsmDefinition constructor that flattens, compiles and validates
+ * the table; the binary format loads the table it was written with.
+ *
+ * For cold start, run in single shot mode without warmup, with many forks:
+ * -bm ss -wi 0 -i 1 -f 20. setUp runs each of the three once, so every fork measures a second
+ * call: the classes are loaded, but the code is still mostly interpreted
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DefinitionLoadBenchmark {
+
+    private static final Consumer<Object> STEP = ctx -> {
+    };
+
+    private FsmActions<Object> actions;
+    private String text;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        actions = new FsmActions<>();
+        actions.putAction("step", STEP);
+        FsmDefinition<WideState, WideEvent, Object> definition = Machines.wideMesh(STEP).buildDefinition();
+        StringWriter out = new StringWriter();
+        FsmDefinitions.writeText(definition, actions, out);
+        text = out.toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FsmDefinitions.writeBinary(definition, actions, Channels.newChannel(bytes));
+        binary = bytes.toByteArray();
+        readText();
+        readBinary();
+    }
+
+    @Benchmark
+    public FsmDefinition<WideState, WideEvent, Object> builderChain() {
+        return Machines.wideMesh(STEP).buildDefinition();
+    }
+
+    @Benchmark
+    public FsmDefinition<WideState, WideEvent, Object> readText() throws IOException {
+        return FsmDefinitions.readText(new StringReader(text), WideState.class, WideEvent.class, actions, null);
+    }
+
+    @Benchmark
+    public FsmDefinition<WideState, WideEvent, Object> readBinary() throws IOException {
+        return FsmDefinitions.readBinary(Channels.newChannel(new ByteArrayInputStream(binary)), WideState.class, WideEvent.class, actions, null);
+    }
+}
@@ -0,0 +1,76 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.BatchResult;
+import com.gunnargissel.spuhn.FiniteStateMachineBuilder;
+import com.gunnargissel.spuhn.FsmInstance;
+import com.gunnargissel.spuhn.FsmMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FsmInstance.fire on a ten state enum ring, once with enum events, which use the compiled
+ * ordinal table, and once with String events, which use the HashMap transition table. The batch
+ * benchmark reports the time per event when 64 events are fired with fireAll. The metrics benchmark
+ * fires enum events at an instance whose definition reports to an FsmMetrics, and the guarded
+ * benchmark fires them at a ring where each event tries two guards before its fallback, both to
+ * compare with enumEvents
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FireBenchmark {
+    private static final int BATCH_SIZE = 64;
+
+    private FsmInstance<BenchState, BenchEvent, Object> enumEvents;
+    private FsmInstance<BenchState, String, Object> stringEvents;
+    private FsmInstance<BenchState, BenchEvent, Object> enumEventsWithMetrics;
+    private FsmInstance<BenchState, BenchEvent, Object> guardedEvents;
+    private BenchEvent[] batch;
+
+    @Setup
+    public void setUp() {
+        enumEvents = Machines.enumRing(BenchEvent.NEXT).buildDefinition().newInstance(null);
+        stringEvents = Machines.enumRing("next").buildDefinition().newInstance(null);
+        FiniteStateMachineBuilder<BenchState, BenchEvent, Object> withMetrics = Machines.enumRing(BenchEvent.NEXT);
+        withMetrics.setMetricsListener(new FsmMetrics());
+        enumEventsWithMetrics = withMetrics.buildDefinition().newInstance(null);
+        guardedEvents = Machines.guardedRing().buildDefinition().newInstance(null);
+        batch = new BenchEvent[BATCH_SIZE];
+        Arrays.fill(batch, BenchEvent.NEXT);
+    }
+
+    @Benchmark
+    public BenchState enumEvents() {
+        enumEvents.fire(BenchEvent.NEXT);
+        return enumEvents.getCurrentState();
+    }
+
+    @Benchmark
+    public BenchState enumEventsWithMetrics() {
+        enumEventsWithMetrics.fire(BenchEvent.NEXT);
+        return enumEventsWithMetrics.getCurrentState();
+    }
+
+    @Benchmark
+    public BenchState guardedEvents() {
+        guardedEvents.fire(BenchEvent.NEXT);
+        return guardedEvents.getCurrentState();
+    }
+
+    @Benchmark
+    public BenchState stringEvents() {
+        stringEvents.fire("next");
+        return stringEvents.getCurrentState();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public BatchResult<BenchState> enumEventsBatch() {
+        return enumEvents.fireAll(batch);
+    }
+}
@@ -0,0 +1,68 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmGraphExport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getGraphvizDotRepresentation() on generated hub machines, against writing sorted DOT
+ * with FsmGraphExport to a Writer that discards its input. Run with -prof gc to compare the bytes
+ * allocated per export
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GraphvizBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int states;
+
+    private FsmDefinition<IndexedState, String, Object> definition;
+    private FsmGraphExport<IndexedState, String, Object> export;
+    private CountingWriter out;
+
+    @Setup
+    public void setUp() {
+        definition = Machines.hub(states).buildDefinition();
+        export = new FsmGraphExport<>(definition, FsmGraphExport.Format.DOT);
+        out = new CountingWriter();
+    }
+
+    @Benchmark
+    public String graphvizDot() {
+        return definition.getGraphvizDotRepresentation();
+    }
+
+    @Benchmark
+    public long streamingDot() throws IOException {
+        export.write(out);
+        return out.count;
+    }
+
+    /**
+     * Counts the characters written to it and discards them
+     */
+    static final class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
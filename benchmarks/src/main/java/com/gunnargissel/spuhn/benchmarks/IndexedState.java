@@ -0,0 +1,38 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.State;
+
+/**
+ * A state identified by an index, so that benchmarks can generate machines with far more states
+ * than an enum can hold. Machines built on these states use the HashMap transition table
+ */
+public final class IndexedState implements State<Object> {
+    private final int index;
+
+    public IndexedState(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public void enter(Object ctx) {
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof IndexedState && ((IndexedState) obj).index == index;
+    }
+
+    @Override
+    public String toString() {
+        return "S" + index;
+    }
+}
@@ -0,0 +1,62 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import com.gunnargissel.spuhn.FsmJournal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures firing enum events at an instance attached to an FsmJournal on local disk, in records
+ * appended per second. Each iteration journals into a fresh temporary directory, which is deleted
+ * afterwards. groupCommit is the number of records between forcing the segment to disk
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JournalBenchmark {
+
+    @Param({ "4096", "65536" })
+    public int groupCommit;
+
+    private FsmDefinition<BenchState, BenchEvent, Object> definition;
+    private FsmInstance<BenchState, BenchEvent, Object> fsm;
+    private Path directory;
+    private FsmJournal<BenchState, BenchEvent, Object> journal;
+
+    @Setup(Level.Trial)
+    public void setUpDefinition() {
+        definition = Machines.enumRing(BenchEvent.NEXT).buildDefinition();
+        fsm = definition.newInstance(null);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spuhn-journal-benchmark");
+        journal = FsmJournal.open(directory, definition, 1 << 20, groupCommit);
+        journal.attach(fsm, 1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public BenchState journaledFire() {
+        fsm.fire(BenchEvent.NEXT);
+        return fsm.getCurrentState();
+    }
+}
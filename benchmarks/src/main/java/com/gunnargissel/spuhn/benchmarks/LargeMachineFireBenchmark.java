@@ -0,0 +1,45 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmInstance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FsmInstance.fire on generated hub machines with 10, 1k and 100k states. Every operation
+ * fires two events: one from the hub out to a spoke, and one back to the hub
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LargeMachineFireBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int states;
+
+    private FsmInstance<IndexedState, String, Object> fsm;
+    private String[] spokes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        fsm = Machines.hub(states).buildDefinition().newInstance(null);
+        spokes = new String[states - 1];
+        for (int i = 1; i < states; i++) {
+            spokes[i - 1] = "go" + i;
+        }
+    }
+
+    @Benchmark
+    public IndexedState fireOutAndBack() {
+        fsm.fire(spokes[next]);
+        if (++next == spokes.length) {
+            next = 0;
+        }
+        fsm.fire("back");
+        return fsm.getCurrentState();
+    }
+}
@@ -0,0 +1,157 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FiniteStateMachineBuilder;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Builders for the machines the benchmarks measure
+ */
+public final class Machines {
+
+    private Machines() {
+    }
+
+    /**
+     * @param event
+     *            the event moving each state of the ring to the next one
+     * @return a builder for the ring S0 -&gt; S1 -&gt; ... -&gt; S9 -&gt; S0 of BenchStates
+     */
+    public static <Event> FiniteStateMachineBuilder<BenchState, Event, Object> enumRing(Event event) {
+        FiniteStateMachineBuilder<BenchState, Event, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        BenchState[] states = BenchState.values();
+        for (int i = 0; i < states.length; i++) {
+            builder.transition().from(states[i]).to(states[(i + 1) % states.length]).on(event);
+        }
+        builder.setInitialState(states[0]);
+        return builder;
+    }
+
+    /**
+     * The ring of enumRing, where each state also has two guarded transitions on NEXT whose guards
+     * never hold, so every event tries both guards before taking the unguarded transition
+     *
+     * @return a builder for the guarded ring of BenchStates
+     */
+    public static FiniteStateMachineBuilder<BenchState, BenchEvent, Object> guardedRing() {
+        FiniteStateMachineBuilder<BenchState, BenchEvent, Object> builder = enumRing(BenchEvent.NEXT);
+        for (BenchState state : BenchState.values()) {
+            builder.transition().from(state).to(state).on(BenchEvent.NEXT).when(ctx -> null != ctx);
+            builder.transition().from(state).to(state).on(BenchEvent.NEXT).when(ctx -> ctx instanceof String);
+        }
+        return builder;
+    }
+
+    /**
+     * @return a builder for two BenchStates that TOGGLE between each other
+     */
+    public static FiniteStateMachineBuilder<BenchState, BenchEvent, Object> toggle() {
+        FiniteStateMachineBuilder<BenchState, BenchEvent, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        builder.transition().from(BenchState.S0).to(BenchState.S1).on(BenchEvent.TOGGLE);
+        builder.transition().from(BenchState.S1).to(BenchState.S0).on(BenchEvent.TOGGLE);
+        builder.setInitialState(BenchState.S0);
+        return builder;
+    }
+
+    /**
+     * The toggle machine, where S1 also times out back to S0 after a minute
+     *
+     * @return a builder for the timed toggle of BenchStates
+     */
+    public static FiniteStateMachineBuilder<BenchState, BenchEvent, Object> timedToggle() {
+        FiniteStateMachineBuilder<BenchState, BenchEvent, Object> builder = toggle();
+        builder.transition().from(BenchState.S1).to(BenchState.S0).on(BenchEvent.TOGGLE).after(Duration.ofMinutes(1));
+        return builder;
+    }
+
+    /**
+     * A hub state S0 with a spoke to each of the other states on the event "go" + index, and a
+     * "back" event from every spoke to the hub. Every state is at most one transition away from the
+     * hub, so validation stays shallow however many states there are
+     *
+     * @param states
+     *            the number of states, including the hub
+     * @return a builder for the hub machine
+     */
+    public static FiniteStateMachineBuilder<IndexedState, String, Object> hub(int states) {
+        FiniteStateMachineBuilder<IndexedState, String, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        IndexedState hub = new IndexedState(0);
+        for (int i = 1; i < states; i++) {
+            IndexedState spoke = new IndexedState(i);
+            builder.transition().from(hub).to(spoke).on("go" + i);
+            builder.transition().from(spoke).to(hub).on("back");
+        }
+        builder.setInitialState(hub);
+        return builder;
+    }
+
+    /**
+     * A chain S0 -&gt; S1 -&gt; ... -&gt; S(n-1) on the event "next", and back to S0 on "reset". Every
+     * state is one step further from the initial state, so validation has to walk the whole chain
+     *
+     * @param states
+     *            the number of states in the chain
+     * @return a builder for the chain machine
+     */
+    public static FiniteStateMachineBuilder<IndexedState, String, Object> chain(int states) {
+        FiniteStateMachineBuilder<IndexedState, String, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        for (int i = 0; i < states - 1; i++) {
+            builder.transition().from(new IndexedState(i)).to(new IndexedState(i + 1)).on("next");
+        }
+        builder.transition().from(new IndexedState(states - 1)).to(new IndexedState(0)).on("reset");
+        builder.setInitialState(new IndexedState(0));
+        return builder;
+    }
+
+    /**
+     * Every WideState has a transition on every WideEvent, to a state picked so that all of them
+     * are reachable from W0, running the given action. 4096 transitions
+     *
+     * @param action
+     *            the action of every transition
+     * @return a builder for the wide mesh machine
+     */
+    public static FiniteStateMachineBuilder<WideState, WideEvent, Object> wideMesh(Consumer<Object> action) {
+        FiniteStateMachineBuilder<WideState, WideEvent, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        WideState[] states = WideState.values();
+        WideEvent[] events = WideEvent.values();
+        for (int i = 0; i < states.length; i++) {
+            for (int j = 0; j < events.length; j++) {
+                builder.transition().from(states[i]).to(states[(i + 1 + j * 17) % states.length]).on(events[j]).during(action);
+            }
+        }
+        builder.setInitialState(states[0]);
+        return builder;
+    }
+
+    /**
+     * Two copies of a ring of half the given number of states, where "next", "jump" and "home"
+     * lead from a state to the same state of either copy, "swap" crosses to the other copy, and only
+     * the first state of each copy has "mark". Each state is equivalent to its twin and no other, so
+     * minimizing halves the machine. Four transitions per state
+     *
+     * @param states
+     *            the number of states, an even number
+     * @return a builder for the twin machine
+     */
+    public static FiniteStateMachineBuilder<PlainState, String, Object> twins(int states) {
+        FiniteStateMachineBuilder<PlainState, String, Object> builder = new FiniteStateMachineBuilder<>(null, Optional.empty());
+        int half = states / 2;
+        for (int copy = 0; copy < 2; copy++) {
+            for (int x = 0; x < half; x++) {
+                PlainState from = new PlainState(copy * half + x);
+                builder.transition().from(from).to(new PlainState((1 - copy) * half + (x + 1) % half)).on("next");
+                builder.transition().from(from).to(new PlainState((1 - copy) * half + x)).on("swap");
+                builder.transition().from(from).to(new PlainState(copy * half + (int) ((x * 7L + 3) % half))).on("jump");
+                builder.transition().from(from).to(new PlainState((int) ((x * 31L + 11) % half))).on("home");
+                if (0 == x) {
+                    builder.transition().from(from).to(from).on("mark");
+                }
+            }
+        }
+        builder.setInitialState(new PlainState(0));
+        return builder;
+    }
+}
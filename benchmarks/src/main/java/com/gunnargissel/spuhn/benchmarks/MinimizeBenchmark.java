@@ -0,0 +1,46 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmAnalysis;
+import com.gunnargissel.spuhn.FsmDefinition;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FsmAnalysis.minimize, and FsmAnalysis.equivalent between a definition and its
+ * minimization, on the twins machine, which has four transitions per state and minimizes to half
+ * its states
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MinimizeBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int states;
+
+    private FsmDefinition<PlainState, String, Object> definition;
+    private FsmDefinition<PlainState, String, Object> minimized;
+
+    @Setup
+    public void setUp() {
+        definition = Machines.twins(states).buildDefinition();
+        minimized = FsmAnalysis.minimize(definition).getDefinition();
+        if (minimized.getStates().size() != states / 2) {
+            throw new IllegalStateException("minimized to " + minimized.getStates().size() + " states");
+        }
+    }
+
+    @Benchmark
+    public FsmAnalysis.Minimization<PlainState, String, Object> minimize() {
+        return FsmAnalysis.minimize(definition);
+    }
+
+    @Benchmark
+    public boolean equivalent() {
+        return FsmAnalysis.equivalent(definition, minimized);
+    }
+}
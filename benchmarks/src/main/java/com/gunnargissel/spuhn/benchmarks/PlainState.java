@@ -0,0 +1,30 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.State;
+
+/**
+ * A state identified by an index that, unlike IndexedState, overrides no hooks, so that
+ * FsmAnalysis may merge it with equivalent states
+ */
+public final class PlainState implements State<Object> {
+    private final int index;
+
+    public PlainState(int index) {
+        this.index = index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof PlainState && ((PlainState) obj).index == index;
+    }
+
+    @Override
+    public String toString() {
+        return "P" + index;
+    }
+}
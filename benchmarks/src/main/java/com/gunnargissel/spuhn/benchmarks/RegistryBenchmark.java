@@ -0,0 +1,82 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FiniteStateMachineBuilder;
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmFileSnapshotStore;
+import com.gunnargissel.spuhn.FsmInstance;
+import com.gunnargissel.spuhn.FsmRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures serving one request: getting a tenant's definition and instance and firing one event.
+ * perRequestBuild builds the definition and starts an instance every time; registryHit goes through
+ * an FsmRegistry that holds every instance, and registryPaging through one that holds a quarter of
+ * them, so most requests restore an instance from an FsmFileSnapshotStore and evict another
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+    private static final int INSTANCES = 1024;
+
+    private FiniteStateMachineBuilder<BenchState, BenchEvent, Object> builder;
+    private FsmRegistry<BenchState, BenchEvent, Object> hits;
+    private FsmRegistry<BenchState, BenchEvent, Object> paging;
+    private String[] ids;
+    private int next;
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        builder = Machines.enumRing(BenchEvent.NEXT);
+        directory = Files.createTempDirectory("spuhn-registry-bench");
+        hits = new FsmRegistry<>(INSTANCES, new FsmFileSnapshotStore(directory.resolve("hits")));
+        paging = new FsmRegistry<>(INSTANCES / 4, new FsmFileSnapshotStore(directory.resolve("paging")));
+        ids = new String[INSTANCES];
+        for (int i = 0; i < INSTANCES; i++) {
+            ids[i] = "tenant-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public BenchState perRequestBuild() {
+        FsmInstance<BenchState, BenchEvent, Object> fsm = builder.buildDefinition().newInstance(null);
+        fsm.fire(BenchEvent.NEXT);
+        return fsm.getCurrentState();
+    }
+
+    @Benchmark
+    public BenchState registryHit() {
+        return serve(hits);
+    }
+
+    @Benchmark
+    public BenchState registryPaging() {
+        return serve(paging);
+    }
+
+    private BenchState serve(FsmRegistry<BenchState, BenchEvent, Object> registry) {
+        String id = ids[next++ & (INSTANCES - 1)];
+        FsmDefinition<BenchState, BenchEvent, Object> definition = registry.definition("ring", builder::buildDefinition);
+        FsmInstance<BenchState, BenchEvent, Object> fsm = registry.instance(id, definition, null);
+        fsm.fire(BenchEvent.NEXT);
+        return fsm.getCurrentState();
+    }
+}
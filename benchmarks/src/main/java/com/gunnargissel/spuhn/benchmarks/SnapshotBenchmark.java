@@ -0,0 +1,61 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import com.gunnargissel.spuhn.FsmSnapshots;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures FsmSnapshots.write and FsmSnapshots.read on a million instances of the enum ring, spread
+ * over its states, through in-memory channels. Restoring from snapshots is the alternative to
+ * replaying every instance's events after a restart
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+
+    @Param({ "1000000" })
+    public int instances;
+
+    private FsmDefinition<BenchState, BenchEvent, Object> definition;
+    private List<FsmInstance<BenchState, BenchEvent, Object>> machines;
+    private byte[] snapshots;
+
+    @Setup
+    public void setUp() throws IOException {
+        definition = Machines.enumRing(BenchEvent.NEXT).buildDefinition();
+        machines = new ArrayList<>(instances);
+        for (int i = 0; i < instances; i++) {
+            FsmInstance<BenchState, BenchEvent, Object> machine = definition.newInstance(null);
+            for (int j = 0; j < i % BenchState.values().length; j++) {
+                machine.fire(BenchEvent.NEXT);
+            }
+            machines.add(machine);
+        }
+        snapshots = write().toByteArray();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(instances + 64);
+        FsmSnapshots.write(definition, machines, Channels.newChannel(out));
+        return out;
+    }
+
+    @Benchmark
+    public List<FsmInstance<BenchState, BenchEvent, Object>> read() throws IOException {
+        return FsmSnapshots.read(definition, Channels.newChannel(new ByteArrayInputStream(snapshots)), i -> null);
+    }
+}
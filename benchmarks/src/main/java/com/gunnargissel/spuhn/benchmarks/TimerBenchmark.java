@@ -0,0 +1,83 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import com.gunnargissel.spuhn.FsmDefinition;
+import com.gunnargissel.spuhn.FsmInstance;
+import com.gunnargissel.spuhn.FsmTimer;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures firing an event that enters or leaves a state with a one minute timeout, round robin
+ * over many instances, so half the events arm a timeout and half cancel one. timedFire drives the
+ * timeouts with one shared FsmTimer. scheduledExecutor fires at instances without a timer and
+ * schedules or cancels one task per instance on a ScheduledThreadPoolExecutor instead, which is
+ * what callers had to do before timed transitions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerBenchmark {
+
+    @Param({ "100000" })
+    public int instances;
+
+    private FsmInstance<BenchState, BenchEvent, Object>[] timed;
+    private FsmInstance<BenchState, BenchEvent, Object>[] untimed;
+    private ScheduledFuture<?>[] tasks;
+    private FsmTimer timer;
+    private ScheduledThreadPoolExecutor executor;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        FsmDefinition<BenchState, BenchEvent, Object> timedDefinition = Machines.timedToggle().buildDefinition();
+        FsmDefinition<BenchState, BenchEvent, Object> untimedDefinition = Machines.toggle().buildDefinition();
+        timer = new FsmTimer(Duration.ofMillis(100));
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        timed = new FsmInstance[instances];
+        untimed = new FsmInstance[instances];
+        tasks = new ScheduledFuture<?>[instances];
+        for (int i = 0; i < instances; i++) {
+            timed[i] = timedDefinition.newInstance(null);
+            timer.attach(timed[i]);
+            untimed[i] = untimedDefinition.newInstance(null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public BenchState timedFire() {
+        FsmInstance<BenchState, BenchEvent, Object> fsm = timed[next];
+        next = next + 1 == instances ? 0 : next + 1;
+        fsm.fire(BenchEvent.TOGGLE);
+        return fsm.getCurrentState();
+    }
+
+    @Benchmark
+    public BenchState scheduledExecutor() {
+        int i = next;
+        next = next + 1 == instances ? 0 : next + 1;
+        FsmInstance<BenchState, BenchEvent, Object> fsm = untimed[i];
+        fsm.fire(BenchEvent.TOGGLE);
+        if (fsm.getCurrentState() == BenchState.S1) {
+            tasks[i] = executor.schedule(() -> fsm.fire(BenchEvent.TOGGLE), 1, TimeUnit.MINUTES);
+        } else if (null != tasks[i]) {
+            tasks[i].cancel(false);
+            tasks[i] = null;
+        }
+        return fsm.getCurrentState();
+    }
+}
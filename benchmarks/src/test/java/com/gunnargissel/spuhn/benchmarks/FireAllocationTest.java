@@ -0,0 +1,50 @@
+package com.gunnargissel.spuhn.benchmarks;
+
+import junit.framework.TestCase;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Runs the single event FireBenchmarks under the JMH gc profiler and asserts that firing an event
+ * allocates nothing
+ */
+public class FireAllocationTest extends TestCase {
+
+    public FireAllocationTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    public void testFireAllocatesNothing() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(FireBenchmark.class.getName() + "\\.(enumEvents|stringEvents)$")
+                .addProfiler(GCProfiler.class)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.milliseconds(500))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.milliseconds(500))
+                .forks(1)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        assertFalse(results.isEmpty());
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            Result<?> allocated = null;
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                    allocated = secondary.getValue();
+                }
+            }
+            assertNotNull("no gc.alloc.rate.norm result for " + params.getBenchmark(), allocated);
+            assertTrue(params.getBenchmark() + " allocated " + allocated.getScore() + " B/op", allocated.getScore() < 1.0);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.gunnargissel.spuhn;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An instance of an FsmDefinition whose transition actions and state entry hooks may be
+ * asynchronous. Firing an event starts the transition's action (see
+ * DuringFunctionBuilder.duringAsync) and returns at once; the new state is only committed once the
+ * action's stage completes, after which the new state's enterAsync hook runs. Exit hooks, and the
+ * entry hooks of parent states, run synchronously.
+ *
+ * Only one transition is in flight at a time. Events fired while a transition is in flight are
+ * queued or rejected, according to the machine's InFlightPolicy. Events may be fired from any
+ * thread, and stages may complete on any thread.
+ *
+ * When the definition has an FsmMetricsListener, every completed transition and rejected event is
+ * reported to it, as by FsmInstance. A transition's action time runs until its action's stage
+ * completes, and its entry time until the entry hooks' stage completes.
+ *
+ * Use FsmDefinition.newAsyncInstance(Context, InFlightPolicy) to create one.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states for this machine
+ * @param <Event>
+ *            A type enumerating all the possible events for this machine to trigger transitions
+ *            between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context
+ */
+public class AsyncFiniteStateMachine<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides what happens to events fired while a transition is in flight
+     */
+    public enum InFlightPolicy {
+        /**
+         * The event waits, in firing order, until the transitions before it have committed
+         */
+        QUEUE,
+        /**
+         * The event's future completes exceptionally with a FiniteStateMachineException
+         */
+        REJECT
+    }
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final Context ctx;
+    private final InFlightPolicy policy;
+    private final Object lock = new Object();
+    // guarded by lock
+    private final ArrayDeque<Pending<StateType, Event>> pending = new ArrayDeque<>();
+    // guarded by lock
+    private boolean inFlight;
+    private volatile StateType currentState;
+    // when currentState was entered, in System.nanoTime(); only written by the transition in flight
+    private long stateEnteredAt;
+
+    private static final class Pending<StateType, Event> {
+        private final Event event;
+        private final CompletableFuture<StateType> result = new CompletableFuture<>();
+
+        private Pending(Event event) {
+            this.event = event;
+        }
+    }
+
+    /**
+     * Constructor for AsyncFiniteStateMachine
+     *
+     * @param definition
+     *            the shared definition of this machine
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @param policy
+     *            what happens to events fired while a transition is in flight
+     */
+    protected AsyncFiniteStateMachine(FsmDefinition<StateType, Event, Context> definition, Context ctx, InFlightPolicy policy) {
+        Objects.requireNonNull(definition);
+        Objects.requireNonNull(policy);
+        this.definition = definition;
+        this.ctx = ctx;
+        this.policy = policy;
+        this.currentState = definition.getInitialState();
+        if (null != definition.metrics) {
+            this.stateEnteredAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Fire an event that causes this machine to transition from its current state to a new state
+     * defined in its definition's transition table, once the transitions already in flight or
+     * queued have committed
+     *
+     * @param event
+     *            an event corresponding to a transition from the state this machine will be in
+     * @return a future that completes with the new state once it is committed and its entry hook is
+     *         done, or exceptionally when the event is rejected or an action or hook fails
+     */
+    public CompletableFuture<StateType> fireAsync(Event event) {
+        Pending<StateType, Event> next = new Pending<>(event);
+        synchronized (lock) {
+            if (inFlight) {
+                if (policy == InFlightPolicy.REJECT) {
+                    next.result.completeExceptionally(reject(new FiniteStateMachineException("Event: " + event + " rejected because a transition is in flight from state: " + currentState, FiniteStateMachineException.Reason.TRANSITION_IN_FLIGHT)));
+                } else {
+                    pending.add(next);
+                }
+                return next.result;
+            }
+            inFlight = true;
+        }
+        run(next);
+        return next.result;
+    }
+
+    /*
+     * Runs transitions until the queue is empty, looping while they complete synchronously, and
+     * continuing from the completing thread when one completes later
+     */
+    private void run(Pending<StateType, Event> next) {
+        while (null != next) {
+            CompletableFuture<Void> done = step(next);
+            if (!done.isDone()) {
+                done.whenComplete((v, e) -> run(poll()));
+                return;
+            }
+            next = poll();
+        }
+    }
+
+    private Pending<StateType, Event> poll() {
+        synchronized (lock) {
+            Pending<StateType, Event> next = pending.poll();
+            if (null == next) {
+                inFlight = false;
+            }
+            return next;
+        }
+    }
+
+    private CompletableFuture<Void> step(Pending<StateType, Event> next) {
+        StateType from = currentState;
+        Transition<StateType, Event, Context> transition = definition.findTransition(from, next.event, ctx);
+        if (null == transition) {
+            next.result.completeExceptionally(reject(definition.noTransition(from, next.event, ctx)));
+            return DONE;
+        }
+        FsmMetricsListener metrics = definition.metrics;
+        long start = null == metrics ? 0 : System.nanoTime();
+        long[] transited = null == metrics ? null : new long[1];
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            transition.runExitHooks(ctx);
+            CompletionStage<Void> action = transition.transitAsync(ctx);
+            if (null == action) {
+                throw new NullPointerException("Asynchronous action returned no stage for event: " + next.event + " from state: " + from);
+            }
+            action.thenCompose(v -> {
+                if (null != metrics) {
+                    transited[0] = System.nanoTime();
+                }
+                currentState = transition.getToState();
+                return transition.runEntryHooksAsync(ctx);
+            }).whenComplete((v, e) -> {
+                if (null != e) {
+                    next.result.completeExceptionally(e instanceof CompletionException && null != e.getCause() ? e.getCause() : e);
+                } else {
+                    if (null != metrics) {
+                        long entered = System.nanoTime();
+                        metrics.transitionCompleted(transition.index, start - stateEnteredAt, transited[0] - start, entered - transited[0]);
+                        stateEnteredAt = entered;
+                    }
+                    next.result.complete(transition.getToState());
+                }
+                done.complete(null);
+            });
+        } catch (RuntimeException e) {
+            next.result.completeExceptionally(e);
+            return DONE;
+        }
+        return done;
+    }
+
+    private FiniteStateMachineException reject(FiniteStateMachineException rejection) {
+        if (null != definition.metrics) {
+            definition.metrics.eventRejected(rejection.getReason());
+        }
+        return rejection;
+    }
+
+    /**
+     * Returns true if this currentState is state
+     *
+     * @param state
+     *            A state
+     * @return true if this currentState is state
+     */
+    public boolean isCurrentState(StateType state) {
+        return currentState.equals(state);
+    }
+
+    /**
+     * @return the last committed state of this machine. A transition in flight is not committed
+     *         until its action's stage completes
+     */
+    public StateType getCurrentState() {
+        return currentState;
+    }
+
+    /**
+     * @return true if a transition is in flight
+     */
+    public boolean isInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * @return the InFlightPolicy of this machine
+     */
+    public InFlightPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the Context passed into each transition and final state event
+     */
+    public Context getContext() {
+        return ctx;
+    }
+
+    /**
+     * @return the shared definition of this machine
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return definition;
+    }
+}
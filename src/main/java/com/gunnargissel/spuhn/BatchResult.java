@@ -0,0 +1,66 @@
+package com.gunnargissel.spuhn;
+
+/**
+ * The outcome of firing a batch of events with FsmInstance.fireAll: the state the instance ended
+ * in, how many events were applied, and which event, if any, was rejected
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states of the instance
+ */
+public final class BatchResult<StateType> {
+    private final StateType finalState;
+    private final int applied;
+    private final int rejectedIndex;
+    private final FiniteStateMachineException rejection;
+
+    BatchResult(StateType finalState, int applied, int rejectedIndex, FiniteStateMachineException rejection) {
+        this.finalState = finalState;
+        this.applied = applied;
+        this.rejectedIndex = rejectedIndex;
+        this.rejection = rejection;
+    }
+
+    /**
+     * @return the state the instance is in after the batch
+     */
+    public StateType getFinalState() {
+        return finalState;
+    }
+
+    /**
+     * @return the number of events that caused a transition
+     */
+    public int getApplied() {
+        return applied;
+    }
+
+    /**
+     * @return the index in the batch of the first rejected event, or -1 when every event was
+     *         applied
+     */
+    public int getRejectedIndex() {
+        return rejectedIndex;
+    }
+
+    /**
+     * @return why the event at getRejectedIndex() was rejected, or null when every event was
+     *         applied
+     */
+    public FiniteStateMachineException getRejection() {
+        return rejection;
+    }
+
+    /**
+     * @return true if every event of the batch was applied
+     */
+    public boolean isComplete() {
+        return rejectedIndex < 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult [finalState=" + finalState + ", applied=" + applied + ", rejectedIndex=" + rejectedIndex + "]";
+    }
+}
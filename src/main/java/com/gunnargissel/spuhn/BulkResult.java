@@ -0,0 +1,47 @@
+package com.gunnargissel.spuhn;
+
+/**
+ * The outcome of firing events in parallel with FsmBulkStore.fireParallel: how many events were
+ * applied and rejected, and how many instances of the store are in each state afterwards
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            An enum of all the possible states of the store's instances
+ */
+public final class BulkResult<StateType> {
+    private final long applied;
+    private final long rejected;
+    // indexed by state ordinal
+    private final long[] stateCounts;
+
+    BulkResult(long applied, long rejected, long[] stateCounts) {
+        this.applied = applied;
+        this.rejected = rejected;
+        this.stateCounts = stateCounts;
+    }
+
+    /**
+     * @return the number of events that caused a transition
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * @return the number of events skipped because they had no transition from their instance's
+     *         state
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @param state
+     *            a state of the store's definition
+     * @return how many instances of the store are in state after the events were applied
+     */
+    public long getStateCount(StateType state) {
+        return stateCounts[((Enum<?>) state).ordinal()];
+    }
+}
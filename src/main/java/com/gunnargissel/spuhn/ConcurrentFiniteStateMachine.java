@@ -0,0 +1,278 @@
+package com.gunnargissel.spuhn;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread safe instance of an FsmDefinition. Any number of threads may fire events at the same
+ * machine without an external lock: transitions are resolved against the shared, immutable
+ * definition without locking, and the new state is committed with a compare-and-set on an
+ * AtomicReference.
+ *
+ * Because an event may race events fired from other threads, every machine follows a RacePolicy,
+ * which decides when the transition and state entry hooks run and what happens to the event that
+ * loses a race.
+ *
+ * When the definition has an FsmMetricsListener, every completed transition and rejected event is
+ * reported to it, as by FsmInstance. Under RETRY and REJECT, hooks of consecutive transitions may
+ * overlap, so the time spent in a state is measured from when the state was committed.
+ *
+ * Use FsmDefinition.newConcurrentInstance(Context, RacePolicy) to create one.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states for this machine
+ * @param <Event>
+ *            A type enumerating all the possible events for this machine to trigger transitions
+ *            between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context.
+ *            It is shared by every thread firing events at this machine
+ */
+public class ConcurrentFiniteStateMachine<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides what happens when events fired from several threads race each other
+     */
+    public enum RacePolicy {
+        /**
+         * The new state is committed first, then the transition and entry hooks run on the thread
+         * that committed it. An event whose compare-and-set loses a race is resolved again against
+         * the state that won, and retried. Hooks of consecutive transitions may run at the same time
+         * on different threads
+         */
+        RETRY,
+        /**
+         * Like RETRY, but an event whose compare-and-set loses a race is rejected with a
+         * FiniteStateMachineException instead of being retried against the new state
+         */
+        REJECT,
+        /**
+         * Transitions are still resolved without locking, but a transition claims the machine
+         * before its hooks run, and only commits the new state after the transition and entry hooks
+         * have returned. Hooks never overlap and run in the same order as the transitions commit;
+         * events fired while hooks are running wait until the machine is released, spinning
+         * briefly and then parked. Hooks must not fire events at their own machine
+         */
+        SERIALIZED
+    }
+
+    // how many times a thread yields waiting for hooks before it parks
+    private static final int SPINS = 64;
+
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final Context ctx;
+    private final RacePolicy policy;
+    /*
+     * Holds the current state. Under the SERIALIZED policy it holds the Transition whose hooks are
+     * running instead, until they return and the transition's toState is committed
+     */
+    private final AtomicReference<Object> current;
+    private volatile Thread hookOwner;
+    // threads parked in awaitHooks until the hooks running under SERIALIZED return
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+    // when the current state was committed, in System.nanoTime(), or null without a metrics listener
+    private final AtomicLong stateEnteredAt;
+
+    /**
+     * Constructor for ConcurrentFiniteStateMachine
+     *
+     * @param definition
+     *            the shared definition of this machine
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @param policy
+     *            the RacePolicy deciding what happens when events race each other
+     */
+    protected ConcurrentFiniteStateMachine(FsmDefinition<StateType, Event, Context> definition, Context ctx, RacePolicy policy) {
+        Objects.requireNonNull(definition);
+        Objects.requireNonNull(policy);
+        this.definition = definition;
+        this.ctx = ctx;
+        this.policy = policy;
+        this.current = new AtomicReference<>(definition.getInitialState());
+        this.stateEnteredAt = null == definition.metrics ? null : new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Fire an event that causes this machine to transition from its current state to a new state
+     * defined in its definition's transition table, following this machine's RacePolicy
+     *
+     * @param event
+     *            an event corresponding to a transition from the current state to a new state
+     * @throws FiniteStateMachineException
+     *             when there is not a transition from the current state, the event being fired is
+     *             not registered with this machine's definition, or the event lost a race under the
+     *             REJECT policy
+     */
+    @SuppressWarnings("unchecked")
+    public void fire(Event event) throws FiniteStateMachineException {
+        for (;;) {
+            Object observed = current.get();
+            if (observed instanceof Transition) {
+                awaitHooks();
+                continue;
+            }
+            StateType from = (StateType) observed;
+            Transition<StateType, Event, Context> transition = definition.findTransition(from, event, ctx);
+            if (null == transition) {
+                throw reject(definition.noTransition(from, event, ctx));
+            }
+            if (policy == RacePolicy.SERIALIZED) {
+                if (current.compareAndSet(from, transition)) {
+                    runSerialized(transition);
+                    return;
+                }
+            } else if (current.compareAndSet(from, transition.getToState())) {
+                if (null == stateEnteredAt) {
+                    transition.runExitHooks(ctx);
+                    transition.transit(ctx);
+                    transition.runEntryHooks(ctx);
+                } else {
+                    long start = System.nanoTime();
+                    long enteredFrom = stateEnteredAt.getAndSet(start);
+                    transition.runExitHooks(ctx);
+                    transition.transit(ctx);
+                    long transited = System.nanoTime();
+                    transition.runEntryHooks(ctx);
+                    definition.metrics.transitionCompleted(transition.index, start - enteredFrom, transited - start, System.nanoTime() - transited);
+                }
+                return;
+            } else if (policy == RacePolicy.REJECT) {
+                throw reject(new FiniteStateMachineException("Event: " + event + " rejected because the state changed from: " + from + " while it was being fired", FiniteStateMachineException.Reason.RACE_LOST));
+            }
+        }
+    }
+
+    private FiniteStateMachineException reject(FiniteStateMachineException rejection) {
+        if (null != definition.metrics) {
+            definition.metrics.eventRejected(rejection.getReason());
+        }
+        return rejection;
+    }
+
+    private void runSerialized(Transition<StateType, Event, Context> transition) {
+        hookOwner = Thread.currentThread();
+        StateType committed = transition.getFromState();
+        try {
+            if (null == stateEnteredAt) {
+                transition.runExitHooks(ctx);
+                transition.transit(ctx);
+                committed = transition.getToState();
+                transition.runEntryHooks(ctx);
+            } else {
+                long start = System.nanoTime();
+                transition.runExitHooks(ctx);
+                transition.transit(ctx);
+                long transited = System.nanoTime();
+                committed = transition.getToState();
+                transition.runEntryHooks(ctx);
+                long entered = System.nanoTime();
+                definition.metrics.transitionCompleted(transition.index, start - stateEnteredAt.getAndSet(entered), transited - start, entered - transited);
+            }
+        } finally {
+            hookOwner = null;
+            current.set(committed);
+            // waiters remove themselves, since one may park again when another transition wins
+            for (Thread waiter : waiters) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /*
+     * Waits until the running hooks return. Most hooks are short, so the thread spins for a while,
+     * then parks until the hook owner releases the machine, so blocking hooks do not keep waiters
+     * busy
+     */
+    private void awaitHooks() {
+        Thread self = Thread.currentThread();
+        if (hookOwner == self) {
+            throw new FiniteStateMachineException("An event may not be fired from a transition or state entry hook of the same machine", FiniteStateMachineException.Reason.REENTRANT_EVENT);
+        }
+        for (int i = 0; i < SPINS; i++) {
+            if (!(current.get() instanceof Transition)) {
+                return;
+            }
+            Thread.yield();
+        }
+        // registered before checking again, so a release after the check unparks this thread
+        waiters.add(self);
+        boolean interrupted = false;
+        while (current.get() instanceof Transition) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        waiters.remove(self);
+        if (interrupted) {
+            self.interrupt();
+        }
+    }
+
+    /**
+     * Returns true if this currentState is state
+     *
+     * @param state
+     *            A state
+     * @return true if this currentState is state
+     */
+    public boolean isCurrentState(StateType state) {
+        return getCurrentState().equals(state);
+    }
+
+    /**
+     * @return the state this machine is currently in. Under the SERIALIZED policy, a transition
+     *         whose hooks are still running has not been committed yet, so this is its fromState
+     */
+    @SuppressWarnings("unchecked")
+    public StateType getCurrentState() {
+        Object observed = current.get();
+        if (observed instanceof Transition) {
+            return ((Transition<StateType, Event, Context>) observed).getFromState();
+        }
+        return (StateType) observed;
+    }
+
+    /**
+     * @return the RacePolicy of this machine
+     */
+    public RacePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the Context passed into each transition and final state event
+     */
+    public Context getContext() {
+        return ctx;
+    }
+
+    /**
+     * @return the shared definition of this machine
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Resets this machine's current state to the initial state of its definition, waiting for any
+     * running hooks under the SERIALIZED policy
+     */
+    public void initialize() {
+        for (;;) {
+            Object observed = current.get();
+            if (observed instanceof Transition) {
+                awaitHooks();
+            } else if (current.compareAndSet(observed, definition.getInitialState())) {
+                if (null != stateEnteredAt) {
+                    stateEnteredAt.set(System.nanoTime());
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.gunnargissel.spuhn;
+
+import java.util.Arrays;
+
+/**
+ * A growable ring buffer of events, each with a flag saying whether it may be deferred. Used by
+ * FsmInstance for the events raised while a transition runs, and for deferred events. The arrays
+ * grow by doubling and are reused, so adding and polling events allocates nothing once the ring is
+ * large enough. Not thread safe
+ *
+ * @param <Event>
+ *            the event type of the owning instance
+ */
+final class EventQueue<Event> {
+
+    private Object[] events = new Object[8];
+    private boolean[] deferrable = new boolean[8];
+    private int head;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    void add(Event event, boolean mayDefer) {
+        if (size == events.length) {
+            grow();
+        }
+        int at = (head + size) & (events.length - 1);
+        events[at] = event;
+        deferrable[at] = mayDefer;
+        size++;
+    }
+
+    private void grow() {
+        Object[] grownEvents = new Object[events.length << 1];
+        boolean[] grownDeferrable = new boolean[events.length << 1];
+        for (int i = 0; i < size; i++) {
+            int at = (head + i) & (events.length - 1);
+            grownEvents[i] = events[at];
+            grownDeferrable[i] = deferrable[at];
+        }
+        events = grownEvents;
+        deferrable = grownDeferrable;
+        head = 0;
+    }
+
+    /**
+     * @return whether the i-th event from the head may be deferred
+     */
+    boolean isDeferrable(int i) {
+        return deferrable[(head + i) & (events.length - 1)];
+    }
+
+    /**
+     * @return the i-th event from the head
+     */
+    @SuppressWarnings("unchecked")
+    Event get(int i) {
+        return (Event) events[(head + i) & (events.length - 1)];
+    }
+
+    /**
+     * Removes and returns the i-th event from the head, moving the events before it up by one
+     */
+    Event remove(int i) {
+        Event event = get(i);
+        int mask = events.length - 1;
+        for (int j = i; j > 0; j--) {
+            int to = (head + j) & mask;
+            int from = (head + j - 1) & mask;
+            events[to] = events[from];
+            deferrable[to] = deferrable[from];
+        }
+        events[head] = null;
+        head = (head + 1) & mask;
+        size--;
+        return event;
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(events, null);
+            head = 0;
+            size = 0;
+        }
+    }
+}
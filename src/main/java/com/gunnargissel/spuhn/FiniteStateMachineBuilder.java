@@ -6,6 +6,9 @@ import com.gunnargissel.spuhn.builder.FromStateBuilder;
 import com.gunnargissel.spuhn.builder.GenericTransitionBuilder;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.logging.Logger;
 
@@ -20,7 +23,8 @@ import java.util.logging.Logger;
  *         returned values.
  * 
  *         When all the desired transitions have been added, use this.build() to create an
- *         initialized FiniteStateMachine
+ *         initialized FiniteStateMachine, or this.buildDefinition() to create a definition that
+ *         many lightweight FsmInstances can share
  * 
  *         The design of this class assumes you will create your own State, Event and Context types.
  *         The assumption is that you will create enums implementing the State and Context types. A
@@ -40,8 +44,11 @@ public class FiniteStateMachineBuilder<StateType extends State<Context>, Event,
 
     private ArrayList<GenericTransitionBuilder<StateType, Event, Context>> transitions = new ArrayList<>();
     private StateType initialState;
+    private LinkedHashMap<StateType, StateType> parents = new LinkedHashMap<>();
     private Context ctx;
     private Optional<Logger> logger = Optional.empty();
+    private FsmMetricsListener metrics;
+    private FsmDefinition.GuardPolicy guardPolicy = FsmDefinition.GuardPolicy.FIRST_MATCH;
 
     public FiniteStateMachineBuilder(Context context, Optional<Logger> logger) {
         this.ctx = context;
@@ -67,39 +74,94 @@ public class FiniteStateMachineBuilder<StateType extends State<Context>, Event,
      * @return an initialized FiniteStateMachine
      */
     public FiniteStateMachine<StateType, Event, Context> build() {
-        FiniteStateMachine<StateType, Event, Context> result = new FiniteStateMachine<>(ctx, logger);
+        return new FiniteStateMachine<>(buildDefinition(), ctx, logger);
+    }
+
+    /**
+     * Build an immutable, validated definition out of the transitions encoded in this
+     * FiniteStateMachineBuilder. The definition may be shared by any number of FsmInstances, which
+     * are created with FsmDefinition.newInstance(Context). Throws NullPointerException if an
+     * incomplete transition builder is present
+     * 
+     * @return a compiled and validated FsmDefinition
+     */
+    public FsmDefinition<StateType, Event, Context> buildDefinition() {
+        List<Transition<StateType, Event, Context>> result = new ArrayList<>(transitions.size());
         for (GenericTransitionBuilder<StateType, Event, Context> transition : transitions) {
             try {
-                result.addState(transition.from());
-                result.addState(transition.to());
-                result.addEvent(transition.on());
-                result.addTransition(transition.build());
+                result.add(transition.build());
             } catch (NullPointerException e) {
                 String msg = e.getMessage();
                 msg += "\nAttempting to build an fsm encountered an error.  From and To states are required, On event is required for transition: " + transition;
                 throw new NullPointerException(msg);
             }
         }
-        result.setInitialState(initialState);
-        result.initialize();
-        return result;
+        return new FsmDefinition<>(result, initialState, parents, guardPolicy, metrics);
     }
-    
-    
 
     /**
      * Indicate which state is the initial state. Will throw an exception if initial is not a state
      * with a transition from it, because then the FiniteStateMachine effectively consists of a
-     * single state, which is not useful
+     * single state, which is not useful. A transition inherited from a parent state counts, so set
+     * the parents of nested states first
      * 
      * @param initial
      *            The state that is supposed to be the initial state of the resulting
      *            FiniteStateMachine
      */
     public void setInitialState(StateType initial) {
-        if (transitions.stream().filter(t -> null != t.getFromState() && t.getFromState().equals(initial)).count() <= 0)
-            throw new FiniteStateMachineException("The state " + initial.toString() + " is not found in the transitions in this builder");
+        boolean found = false;
+        int depth = 0;
+        for (StateType state = initial; null != state && !found && depth++ <= parents.size(); state = parents.get(state)) {
+            StateType from = state;
+            found = transitions.stream().anyMatch(t -> null != t.getFromState() && t.getFromState().equals(from));
+        }
+        if (!found)
+            throw new FiniteStateMachineException("The state " + initial.toString() + " is not found in the transitions in this builder", FiniteStateMachineException.Reason.INVALID_DEFINITION);
         this.initialState = initial;
     }
 
+    /**
+     * Attach a listener that every instance of the built definitions reports completed transitions,
+     * with their timings, and rejected events to. Without a listener, firing events does no timing
+     * work at all. The listener is attached to every definition built from now on, so an FsmMetrics
+     * fails a build once transitions have been added since the last one; set a new FsmMetrics then
+     * 
+     * @param metrics
+     *            the listener, or null to detach it
+     */
+    public void setMetricsListener(FsmMetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Decide how guarded transitions of the same from state and event are chosen between. The
+     * default is FIRST_MATCH
+     * 
+     * @param guardPolicy
+     *            the GuardPolicy of the built definitions
+     */
+    public void setGuardPolicy(FsmDefinition.GuardPolicy guardPolicy) {
+        Objects.requireNonNull(guardPolicy);
+        this.guardPolicy = guardPolicy;
+    }
+
+    /**
+     * Nest a state inside a parent state. The child inherits every transition declared from the
+     * parent, or from the parent's own parents, unless it declares a transition for the same event
+     * itself. Parent states are never current: transitions may leave them but not end in them, and
+     * the hierarchy is flattened into the transition table when the definition is built
+     * 
+     * @param child
+     *            the nested state
+     * @param parent
+     *            the state child is nested in
+     */
+    public void setParent(StateType child, StateType parent) {
+        if (child.equals(parent)) {
+            throw new FiniteStateMachineException("The state " + child + " may not be its own parent", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        parents.put(child, parent);
+    }
+
 }
@@ -2,8 +2,47 @@ package com.gunnargissel.spuhn;
 
 public class FiniteStateMachineException extends RuntimeException{
 
+	/**
+	 * Why a FiniteStateMachineException was thrown
+	 */
+	public enum Reason {
+		/** the definition being built is not valid */
+		INVALID_DEFINITION,
+		/** the event is not registered with the definition */
+		UNKNOWN_EVENT,
+		/** the definition has no transition from the current state for the event */
+		NO_TRANSITION,
+		/** another thread changed the state while the event was being fired */
+		RACE_LOST,
+		/** a hook fired an event at its own machine where that is not allowed */
+		REENTRANT_EVENT,
+		/** the event arrived while an asynchronous transition was in flight */
+		TRANSITION_IN_FLIGHT,
+		/** the event's mailbox was full */
+		MAILBOX_FULL,
+		/** the from state and event have guarded transitions, and no guard held */
+		GUARD_REJECTED,
+		/** more than one guard held under GuardPolicy.EXCLUSIVE */
+		AMBIGUOUS_GUARDS,
+		/** a snapshot or journal was corrupt, or written for another definition */
+		INVALID_SNAPSHOT,
+		/** any other reason */
+		OTHER
+	}
+
+	private final Reason reason;
+
 	public FiniteStateMachineException(String msg) {
+		this(msg, Reason.OTHER);
+	}
+
+	public FiniteStateMachineException(String msg, Reason reason) {
 		super(msg);
+		this.reason = reason;
+	}
+
+	public Reason getReason() {
+		return reason;
 	}
 
 }
@@ -0,0 +1,129 @@
+package com.gunnargissel.spuhn;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A registry of transition actions and guards by name, through which FsmDefinitions binds the
+ * names in a serialized definition to code when it reads one, and finds the names of a
+ * definition's actions and guards when it writes one. Actions, asynchronous actions and guards
+ * each have their own names.
+ *
+ * A name may not be empty, and may not contain whitespace, '=' or '#', so that it can stand in the
+ * text format as is. Register everything before reading or writing definitions; a registry is not
+ * thread safe while it is changed.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <Context>
+ *            The context type the actions and guards take
+ */
+public final class FsmActions<Context> {
+
+    private final Map<String, Consumer<Context>> actions = new HashMap<>();
+    private final Map<String, Function<Context, CompletionStage<Void>>> asyncActions = new HashMap<>();
+    private final Map<String, Predicate<Context>> guards = new HashMap<>();
+    // the first name each function was registered under
+    private final Map<Object, String> names = new IdentityHashMap<>();
+
+    /**
+     * Register a transition action, as passed to during(Consumer)
+     *
+     * @param name
+     *            the name the action is serialized as
+     * @param action
+     *            the action
+     * @throws FiniteStateMachineException
+     *             when the name is invalid or another action is registered under it
+     */
+    public void putAction(String name, Consumer<Context> action) {
+        put(actions, name, action, "action");
+    }
+
+    /**
+     * Register an asynchronous transition action, as passed to duringAsync(Function)
+     *
+     * @param name
+     *            the name the action is serialized as
+     * @param action
+     *            the asynchronous action
+     * @throws FiniteStateMachineException
+     *             when the name is invalid or another asynchronous action is registered under it
+     */
+    public void putAsyncAction(String name, Function<Context, CompletionStage<Void>> action) {
+        put(asyncActions, name, action, "asynchronous action");
+    }
+
+    /**
+     * Register a guard, as passed to when(Predicate)
+     *
+     * @param name
+     *            the name the guard is serialized as
+     * @param guard
+     *            the guard
+     * @throws FiniteStateMachineException
+     *             when the name is invalid or another guard is registered under it
+     */
+    public void putGuard(String name, Predicate<Context> guard) {
+        put(guards, name, guard, "guard");
+    }
+
+    private <T> void put(Map<String, T> byName, String name, T function, String kind) {
+        Objects.requireNonNull(function);
+        checkName(name);
+        T existing = byName.putIfAbsent(name, function);
+        if (null != existing && existing != function) {
+            throw new FiniteStateMachineException("Another " + kind + " is already registered as: " + name, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        names.putIfAbsent(function, name);
+    }
+
+    static void checkName(String name) {
+        Objects.requireNonNull(name);
+        boolean valid = !name.isEmpty();
+        for (int i = 0; i < name.length() && valid; i++) {
+            char c = name.charAt(i);
+            valid = !Character.isWhitespace(c) && c != '=' && c != '#';
+        }
+        if (!valid) {
+            throw new FiniteStateMachineException("Invalid action name: '" + name + "'", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+    }
+
+    Consumer<Context> action(String name) {
+        return lookup(actions, name, "action");
+    }
+
+    Function<Context, CompletionStage<Void>> asyncAction(String name) {
+        return lookup(asyncActions, name, "asynchronous action");
+    }
+
+    Predicate<Context> guard(String name) {
+        return lookup(guards, name, "guard");
+    }
+
+    private static <T> T lookup(Map<String, T> byName, String name, String kind) {
+        T function = byName.get(name);
+        if (null == function) {
+            throw new FiniteStateMachineException("No " + kind + " is registered as: " + name, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        return function;
+    }
+
+    /*
+     * The name a function of the transition was registered under
+     */
+    String nameOf(Object function, Transition<?, ?, ?> transition) {
+        String name = names.get(function);
+        if (null == name) {
+            throw new FiniteStateMachineException("An action or guard of the transition is not registered: " + transition, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        return name;
+    }
+}
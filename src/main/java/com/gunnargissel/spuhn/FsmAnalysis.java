@@ -0,0 +1,488 @@
+package com.gunnargissel.spuhn;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.gunnargissel.spuhn.builder.GenericDRFSMTransition;
+
+/**
+ * Analyses of finished definitions: minimizing a definition by merging its equivalent states,
+ * checking whether two definitions are equivalent, and finding transitions that are never needed.
+ *
+ * Two states are equivalent when every event, and every guard tried for it, leads both to equivalent
+ * states through the same action, guard and timeout, and running the same hooks, so that no
+ * sequence of events can tell an instance in one from an instance in the other. States that
+ * override a hook, and nested states, are only equivalent to themselves, as their hooks are
+ * observable; actions and guards are compared by identity, and events, timeouts and states by
+ * equals.
+ *
+ * The states are partitioned with Valmari and Lehtinen's variant of Hopcroft's algorithm for
+ * partial automata, which refines the blocks of states and the groups of transitions leading into
+ * them against each other, always splitting off the smaller half. It runs in O(E log V) for a
+ * definition of V states and E transitions, without recursion.
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmAnalysis {
+
+    private FsmAnalysis() {
+    }
+
+    /**
+     * The result of minimizing a definition
+     *
+     * @param <StateType>
+     *            the state type of the definition
+     * @param <Event>
+     *            the event type of the definition
+     * @param <Context>
+     *            the context type of the definition
+     */
+    public static final class Minimization<StateType extends State<Context>, Event, Context> {
+        private final FsmDefinition<StateType, Event, Context> definition;
+        private final Map<StateType, StateType> merged;
+        private final List<Transition<StateType, Event, Context>> redundant;
+
+        private Minimization(FsmDefinition<StateType, Event, Context> definition, Map<StateType, StateType> merged, List<Transition<StateType, Event, Context>> redundant) {
+            this.definition = definition;
+            this.merged = Collections.unmodifiableMap(merged);
+            this.redundant = Collections.unmodifiableList(redundant);
+        }
+
+        /**
+         * @return the minimized definition, which only holds one state of each set of equivalent
+         *         states, or the original definition when no states were merged and no
+         *         transitions are redundant
+         */
+        public FsmDefinition<StateType, Event, Context> getDefinition() {
+            return definition;
+        }
+
+        /**
+         * @return each state that was merged away, mapped to the equivalent state that replaces it
+         *         in the minimized definition. States that were kept are not in the map
+         */
+        public Map<StateType, StateType> getMergedStates() {
+            return merged;
+        }
+
+        /**
+         * @param state
+         *            a state of the original definition
+         * @return the state that stands for it in the minimized definition
+         */
+        public StateType representative(StateType state) {
+            StateType kept = merged.get(state);
+            return null == kept ? state : kept;
+        }
+
+        /**
+         * @return the transitions of the original definition the minimized definition does without:
+         *         those out of merged states, and guarded transitions that can never be taken
+         *         because an earlier candidate of the same state and event has the same guard
+         */
+        public List<Transition<StateType, Event, Context>> getRedundantTransitions() {
+            return redundant;
+        }
+    }
+
+    /**
+     * Merges the equivalent states of a definition. The minimized definition keeps the first state,
+     * in getStates() order, of each set of equivalent states, the initial state, the nesting and
+     * the guard policy of the original, and no metrics listener
+     *
+     * @param definition
+     *            the definition to minimize
+     * @return the minimized definition, the merged states and the redundant transitions
+     */
+    public static <StateType extends State<Context>, Event, Context> Minimization<StateType, Event, Context> minimize(FsmDefinition<StateType, Event, Context> definition) {
+        Objects.requireNonNull(definition);
+        Automaton automaton = new Automaton(definition.getStates().size());
+        List<StateType> states = new ArrayList<>(definition.getStates());
+        int initialIndex = automaton.add(definition, states);
+        int[] blocks = automaton.refine();
+
+        List<Transition<StateType, Event, Context>> redundant = new ArrayList<>();
+        Map<StateType, StateType> merged = new LinkedHashMap<>();
+        List<StateType> representatives = representatives(states, blocks, merged);
+        List<Transition<StateType, Event, Context>> kept = new ArrayList<>();
+        List<Transition<StateType, Event, Context>> all = definition.getTransitions();
+        for (int i = 0; i < all.size(); i++) {
+            Transition<StateType, Event, Context> t = all.get(i);
+            if (merged.containsKey(t.getFromState()) || automaton.shadowed[i]) {
+                redundant.add(t);
+            } else {
+                kept.add(t);
+            }
+        }
+        if (redundant.isEmpty() && merged.isEmpty()) {
+            return new Minimization<>(definition, merged, redundant);
+        }
+        List<Transition<StateType, Event, Context>> copies = new ArrayList<>(kept.size());
+        for (Transition<StateType, Event, Context> t : kept) {
+            StateType to = representatives.get(blocks[automaton.index(t.getToState())]);
+            copies.add(new GenericDRFSMTransition<>(t.getFromState(), to, t.getOnEvent(), t.getTransitionFunc().orElse(null), t.getAsyncTransitionFunc().orElse(null), t.guard, t.timeout));
+        }
+        StateType initial = representatives.get(blocks[initialIndex]);
+        FsmDefinition<StateType, Event, Context> minimized = new FsmDefinition<>(copies, initial, definition.parents(), definition.getGuardPolicy(), null);
+        return new Minimization<>(minimized, merged, redundant);
+    }
+
+    /**
+     * Checks whether two definitions are equivalent: whether an instance of each, started in its
+     * initial state and given the same context, runs the same actions and hooks for any sequence of
+     * events, and rejects the same events
+     *
+     * @param first
+     *            a definition
+     * @param second
+     *            another definition
+     * @return true when the definitions are equivalent
+     */
+    public static <StateType extends State<Context>, Event, Context> boolean equivalent(FsmDefinition<StateType, Event, Context> first, FsmDefinition<StateType, Event, Context> second) {
+        Objects.requireNonNull(first);
+        Objects.requireNonNull(second);
+        if (first.getGuardPolicy() != second.getGuardPolicy()) {
+            return false;
+        }
+        Automaton automaton = new Automaton(first.getStates().size() + second.getStates().size());
+        int firstInitial = automaton.add(first, new ArrayList<>(first.getStates()));
+        int secondInitial = automaton.add(second, new ArrayList<>(second.getStates()));
+        int[] blocks = automaton.refine();
+        return blocks[firstInitial] == blocks[secondInitial];
+    }
+
+    /*
+     * The first state of each block, by block number, putting every other state in merged
+     */
+    private static <StateType> List<StateType> representatives(List<StateType> states, int[] blocks, Map<StateType, StateType> merged) {
+        List<StateType> representatives = new ArrayList<>(Collections.nCopies(states.size(), null));
+        for (int i = 0; i < states.size(); i++) {
+            StateType state = states.get(i);
+            StateType kept = representatives.get(blocks[i]);
+            if (null == kept) {
+                representatives.set(blocks[i], state);
+            } else {
+                merged.put(state, kept);
+            }
+        }
+        return representatives;
+    }
+
+    /*
+     * The states and transitions of one or more definitions, as int arrays. States are numbered in
+     * getStates() order, one definition after the other; each transition gets the id of its Label
+     */
+    private static final class Automaton {
+        private final int stateCount;
+        private int added;
+        private final HashMap<Object, Integer> indexes = new HashMap<>();
+        private final HashMap<Label, Integer> labels = new HashMap<>();
+        private final HashMap<Key, Integer> keys = new HashMap<>();
+        private final int[] keyOf;
+        private int[] tails = new int[16];
+        private int[] heads = new int[16];
+        private int[] labelOf = new int[16];
+        private int edges;
+        // per transition of the last definition added, whether an earlier candidate has its guard
+        boolean[] shadowed;
+
+        Automaton(int stateCount) {
+            this.stateCount = stateCount;
+            this.keyOf = new int[stateCount];
+        }
+
+        // the number of a state of the last definition added
+        int index(Object state) {
+            return indexes.get(state);
+        }
+
+        /*
+         * Adds the states and transitions of a definition, returning the number of its initial state
+         */
+        <StateType extends State<Context>, Event, Context> int add(FsmDefinition<StateType, Event, Context> definition, List<StateType> states) {
+            int base = added;
+            indexes.clear();
+            for (int i = 0; i < states.size(); i++) {
+                indexes.put(states.get(i), i);
+            }
+            Set<StateType> nested = definition.parents().keySet();
+            List<Transition<StateType, Event, Context>> all = definition.getTransitions();
+            shadowed = new boolean[all.size()];
+            int[][] outgoing = new int[states.size()][];
+            int[] outCount = new int[states.size()];
+            Transition<StateType, Event, Context> cell = null;
+            int position = 0;
+            for (int i = 0; i < all.size(); i++) {
+                Transition<StateType, Event, Context> t = all.get(i);
+                if (null != cell && cell.getFromState().equals(t.getFromState()) && cell.getOnEvent().equals(t.getOnEvent())) {
+                    position++;
+                    for (int j = i - position; j < i && null != t.guard; j++) {
+                        shadowed[i] |= all.get(j).guard == t.guard;
+                    }
+                } else {
+                    cell = t;
+                    position = 0;
+                }
+                int label = labels.computeIfAbsent(new Label(t, position), l -> labels.size());
+                int tail = indexes.get(t.getFromState());
+                if (edges == tails.length) {
+                    tails = Arrays.copyOf(tails, edges * 2);
+                    heads = Arrays.copyOf(heads, edges * 2);
+                    labelOf = Arrays.copyOf(labelOf, edges * 2);
+                }
+                tails[edges] = base + tail;
+                heads[edges] = base + indexes.get(t.getToState());
+                labelOf[edges++] = label;
+                int[] out = outgoing[tail];
+                if (null == out) {
+                    out = outgoing[tail] = new int[4];
+                } else if (outCount[tail] == out.length) {
+                    out = outgoing[tail] = Arrays.copyOf(out, out.length * 2);
+                }
+                out[outCount[tail]++] = label;
+            }
+            for (int i = 0; i < states.size(); i++) {
+                StateType state = states.get(i);
+                int[] out = null == outgoing[i] ? new int[0] : Arrays.copyOf(outgoing[i], outCount[i]);
+                Arrays.sort(out);
+                Object identity = nested.contains(state) || FsmDefinition.overridesAnyHook(state) ? state : null;
+                keyOf[base + i] = keys.computeIfAbsent(new Key(identity, out), k -> keys.size());
+            }
+            added += states.size();
+            return base + indexes.get(definition.getInitialState());
+        }
+
+        /*
+         * Returns the block of each state. States are in the same block exactly when they are
+         * equivalent
+         */
+        int[] refine() {
+            Partition blocks = new Partition(stateCount);
+            // the initial blocks: states with the same identity key and outgoing labels
+            int[] byKey = sortedBy(keyOf, stateCount, keys.size());
+            for (int i = 0; i < stateCount;) {
+                int key = keyOf[byKey[i]];
+                int j = i;
+                for (; j < stateCount && keyOf[byKey[j]] == key; j++) {
+                    blocks.mark(byKey[j]);
+                }
+                blocks.split();
+                i = j;
+            }
+            // the initial cords: transitions with the same label
+            Partition cords = new Partition(edges);
+            int[] byLabel = sortedBy(labelOf, edges, labels.size());
+            for (int i = 0; i < edges;) {
+                int label = labelOf[byLabel[i]];
+                int j = i;
+                for (; j < edges && labelOf[byLabel[j]] == label; j++) {
+                    cords.mark(byLabel[j]);
+                }
+                cords.split();
+                i = j;
+            }
+            // the transitions into each state
+            int[] inOffsets = new int[stateCount + 1];
+            for (int e = 0; e < edges; e++) {
+                inOffsets[heads[e] + 1]++;
+            }
+            for (int s = 0; s < stateCount; s++) {
+                inOffsets[s + 1] += inOffsets[s];
+            }
+            int[] incoming = new int[edges];
+            int[] fill = Arrays.copyOf(inOffsets, stateCount);
+            for (int e = 0; e < edges; e++) {
+                incoming[fill[heads[e]]++] = e;
+            }
+
+            int block = 1;
+            for (int cord = 0; cord < cords.count; cord++) {
+                for (int i = cords.first[cord]; i < cords.past[cord]; i++) {
+                    blocks.mark(tails[cords.elements[i]]);
+                }
+                blocks.split();
+                for (; block < blocks.count; block++) {
+                    for (int i = blocks.first[block]; i < blocks.past[block]; i++) {
+                        int state = blocks.elements[i];
+                        for (int j = inOffsets[state]; j < inOffsets[state + 1]; j++) {
+                            cords.mark(incoming[j]);
+                        }
+                    }
+                    cords.split();
+                }
+            }
+            return Arrays.copyOf(blocks.setOf, stateCount);
+        }
+
+        /*
+         * A counting sort of 0..size-1 by their values, which are below bound
+         */
+        private static int[] sortedBy(int[] values, int size, int bound) {
+            int[] starts = new int[bound + 1];
+            for (int i = 0; i < size; i++) {
+                starts[values[i] + 1]++;
+            }
+            for (int v = 0; v < bound; v++) {
+                starts[v + 1] += starts[v];
+            }
+            int[] sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                sorted[starts[values[i]]++] = i;
+            }
+            return sorted;
+        }
+    }
+
+    /*
+     * A refinable partition of 0..size-1. Each set is a range first..past of elements; mark moves
+     * an element to the front of its set, and split splits every set with marked elements into
+     * the marked and unmarked ones, giving the smaller part a new set number
+     */
+    private static final class Partition {
+        final int[] elements;
+        final int[] location;
+        final int[] setOf;
+        final int[] first;
+        final int[] past;
+        private final int[] marked;
+        private final int[] touched;
+        private int touchedCount;
+        int count;
+
+        Partition(int size) {
+            elements = new int[size];
+            location = new int[size];
+            setOf = new int[size];
+            first = new int[Math.max(1, size)];
+            past = new int[Math.max(1, size)];
+            marked = new int[Math.max(1, size)];
+            touched = new int[Math.max(1, size)];
+            for (int i = 0; i < size; i++) {
+                elements[i] = i;
+                location[i] = i;
+            }
+            count = size > 0 ? 1 : 0;
+            past[0] = size;
+        }
+
+        void mark(int element) {
+            int set = setOf[element];
+            int from = location[element];
+            int to = first[set] + marked[set];
+            elements[from] = elements[to];
+            location[elements[from]] = from;
+            elements[to] = element;
+            location[element] = to;
+            if (marked[set]++ == 0) {
+                touched[touchedCount++] = set;
+            }
+        }
+
+        void split() {
+            while (touchedCount > 0) {
+                int set = touched[--touchedCount];
+                int boundary = first[set] + marked[set];
+                if (boundary == past[set]) {
+                    marked[set] = 0;
+                    continue;
+                }
+                if (marked[set] <= past[set] - boundary) {
+                    first[count] = first[set];
+                    past[count] = boundary;
+                    first[set] = boundary;
+                } else {
+                    past[count] = past[set];
+                    first[count] = boundary;
+                    past[set] = boundary;
+                }
+                for (int i = first[count]; i < past[count]; i++) {
+                    setOf[elements[i]] = count;
+                }
+                marked[set] = 0;
+                marked[count] = 0;
+                count++;
+            }
+        }
+    }
+
+    /*
+     * What a transition does, apart from where it leads: its event, its place among the candidates
+     * of its cell, its action, guard and timeout, and the hooks it runs
+     */
+    private static final class Label {
+        private final Object event;
+        private final int position;
+        private final Object action;
+        private final Object asyncAction;
+        private final Object guard;
+        private final Duration timeout;
+        private final State<?>[] exits;
+        private final State<?>[] entries;
+        private final int hash;
+
+        Label(Transition<?, ?, ?> t, int position) {
+            this.event = t.getOnEvent();
+            this.position = position;
+            this.action = t.getTransitionFunc().orElse(null);
+            this.asyncAction = t.getAsyncTransitionFunc().orElse(null);
+            this.guard = t.guard;
+            this.timeout = t.timeout;
+            this.exits = t.exits;
+            this.entries = t.entries;
+            this.hash = Objects.hash(event, position, System.identityHashCode(action), System.identityHashCode(asyncAction), System.identityHashCode(guard), timeout, Arrays.hashCode(exits), Arrays.hashCode(entries));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Label)) {
+                return false;
+            }
+            Label other = (Label) obj;
+            return hash == other.hash && position == other.position && action == other.action && asyncAction == other.asyncAction && guard == other.guard && event.equals(other.event) && Objects.equals(timeout, other.timeout) && Arrays.equals(exits, other.exits) && Arrays.equals(entries, other.entries);
+        }
+    }
+
+    /*
+     * What sets a state apart before its transitions' targets are looked at: itself, when its hooks
+     * make it observable, and the labels of its transitions
+     */
+    private static final class Key {
+        private final Object identity;
+        private final int[] labels;
+        private final int hash;
+
+        Key(Object identity, int[] labels) {
+            this.identity = identity;
+            this.labels = labels;
+            this.hash = 31 * Objects.hashCode(identity) + Arrays.hashCode(labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Objects.equals(identity, other.identity) && Arrays.equals(labels, other.labels);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.gunnargissel.spuhn;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * The current states of many instances of one FsmDefinition, held in a single primitive column
+ * instead of one object per instance. Instances are addressed by their index in the store, from 0 to
+ * size() - 1. A definition of up to 256 states takes one byte per instance, and up to 65536 states
+ * two bytes.
+ *
+ * Both the states and the events of the definition must be enums. The transition table is
+ * flattened into an int array indexed by state and event ordinal, so firing an event is an array
+ * read and an array write. Cells with guarded transitions evaluate their guards against the store's
+ * Context, under either HookPolicy.
+ *
+ * Under HookPolicy.RUN every instance shares one Context, which is passed into transition actions
+ * and entry hooks; under HookPolicy.SKIP no hooks run at all, and the store only tracks states. A
+ * bulk store does not report to an FsmMetricsListener and cannot be attached to an FsmJournal.
+ *
+ * A bulk store is not thread safe, but fireParallel spreads one batch of events over the threads of
+ * a ForkJoinPool itself. Use FsmDefinition.newBulkStore(int, Context, HookPolicy) to create one.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            An enum of all the possible states of the instances
+ * @param <Event>
+ *            An enum of all the possible events that trigger transitions between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context
+ */
+public class FsmBulkStore<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides whether firing events at a bulk store runs transition and entry hooks
+     */
+    public enum HookPolicy {
+        /**
+         * Each transition's action and its end state's entry hook run, with the store's Context
+         */
+        RUN,
+        /**
+         * Only the states change
+         */
+        SKIP
+    }
+
+    // batches smaller than this are not worth splitting between threads
+    private static final int MIN_PARALLEL_EVENTS = 1 << 14;
+    private static final int GUARDED = -2;
+
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final Context ctx;
+    private final HookPolicy policy;
+    private final StateType[] stateByOrdinal;
+    private final Event[] eventByOrdinal;
+    private final int eventCount;
+    private final int initialOrdinal;
+    /*
+     * next[state ordinal * eventCount + event ordinal] is the ordinal of the state the event leads
+     * to, -1 when there is no transition, or GUARDED when the guards of the candidates must be
+     * evaluated. transitions holds the matching Transition, or the head of the candidates
+     */
+    private final int[] next;
+    private final Transition<StateType, Event, Context>[] transitions;
+    // exactly one of the columns is used, depending on the number of states
+    private final byte[] bytes;
+    private final short[] shorts;
+
+    /**
+     * Constructor for FsmBulkStore
+     *
+     * @param definition
+     *            the shared definition of the instances
+     * @param size
+     *            the number of instances
+     * @param ctx
+     *            a Context shared by every instance
+     * @param policy
+     *            whether transition and entry hooks run
+     * @throws FiniteStateMachineException
+     *             when the states or events of the definition are not enums
+     */
+    @SuppressWarnings("unchecked")
+    protected FsmBulkStore(FsmDefinition<StateType, Event, Context> definition, int size, Context ctx, HookPolicy policy) {
+        Objects.requireNonNull(definition);
+        Objects.requireNonNull(policy);
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        }
+        Transition<StateType, Event, Context>[][] table = definition.compiledTable();
+        if (null == table) {
+            throw new FiniteStateMachineException("A bulk store needs a definition whose states and events are enums", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        this.definition = definition;
+        this.ctx = ctx;
+        this.policy = policy;
+        stateByOrdinal = (StateType[]) ((Enum<?>) definition.getInitialState()).getDeclaringClass().getEnumConstants();
+        eventCount = table[0].length;
+        eventByOrdinal = (Event[]) ((Enum<?>) definition.getEvents().iterator().next()).getDeclaringClass().getEnumConstants();
+        initialOrdinal = ((Enum<?>) definition.getInitialState()).ordinal();
+        next = new int[table.length * eventCount];
+        transitions = new Transition[next.length];
+        for (int state = 0; state < table.length; state++) {
+            for (int event = 0; event < eventCount; event++) {
+                Transition<StateType, Event, Context> t = table[state][event];
+                next[state * eventCount + event] = null == t ? -1 : null != t.candidates ? GUARDED : ((Enum<?>) t.getToState()).ordinal();
+                transitions[state * eventCount + event] = t;
+            }
+        }
+        if (stateByOrdinal.length <= 0x100) {
+            bytes = new byte[size];
+            shorts = null;
+            Arrays.fill(bytes, (byte) initialOrdinal);
+        } else if (stateByOrdinal.length <= 0x10000) {
+            bytes = null;
+            shorts = new short[size];
+            Arrays.fill(shorts, (short) initialOrdinal);
+        } else {
+            throw new FiniteStateMachineException("A bulk store holds at most 65536 states, found " + stateByOrdinal.length, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+    }
+
+    private int ordinalAt(int instance) {
+        return null != bytes ? bytes[instance] & 0xff : shorts[instance] & 0xffff;
+    }
+
+    /*
+     * Evaluates the guards of a cell whose next entry is GUARDED, returning the chosen transition or
+     * null
+     */
+    private Transition<StateType, Event, Context> guarded(int cell) {
+        return definition.findTransition(stateByOrdinal[cell / eventCount], eventByOrdinal[cell % eventCount], ctx);
+    }
+
+    /*
+     * The ordinal a cell leads to, evaluating guards when needed, or -1 when the event is rejected
+     */
+    private int target(int cell, int to) {
+        if (to != GUARDED) {
+            return to;
+        }
+        Transition<StateType, Event, Context> transition = guarded(cell);
+        return null == transition ? -1 : ((Enum<?>) transition.getToState()).ordinal();
+    }
+
+    private void setOrdinal(int instance, int ordinal) {
+        if (null != bytes) {
+            bytes[instance] = (byte) ordinal;
+        } else {
+            shorts[instance] = (short) ordinal;
+        }
+    }
+
+    /**
+     * Fire an event that causes one instance to transition from its current state to a new state
+     *
+     * @param instance
+     *            the index of the instance in this store
+     * @param event
+     *            an event corresponding to a transition from the instance's current state
+     * @throws FiniteStateMachineException
+     *             when there is not a transition from the instance's current state, or the event
+     *             being fired is not registered with this store's definition
+     */
+    public void fire(int instance, Event event) throws FiniteStateMachineException {
+        int from = ordinalAt(instance);
+        int cell = from * eventCount + ((Enum<?>) event).ordinal();
+        int to = next[cell];
+        Transition<StateType, Event, Context> transition = transitions[cell];
+        if (to == GUARDED) {
+            transition = guarded(cell);
+            to = null == transition ? -1 : ((Enum<?>) transition.getToState()).ordinal();
+        }
+        if (to < 0) {
+            throw definition.noTransition(stateByOrdinal[from], event, ctx);
+        }
+        if (policy == HookPolicy.RUN) {
+            transition.runExitHooks(ctx);
+            transition.transit(ctx);
+            setOrdinal(instance, to);
+            transition.runEntryHooks(ctx);
+        } else {
+            setOrdinal(instance, to);
+        }
+    }
+
+    /**
+     * Fire a batch of events, each at its own instance, in order. An event without a transition
+     * from its instance's current state is skipped, and leaves the instance in its state
+     *
+     * @param instances
+     *            the index in this store of the instance each event is fired at
+     * @param events
+     *            the events to fire, as long as instances
+     * @return the number of events skipped because they had no transition
+     */
+    public int fireBatch(int[] instances, Event[] events) {
+        if (instances.length != events.length) {
+            throw new IllegalArgumentException("instances and events must have the same length, found " + instances.length + " and " + events.length);
+        }
+        if (policy == HookPolicy.RUN) {
+            return fireBatchWithHooks(instances, events);
+        }
+        int[] next = this.next;
+        int eventCount = this.eventCount;
+        int rejected = 0;
+        if (null != bytes) {
+            byte[] column = bytes;
+            for (int i = 0; i < instances.length; i++) {
+                int instance = instances[i];
+                int cell = (column[instance] & 0xff) * eventCount + ((Enum<?>) events[i]).ordinal();
+                int to = next[cell];
+                if (to < 0 && (to = target(cell, to)) < 0) {
+                    rejected++;
+                } else {
+                    column[instance] = (byte) to;
+                }
+            }
+        } else {
+            short[] column = shorts;
+            for (int i = 0; i < instances.length; i++) {
+                int instance = instances[i];
+                int cell = (column[instance] & 0xffff) * eventCount + ((Enum<?>) events[i]).ordinal();
+                int to = next[cell];
+                if (to < 0 && (to = target(cell, to)) < 0) {
+                    rejected++;
+                } else {
+                    column[instance] = (short) to;
+                }
+            }
+        }
+        return rejected;
+    }
+
+    private int fireBatchWithHooks(int[] instances, Event[] events) {
+        int rejected = 0;
+        for (int i = 0; i < instances.length; i++) {
+            int cell = ordinalAt(instances[i]) * eventCount + ((Enum<?>) events[i]).ordinal();
+            int to = next[cell];
+            Transition<StateType, Event, Context> transition = transitions[cell];
+            if (to == GUARDED) {
+                transition = guarded(cell);
+                to = null == transition ? -1 : ((Enum<?>) transition.getToState()).ordinal();
+            }
+            if (to < 0) {
+                rejected++;
+                continue;
+            }
+            transition.runExitHooks(ctx);
+            transition.transit(ctx);
+            setOrdinal(instances[i], to);
+            transition.runEntryHooks(ctx);
+        }
+        return rejected;
+    }
+
+    /**
+     * Fire a batch of events in parallel on the common ForkJoinPool. See
+     * fireParallel(int[], Object[], ForkJoinPool)
+     *
+     * @param instances
+     *            the index in this store of the instance each event is fired at
+     * @param events
+     *            the events to fire, as long as instances
+     * @return the applied and rejected event counts, and the number of instances in each state
+     */
+    public BulkResult<StateType> fireParallel(int[] instances, Event[] events) {
+        return fireParallel(instances, events, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Fire a batch of events in parallel. The instances of this store are split into contiguous
+     * ranges, and the events for each range are applied by one task, so the events fired at any one
+     * instance are applied in batch order, while different ranges are processed on different
+     * threads. As with fireBatch, an event without a transition is skipped.
+     *
+     * The events are first partitioned by range, in parallel, with a stable counting sort. Under
+     * HookPolicy.RUN hooks, and under either policy guards, run on the pool's threads at the same
+     * time, so the store's Context must be thread safe. Nothing else may use this store until the call returns
+     *
+     * @param instances
+     *            the index in this store of the instance each event is fired at
+     * @param events
+     *            the events to fire, as long as instances
+     * @param pool
+     *            the pool the work is split over
+     * @return the applied and rejected event counts, and the number of instances in each state
+     * @throws IndexOutOfBoundsException
+     *             when an instance index is not in this store, in which case no event is applied
+     */
+    public BulkResult<StateType> fireParallel(int[] instances, Event[] events, ForkJoinPool pool) {
+        if (instances.length != events.length) {
+            throw new IllegalArgumentException("instances and events must have the same length, found " + instances.length + " and " + events.length);
+        }
+        int size = size();
+        // checked up front, since a bad index would land in another range's slots of the sort, or
+        // throw once other ranges have already been applied
+        for (int i = 0; i < instances.length; i++) {
+            if (instances[i] < 0 || instances[i] >= size) {
+                throw new IndexOutOfBoundsException("Instance index: " + instances[i] + ", size: " + size);
+            }
+            Objects.requireNonNull(events[i]);
+        }
+        int tasks = Math.max(1, Math.min(pool.getParallelism() * 4, Math.min(size, instances.length / MIN_PARALLEL_EVENTS)));
+        int rangeSize = Math.max(1, (size + tasks - 1) / tasks);
+        int ranges = Math.max(1, (size + rangeSize - 1) / rangeSize);
+        int chunkSize = (instances.length + tasks - 1) / Math.max(1, tasks);
+
+        // counts[chunk][range] becomes the offset where the chunk's events for the range go
+        int[][] counts = new int[tasks][ranges + 1];
+        run(pool, tasks, chunk -> {
+            int[] chunkCounts = counts[chunk];
+            for (int i = chunk * chunkSize, end = Math.min(instances.length, i + chunkSize); i < end; i++) {
+                chunkCounts[instances[i] / rangeSize]++;
+            }
+        });
+        int[] rangeStarts = new int[ranges + 1];
+        int offset = 0;
+        for (int range = 0; range < ranges; range++) {
+            rangeStarts[range] = offset;
+            for (int chunk = 0; chunk < tasks; chunk++) {
+                int count = counts[chunk][range];
+                counts[chunk][range] = offset;
+                offset += count;
+            }
+        }
+        rangeStarts[ranges] = offset;
+
+        int[] sortedInstances = new int[instances.length];
+        int[] sortedCells = new int[instances.length];
+        run(pool, tasks, chunk -> {
+            int[] offsets = counts[chunk];
+            for (int i = chunk * chunkSize, end = Math.min(instances.length, i + chunkSize); i < end; i++) {
+                int at = offsets[instances[i] / rangeSize]++;
+                sortedInstances[at] = instances[i];
+                sortedCells[at] = ((Enum<?>) events[i]).ordinal();
+            }
+        });
+
+        long[] rejected = new long[ranges];
+        long[][] stateCounts = new long[ranges][stateByOrdinal.length];
+        run(pool, ranges, range -> {
+            rejected[range] = apply(sortedInstances, sortedCells, rangeStarts[range], rangeStarts[range + 1]);
+            long[] rangeCounts = stateCounts[range];
+            for (int instance = range * rangeSize, end = Math.min(size, instance + rangeSize); instance < end; instance++) {
+                rangeCounts[ordinalAt(instance)]++;
+            }
+        });
+
+        long totalRejected = 0;
+        long[] totalCounts = new long[stateByOrdinal.length];
+        for (int range = 0; range < ranges; range++) {
+            totalRejected += rejected[range];
+            for (int state = 0; state < totalCounts.length; state++) {
+                totalCounts[state] += stateCounts[range][state];
+            }
+        }
+        return new BulkResult<>(instances.length - totalRejected, totalRejected, totalCounts);
+    }
+
+    /*
+     * Applies events given as instance indexes and event ordinals, from index start to end
+     */
+    private int apply(int[] instances, int[] eventOrdinals, int start, int end) {
+        int rejected = 0;
+        for (int i = start; i < end; i++) {
+            int instance = instances[i];
+            int cell = ordinalAt(instance) * eventCount + eventOrdinals[i];
+            int to = next[cell];
+            Transition<StateType, Event, Context> transition = transitions[cell];
+            if (to == GUARDED) {
+                transition = guarded(cell);
+                to = null == transition ? -1 : ((Enum<?>) transition.getToState()).ordinal();
+            }
+            if (to < 0) {
+                rejected++;
+            } else if (policy == HookPolicy.RUN) {
+                transition.runExitHooks(ctx);
+                transition.transit(ctx);
+                setOrdinal(instance, to);
+                transition.runEntryHooks(ctx);
+            } else {
+                setOrdinal(instance, to);
+            }
+        }
+        return rejected;
+    }
+
+    /*
+     * Runs task(0) to task(count - 1) on the pool, and waits for all of them
+     */
+    private static void run(ForkJoinPool pool, int count, IntConsumer task) {
+        if (count == 1) {
+            task.accept(0);
+            return;
+        }
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+                for (int i = 0; i < count; i++) {
+                    int index = i;
+                    tasks[i] = ForkJoinTask.adapt(() -> task.accept(index));
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * @param instance
+     *            the index of an instance in this store
+     * @return the state the instance is currently in
+     */
+    public StateType getState(int instance) {
+        return stateByOrdinal[ordinalAt(instance)];
+    }
+
+    /**
+     * Puts an instance in a state without running any hooks, for instance when restoring it from a
+     * snapshot
+     *
+     * @param instance
+     *            the index of an instance in this store
+     * @param state
+     *            a state of this store's definition
+     */
+    public void setState(int instance, StateType state) {
+        if (!definition.getStates().contains(state)) {
+            throw new FiniteStateMachineException("invalid state: " + state + " not found in internal states", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        setOrdinal(instance, ((Enum<?>) state).ordinal());
+    }
+
+    /**
+     * Resets every instance in this store to the initial state of its definition
+     */
+    public void initialize() {
+        if (null != bytes) {
+            Arrays.fill(bytes, (byte) initialOrdinal);
+        } else {
+            Arrays.fill(shorts, (short) initialOrdinal);
+        }
+    }
+
+    /**
+     * @return the number of instances in this store
+     */
+    public int size() {
+        return null != bytes ? bytes.length : shorts.length;
+    }
+
+    /**
+     * @return the HookPolicy of this store
+     */
+    public HookPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the shared definition of the instances in this store
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return definition;
+    }
+}
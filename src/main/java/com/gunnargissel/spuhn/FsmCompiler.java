@@ -0,0 +1,223 @@
+package com.gunnargissel.spuhn;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Compiles an FsmDefinition into a dispatcher specialized for it: a tree of MethodHandles that
+ * branches on the ordinal of the current state and of the event, and whose leaves run the exit
+ * hooks, action, commit and entry hooks of one transition, with every hook, action and guard bound
+ * as a constant. Held in a static final field, the dispatcher is a constant to the JIT, which can
+ * then inline the whole tree into the caller, hooks and actions included, instead of going through
+ * the table lookup and the call sites FsmInstance.fire shares between every machine.
+ *
+ * <pre>
+ * static final MethodHandle FIRE = FsmCompiler.compile(definition);
+ * ...
+ * FsmCompiler.fire(FIRE, instance, event);
+ * </pre>
+ *
+ * A dispatcher behaves as FsmInstance.fire does, and calls it wherever the tree has no answer of
+ * its own: for events without a transition or whose guards all fail, which fire then rejects, for
+ * events raised while the instance is already dispatching, and for instances of other definitions.
+ * Only definitions whose states and events are enums, without an FsmMetricsListener, are compiled;
+ * for any other, and for cells under GuardPolicy.EXCLUSIVE, the dispatcher is fire itself.
+ * Asynchronous actions are joined on the calling thread, as fire does.
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmCompiler {
+
+    private static final MethodHandle FIRE;
+    private static final MethodHandle READY;
+    private static final MethodHandle STATE_ORDINAL;
+    private static final MethodHandle EVENT_ORDINAL;
+    private static final MethodHandle BELOW;
+    private static final MethodHandle CONTEXT;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle END;
+    private static final MethodHandle ABORT;
+    private static final MethodHandle ACCEPT;
+    private static final MethodHandle TEST;
+    private static final MethodHandle TRANSIT;
+    private static final MethodHandle EXIT;
+    private static final MethodHandle ENTER;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FIRE = lookup.findVirtual(FsmInstance.class, "fire", MethodType.methodType(void.class, Object.class));
+            READY = lookup.findVirtual(FsmInstance.class, "compiledReady", MethodType.methodType(boolean.class, FsmDefinition.class));
+            STATE_ORDINAL = lookup.findVirtual(FsmInstance.class, "stateOrdinal", MethodType.methodType(int.class));
+            EVENT_ORDINAL = lookup.findStatic(FsmCompiler.class, "eventOrdinal", MethodType.methodType(int.class, Class.class, Object.class));
+            BELOW = lookup.findStatic(FsmCompiler.class, "below", MethodType.methodType(boolean.class, int.class, int.class));
+            CONTEXT = lookup.findVirtual(FsmInstance.class, "context", MethodType.methodType(Object.class));
+            BEGIN = lookup.findVirtual(FsmInstance.class, "beginCompiled", MethodType.methodType(void.class, Object.class, Transition.class));
+            COMMIT = lookup.findVirtual(FsmInstance.class, "commitCompiled", MethodType.methodType(void.class, Transition.class));
+            END = lookup.findVirtual(FsmInstance.class, "endCompiled", MethodType.methodType(void.class));
+            ABORT = lookup.findStatic(FsmCompiler.class, "abort", MethodType.methodType(void.class, Throwable.class, FsmInstance.class));
+            ACCEPT = lookup.findVirtual(Consumer.class, "accept", MethodType.methodType(void.class, Object.class));
+            TEST = lookup.findVirtual(Predicate.class, "test", MethodType.methodType(boolean.class, Object.class));
+            TRANSIT = lookup.findVirtual(Transition.class, "transit", MethodType.methodType(void.class, Object.class));
+            EXIT = lookup.findVirtual(State.class, "exit", MethodType.methodType(void.class, Object.class));
+            ENTER = lookup.findVirtual(State.class, "enter", MethodType.methodType(void.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private FsmCompiler() {
+    }
+
+    /**
+     * Compiles a dispatcher for a definition
+     *
+     * @param definition
+     *            the definition to compile
+     * @return a MethodHandle of type (FsmInstance, Object)void that fires an event at an instance
+     */
+    public static MethodHandle compile(FsmDefinition<?, ?, ?> definition) {
+        Objects.requireNonNull(definition);
+        Transition<?, ?, ?>[][] table = definition.compiledTable();
+        if (null == table || null != definition.metrics) {
+            return FIRE;
+        }
+        // (int state, int event, FsmInstance, Object)void
+        MethodHandle states = stateTree(definition, table, 0, table.length);
+        // (int event, FsmInstance, Object)void
+        MethodHandle dispatch = MethodHandles.foldArguments(states, MethodHandles.dropArguments(STATE_ORDINAL, 0, int.class));
+        dispatch = MethodHandles.foldArguments(dispatch, MethodHandles.dropArguments(EVENT_ORDINAL.bindTo(definition.eventEnum()), 0, FsmInstance.class));
+        return MethodHandles.guardWithTest(MethodHandles.insertArguments(READY, 1, definition), dispatch, FIRE);
+    }
+
+    /**
+     * Fires an event at an instance through a dispatcher from compile. Keep the dispatcher in a
+     * static final field, so the JIT can inline it
+     *
+     * @param dispatcher
+     *            the dispatcher compiled for the instance's definition
+     * @param instance
+     *            the instance to fire the event at
+     * @param event
+     *            the event to fire
+     * @throws FiniteStateMachineException
+     *             as FsmInstance.fire does
+     */
+    public static <Event> void fire(MethodHandle dispatcher, FsmInstance<?, Event, ?> instance, Event event) {
+        try {
+            dispatcher.invokeExact((FsmInstance) instance, (Object) event);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Binary search on the state ordinal, down to the event tree of each state
+     */
+    private static MethodHandle stateTree(FsmDefinition<?, ?, ?> definition, Transition<?, ?, ?>[][] table, int from, int to) {
+        if (to - from == 1) {
+            Transition<?, ?, ?>[] row = table[from];
+            boolean any = false;
+            for (Transition<?, ?, ?> t : row) {
+                any |= null != t;
+            }
+            MethodHandle events = any ? eventTree(definition, row, -1, row.length) : MethodHandles.dropArguments(FIRE, 0, int.class);
+            return MethodHandles.dropArguments(events, 0, int.class);
+        }
+        int middle = (from + to) >>> 1;
+        return MethodHandles.guardWithTest(MethodHandles.insertArguments(BELOW, 1, middle), stateTree(definition, table, from, middle), stateTree(definition, table, middle, to));
+    }
+
+    /*
+     * Binary search on the event ordinal, which is -1 for events of another type
+     */
+    private static MethodHandle eventTree(FsmDefinition<?, ?, ?> definition, Transition<?, ?, ?>[] row, int from, int to) {
+        if (to - from == 1) {
+            MethodHandle leaf = from < 0 || null == row[from] ? FIRE : cell(definition, row[from]);
+            return MethodHandles.dropArguments(leaf, 0, int.class);
+        }
+        int middle = (from + to) >>> 1;
+        return MethodHandles.guardWithTest(MethodHandles.insertArguments(BELOW, 1, middle), eventTree(definition, row, from, middle), eventTree(definition, row, middle, to));
+    }
+
+    /*
+     * Tries the guards of a cell in order, falling back to fire when none holds so that it rejects
+     * the event
+     */
+    private static MethodHandle cell(FsmDefinition<?, ?, ?> definition, Transition<?, ?, ?> head) {
+        if (null == head.candidates) {
+            return take(head);
+        }
+        if (definition.getGuardPolicy() != FsmDefinition.GuardPolicy.FIRST_MATCH) {
+            return FIRE;
+        }
+        MethodHandle next = FIRE;
+        for (int i = head.candidates.length - 1; i >= 0; i--) {
+            Transition<?, ?, ?> candidate = head.candidates[i];
+            if (null == candidate.guard) {
+                next = take(candidate);
+            } else {
+                MethodHandle guard = MethodHandles.filterArguments(TEST.bindTo(candidate.guard), 0, CONTEXT);
+                next = MethodHandles.guardWithTest(guard, take(candidate), next);
+            }
+        }
+        return next;
+    }
+
+    /*
+     * Takes one transition as FsmInstance.run does: exit hooks, action, commit, entry hooks, then
+     * the events they raised, resetting the instance if anything throws
+     */
+    private static MethodHandle take(Transition<?, ?, ?> t) {
+        MethodHandle steps = END;
+        for (int i = t.entries.length - 1; i >= 0; i--) {
+            steps = then(call(ENTER.bindTo(t.entries[i])), steps);
+        }
+        steps = then(MethodHandles.insertArguments(COMMIT, 1, t), steps);
+        if (t.getAsyncTransitionFunc().isPresent()) {
+            steps = then(call(TRANSIT.bindTo(t)), steps);
+        } else if (t.getTransitionFunc().isPresent()) {
+            steps = then(call(ACCEPT.bindTo(t.getTransitionFunc().get())), steps);
+        }
+        for (int i = t.exits.length - 1; i >= 0; i--) {
+            steps = then(call(EXIT.bindTo(t.exits[i])), steps);
+        }
+        steps = MethodHandles.catchException(steps, Throwable.class, ABORT);
+        MethodHandle begin = MethodHandles.insertArguments(BEGIN, 2, t);
+        return MethodHandles.foldArguments(MethodHandles.dropArguments(steps, 1, Object.class), begin);
+    }
+
+    /*
+     * Adapts a (Object ctx)void hook or action to (FsmInstance)void
+     */
+    private static MethodHandle call(MethodHandle onContext) {
+        return MethodHandles.filterArguments(onContext, 0, CONTEXT);
+    }
+
+    /*
+     * Runs first, then rest, on the same instance
+     */
+    private static MethodHandle then(MethodHandle first, MethodHandle rest) {
+        return MethodHandles.foldArguments(rest, first);
+    }
+
+    static int eventOrdinal(Class<?> type, Object event) {
+        return type.isInstance(event) ? ((Enum<?>) event).ordinal() : -1;
+    }
+
+    static boolean below(int ordinal, int bound) {
+        return ordinal < bound;
+    }
+
+    static void abort(Throwable thrown, FsmInstance<?, ?, ?> instance) throws Throwable {
+        instance.abortCompiled();
+        throw thrown;
+    }
+}
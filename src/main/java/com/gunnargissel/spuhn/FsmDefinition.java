@@ -0,0 +1,926 @@
+package com.gunnargissel.spuhn;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.gunnargissel.spuhn.builder.GenericDRFSMTransition;
+
+/**
+ * An immutable description of a finite state machine: its states, events, transition table and
+ * initial state. A definition is validated and compiled once, by the FiniteStateMachineBuilder, and
+ * may then be shared by any number of FsmInstances, each of which only holds its own current state
+ * and context.
+ *
+ * States may be nested: a transition declared from a parent state is inherited by each of its
+ * descendants that does not declare its own transition for the same event. The hierarchy is
+ * flattened when the definition is built, so getStates() only holds the leaf states instances can
+ * be in, and firing an event never walks the parent chain. A transition exits every state from the
+ * current one up to, but not including, the innermost parent it shares with the target, runs its
+ * action, then enters every state from below that parent down to the target. Only the hooks a
+ * state overrides are called.
+ *
+ * A from state and event may have several guarded transitions, which are kept in a flat array in
+ * the table cell and tried in declared order, followed by the unguarded transition, if any. Cells
+ * without guards are looked up exactly as before. The GuardPolicy decides what happens when more
+ * than one guard could hold.
+ *
+ * A state may time out: its timed transitions are taken when an instance attached to an FsmTimer
+ * has been in it for their timeout. Each transition knows the timed transition out of its to state,
+ * so arming a timer on entry needs no lookup.
+ *
+ * Reachability is validated once, when the definition is built: every state must be reachable
+ * from the initial state. Dead-end states, without any outgoing transition, are allowed and are
+ * reported by getSinkStates().
+ *
+ * A definition does not change once it is built, so it is safe to share between threads. Building
+ * it does fill in the package-private fields of the transitions it is given, which link each one
+ * to its index, its guarded alternatives and its hooks, so a transition belongs to the definition
+ * it is given to and may not be given to another.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states of this definition
+ * @param <Event>
+ *            A type enumerating all the possible events that trigger transitions between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context
+ */
+public final class FsmDefinition<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides how the guarded transitions of a from state and event are chosen between
+     */
+    public enum GuardPolicy {
+        /**
+         * Guards are tried in declared order, and the first that holds wins
+         */
+        FIRST_MATCH,
+        /**
+         * At most one guard may hold. Building fails when two transitions of a from state and event
+         * are both unguarded, or share the same guard object. Guards are only compared by identity,
+         * so different predicates that can hold together are not caught when building; firing an
+         * event for which more than one guard holds is rejected with Reason.AMBIGUOUS_GUARDS
+         */
+        EXCLUSIVE
+    }
+
+    private static final Logger logger = Logger.getLogger(FsmDefinition.class.getName());
+    /*
+     * The key is a fromState, and the value is a hashmap where the keys are events for that
+     * fromState and the values are the corresponding transition. You look up a state and you get
+     * all the events for that state with the corresponding transition
+     */
+    private final HashMap<StateType, HashMap<Event, Transition<StateType, Event, Context>>> transitionTable = new HashMap<>();
+    private final Set<StateType> states = new LinkedHashSet<>();
+    private final Set<Event> events = new LinkedHashSet<>();
+    private final StateType initialState;
+    private final Set<StateType> sinkStates;
+    private final GuardPolicy guardPolicy;
+    private final Map<StateType, StateType> parents;
+    // a timed transition out of each state that has a timeout
+    private final Map<StateType, Transition<StateType, Event, Context>> timeouts;
+    /*
+     * When both the state and event types are enums, the transition table is compiled into a dense
+     * array indexed by [state ordinal][event ordinal], and eventEnum holds the enum class of the
+     * events. Both stay null for other types, and lookups use the HashMap transition table instead.
+     */
+    private final Transition<StateType, Event, Context>[][] compiledTable;
+    private final Class<?> eventEnum;
+    private final List<Transition<StateType, Event, Context>> transitionList;
+    // null when no listener is attached, which is checked before any timing work in FsmInstance
+    final FsmMetricsListener metrics;
+    // built on first use, since only definitions whose instances are snapshotted need it
+    private volatile FsmSnapshots.Ids<StateType> snapshotIds;
+
+    /**
+     * Creates, compiles and validates a definition
+     *
+     * @param transitions
+     *            every transition of the definition. A later unguarded transition for the same from
+     *            state and event replaces an earlier one
+     * @param initialState
+     *            the state new instances start in
+     * @param parents
+     *            the parent of each nested state
+     * @param guardPolicy
+     *            how guarded transitions of the same from state and event are chosen between
+     * @param metrics
+     *            the listener instances report transitions and rejections to, or null
+     * @throws FiniteStateMachineException
+     *             when the initial state is not found in the transitions, when some states are not
+     *             reachable from the initial state, when the nesting of states is invalid, or when a
+     *             transition already belongs to another definition
+     */
+    FsmDefinition(Collection<Transition<StateType, Event, Context>> transitions, StateType initialState, Map<StateType, StateType> parents, GuardPolicy guardPolicy, FsmMetricsListener metrics) {
+        Objects.requireNonNull(transitions);
+        Objects.requireNonNull(initialState);
+        Objects.requireNonNull(guardPolicy);
+        checkUnowned(transitions);
+        this.guardPolicy = guardPolicy;
+        this.parents = Collections.unmodifiableMap(new LinkedHashMap<>(parents));
+        if (!parents.isEmpty()) {
+            if (parents.containsValue(initialState)) {
+                throw new FiniteStateMachineException("The initial state may not be a parent state: " + initialState, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+            transitions = flatten(transitions, parents);
+        }
+        // transitions are usually grouped by from state, so the row is only looked up when it changes
+        StateType from = null;
+        HashMap<Event, Transition<StateType, Event, Context>> row = null;
+        for (Transition<StateType, Event, Context> transition : transitions) {
+            if (!transition.getFromState().equals(from)) {
+                from = transition.getFromState();
+                states.add(from);
+                row = transitionTable.computeIfAbsent(from, s -> new LinkedHashMap<>());
+            }
+            states.add(transition.getToState());
+            events.add(transition.getOnEvent());
+            row.compute(transition.getOnEvent(), (e, existing) -> addCandidate(existing, transition));
+        }
+        if (!states.contains(initialState)) {
+            throw new FiniteStateMachineException("invalid initial state: " + initialState + " not found in internal states", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        this.initialState = initialState;
+        Class<?> stateType = commonEnumType(states);
+        Class<?> eventType = commonEnumType(events);
+        if (null == stateType || null == eventType) {
+            compiledTable = null;
+            eventEnum = null;
+        } else {
+            compiledTable = compile(stateType, eventType);
+            eventEnum = eventType;
+        }
+        List<Transition<StateType, Event, Context>> indexed = new ArrayList<>();
+        for (HashMap<Event, Transition<StateType, Event, Context>> eventTransitions : transitionTable.values()) {
+            for (Transition<StateType, Event, Context> head : eventTransitions.values()) {
+                for (Transition<StateType, Event, Context> t : candidatesOf(head)) {
+                    t.index = indexed.size();
+                    indexed.add(t);
+                }
+            }
+        }
+        transitionList = Collections.unmodifiableList(indexed);
+        Map<StateType, Transition<StateType, Event, Context>> timed = timeouts(indexed);
+        for (Transition<StateType, Event, Context> t : indexed) {
+            assignHooks(t, parents);
+            t.timeoutOnEntry = timed.get(t.getToState());
+        }
+        timeouts = timed;
+        sinkStates = validate();
+        this.metrics = metrics;
+        if (null != metrics) {
+            metrics.attached(this);
+        }
+    }
+
+    /**
+     * Creates and compiles a definition from a table that is already flattened and grouped, as
+     * FsmDefinitions.readBinary loads it. The table is not flattened or merged cell by cell again,
+     * but it is checked for everything the other constructor rejects, and validated the same way
+     *
+     * @param transitions
+     *            every transition of the definition, already flattened, with the transitions of
+     *            each from state and event next to each other in the order their guards are tried
+     *            in, and those of each from state next to each other. They are indexed in this order
+     * @param initialState
+     *            the state new instances start in
+     * @param parents
+     *            the parent of each nested state
+     * @param guardPolicy
+     *            how guarded transitions of the same from state and event are chosen between
+     * @param metrics
+     *            the listener instances report transitions and rejections to, or null
+     * @param stateType
+     *            the enum class of the states
+     * @param eventType
+     *            the enum class of the events
+     * @throws FiniteStateMachineException
+     *             when the initial state is not found in the transitions, when some states are not
+     *             reachable from the initial state, when the nesting of states is invalid, or when
+     *             the table is not flattened and grouped as described, or when a transition
+     *             already belongs to another definition
+     */
+    @SuppressWarnings("unchecked")
+    FsmDefinition(List<Transition<StateType, Event, Context>> transitions, StateType initialState, Map<StateType, StateType> parents, GuardPolicy guardPolicy, FsmMetricsListener metrics, Class<?> stateType, Class<?> eventType) {
+        Objects.requireNonNull(transitions);
+        Objects.requireNonNull(initialState);
+        Objects.requireNonNull(guardPolicy);
+        checkUnowned(transitions);
+        this.guardPolicy = guardPolicy;
+        this.parents = Collections.unmodifiableMap(new LinkedHashMap<>(parents));
+        Set<StateType> composites = new HashSet<>(parents.values());
+        if (composites.contains(initialState)) {
+            throw new FiniteStateMachineException("The initial state may not be a parent state: " + initialState, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        checkNesting(parents);
+        this.initialState = initialState;
+        compiledTable = new Transition[stateType.getEnumConstants().length][eventType.getEnumConstants().length];
+        eventEnum = eventType;
+        StateType rowState = null;
+        HashMap<Event, Transition<StateType, Event, Context>> row = null;
+        int count = transitions.size();
+        for (int i = 0; i < count;) {
+            Transition<StateType, Event, Context> head = transitions.get(i);
+            StateType from = head.getFromState();
+            Event event = head.getOnEvent();
+            int end = i + 1;
+            while (end < count && transitions.get(end).getOnEvent().equals(event) && transitions.get(end).getFromState().equals(from)) {
+                end++;
+            }
+            if (!from.equals(rowState)) {
+                rowState = from;
+                states.add(from);
+                row = transitionTable.computeIfAbsent(from, f -> new LinkedHashMap<>());
+            }
+            if (row.containsKey(event)) {
+                throw new FiniteStateMachineException("The transitions from state: " + from + " on event: " + event + " are not next to each other", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+            for (int j = i; j < end; j++) {
+                Transition<StateType, Event, Context> t = transitions.get(j);
+                if (composites.contains(t.getFromState()) || composites.contains(t.getToState())) {
+                    throw new FiniteStateMachineException("Flattened transitions may not begin or end in a parent state: " + t, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+                if (null == t.guard && j != end - 1) {
+                    throw new FiniteStateMachineException("Only the last transition from state: " + from + " on event: " + event + " may be unguarded", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+                for (int k = i; k < j && guardPolicy == GuardPolicy.EXCLUSIVE; k++) {
+                    if (transitions.get(k).guard == t.guard) {
+                        throw new FiniteStateMachineException("The same guard is used twice from state: " + from + " on event: " + event, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                    }
+                }
+            }
+            if (end - i > 1 || null != head.guard) {
+                head.candidates = transitions.subList(i, end).toArray(new Transition[end - i]);
+            }
+            row.put(event, head);
+            events.add(event);
+            compiledTable[((Enum<?>) from).ordinal()][((Enum<?>) event).ordinal()] = head;
+            for (; i < end; i++) {
+                Transition<StateType, Event, Context> t = transitions.get(i);
+                t.index = i;
+                states.add(t.getToState());
+            }
+        }
+        if (!states.contains(initialState)) {
+            throw new FiniteStateMachineException("invalid initial state: " + initialState + " not found in internal states", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        transitionList = Collections.unmodifiableList(transitions);
+        Map<StateType, Transition<StateType, Event, Context>> timed = timeouts(transitions);
+        for (Transition<StateType, Event, Context> t : transitions) {
+            assignHooks(t, parents);
+            t.timeoutOnEntry = timed.get(t.getToState());
+        }
+        timeouts = timed;
+        sinkStates = validate();
+        this.metrics = metrics;
+        if (null != metrics) {
+            metrics.attached(this);
+        }
+    }
+
+    /*
+     * The timed transition out of each state that has one, throwing when the timed transitions of a
+     * state differ in their event or timeout
+     */
+    private static <StateType extends State<Context>, Event, Context> Map<StateType, Transition<StateType, Event, Context>> timeouts(List<Transition<StateType, Event, Context>> transitions) {
+        Map<StateType, Transition<StateType, Event, Context>> timed = new HashMap<>();
+        for (Transition<StateType, Event, Context> t : transitions) {
+            if (null != t.timeout) {
+                Transition<StateType, Event, Context> other = timed.putIfAbsent(t.getFromState(), t);
+                if (null != other && (!other.timeout.equals(t.timeout) || !other.getOnEvent().equals(t.getOnEvent()))) {
+                    throw new FiniteStateMachineException("The timed transitions from state: " + t.getFromState() + " must share their event and timeout", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+            }
+        }
+        return timed;
+    }
+
+    /*
+     * Throws when some transition has already been indexed by another definition, whose instances
+     * rely on the fields this definition would overwrite
+     */
+    private static void checkUnowned(Collection<? extends Transition<?, ?, ?>> transitions) {
+        for (Transition<?, ?, ?> t : transitions) {
+            if (-1 != t.index) {
+                throw new FiniteStateMachineException("The transition: " + t + " already belongs to another definition", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+        }
+    }
+
+    /*
+     * Throws when the parents of some state form a cycle
+     */
+    private static <StateType> void checkNesting(Map<StateType, StateType> parents) {
+        for (StateType state : parents.keySet()) {
+            int depth = 0;
+            for (StateType parent = parents.get(state); null != parent; parent = parents.get(parent)) {
+                if (++depth > parents.size()) {
+                    throw new FiniteStateMachineException("The parents of state " + state + " form a cycle", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+            }
+        }
+    }
+
+    /*
+     * Adds a transition to a table cell, returning the transition the cell holds afterwards
+     */
+    @SuppressWarnings("unchecked")
+    private Transition<StateType, Event, Context> addCandidate(Transition<StateType, Event, Context> existing, Transition<StateType, Event, Context> added) {
+        if (null == existing && null == added.guard) {
+            return added;
+        }
+        List<Transition<StateType, Event, Context>> candidates = new ArrayList<>();
+        if (null != existing) {
+            candidates.addAll(Arrays.asList(candidatesOf(existing)));
+            existing.candidates = null;
+        }
+        if (null == added.guard) {
+            if (candidates.removeIf(c -> null == c.guard) && guardPolicy == GuardPolicy.EXCLUSIVE) {
+                throw new FiniteStateMachineException("More than one unguarded transition from state: " + added.getFromState() + " on event: " + added.getOnEvent(), FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+            candidates.add(added);
+        } else {
+            int fallback = candidates.size();
+            for (int i = 0; i < candidates.size(); i++) {
+                Transition<StateType, Event, Context> c = candidates.get(i);
+                if (null == c.guard) {
+                    fallback = i;
+                } else if (c.guard == added.guard && guardPolicy == GuardPolicy.EXCLUSIVE) {
+                    throw new FiniteStateMachineException("The same guard is used twice from state: " + added.getFromState() + " on event: " + added.getOnEvent(), FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+            }
+            candidates.add(fallback, added);
+        }
+        Transition<StateType, Event, Context> head = candidates.get(0);
+        if (candidates.size() > 1 || null != head.guard) {
+            head.candidates = candidates.toArray(new Transition[candidates.size()]);
+        }
+        return head;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <StateType, Event, Context> Transition<StateType, Event, Context>[] candidatesOf(Transition<StateType, Event, Context> head) {
+        return null == head.candidates ? new Transition[] { head } : head.candidates;
+    }
+
+    /*
+     * Replaces the transitions declared from parent states with a copy for each descendant leaf
+     * state that does not declare a transition for the same event itself or inherit one from a
+     * nearer parent
+     */
+    private static <StateType extends State<Context>, Event, Context> List<Transition<StateType, Event, Context>> flatten(Collection<Transition<StateType, Event, Context>> transitions, Map<StateType, StateType> parents) {
+        Set<StateType> composites = new HashSet<>(parents.values());
+        Map<StateType, LinkedHashMap<Event, List<Transition<StateType, Event, Context>>>> declared = new HashMap<>();
+        Set<StateType> leaves = new LinkedHashSet<>();
+        for (Transition<StateType, Event, Context> t : transitions) {
+            if (composites.contains(t.getToState())) {
+                throw new FiniteStateMachineException("Transitions may not end in a parent state: " + t, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+            declared.computeIfAbsent(t.getFromState(), s -> new LinkedHashMap<>()).computeIfAbsent(t.getOnEvent(), e -> new ArrayList<>()).add(t);
+            leaves.add(t.getFromState());
+            leaves.add(t.getToState());
+        }
+        leaves.addAll(parents.keySet());
+        leaves.removeAll(composites);
+        List<Transition<StateType, Event, Context>> flat = new ArrayList<>(transitions.size());
+        for (StateType leaf : leaves) {
+            Map<Event, List<Transition<StateType, Event, Context>>> own = declared.getOrDefault(leaf, new LinkedHashMap<>());
+            for (List<Transition<StateType, Event, Context>> candidates : own.values()) {
+                flat.addAll(candidates);
+            }
+            Set<Event> seen = new HashSet<>(own.keySet());
+            int depth = 0;
+            for (StateType parent = parents.get(leaf); null != parent; parent = parents.get(parent)) {
+                if (++depth > parents.size()) {
+                    throw new FiniteStateMachineException("The parents of state " + leaf + " form a cycle", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+                for (List<Transition<StateType, Event, Context>> candidates : declared.getOrDefault(parent, new LinkedHashMap<>()).values()) {
+                    if (seen.add(candidates.get(0).getOnEvent())) {
+                        for (Transition<StateType, Event, Context> t : candidates) {
+                            flat.add(new GenericDRFSMTransition<>(leaf, t.getToState(), t.getOnEvent(), t.getTransitionFunc().orElse(null), t.getAsyncTransitionFunc().orElse(null), t.guard, t.timeout));
+                        }
+                    }
+                }
+            }
+        }
+        return flat;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final State[] NO_STATES = new State[0];
+    private static final int EXIT = 1;
+    private static final int ENTER = 2;
+    private static final int ENTER_ASYNC = 4;
+
+    /*
+     * The hooks each State class overrides, as a mask of EXIT, ENTER and ENTER_ASYNC. Any method of
+     * the hook's name declared outside State, including bridge methods, counts as an override
+     */
+    private static final ClassValue<Integer> OVERRIDDEN_HOOKS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            int hooks = 0;
+            for (Method method : type.getMethods()) {
+                if (method.getDeclaringClass() == State.class || method.getParameterCount() != 1) {
+                    continue;
+                }
+                switch (method.getName()) {
+                case "exit":
+                    hooks |= EXIT;
+                    break;
+                case "enter":
+                    hooks |= ENTER;
+                    break;
+                case "enterAsync":
+                    hooks |= ENTER_ASYNC;
+                    break;
+                default:
+                    break;
+                }
+            }
+            return hooks;
+        }
+    };
+
+    private static boolean overrides(Object state, int hook) {
+        return (OVERRIDDEN_HOOKS.get(state.getClass()) & hook) != 0;
+    }
+
+    static boolean overridesAnyHook(Object state) {
+        return OVERRIDDEN_HOOKS.get(state.getClass()) != 0;
+    }
+
+    /*
+     * Works out the states a transition exits and enters, from its from and to states' parents,
+     * keeping only the states that override the hook
+     */
+    @SuppressWarnings("unchecked")
+    private static <StateType extends State<Context>, Event, Context> void assignHooks(Transition<StateType, Event, Context> t, Map<StateType, StateType> parents) {
+        int targetHooks = OVERRIDDEN_HOOKS.get(t.getToState().getClass());
+        t.asyncEntry = (targetHooks & ENTER_ASYNC) != 0 ? t.getToState() : null;
+        if (parents.isEmpty()) {
+            // without nesting, a transition exits at most its from state and enters its to state
+            t.exits = overrides(t.getFromState(), EXIT) ? new State[] { t.getFromState() } : NO_STATES;
+            t.entries = (targetHooks & ENTER) != 0 ? new State[] { t.getToState() } : NO_STATES;
+            return;
+        }
+        Set<StateType> targetParents = new HashSet<>();
+        for (StateType parent = parents.get(t.getToState()); null != parent; parent = parents.get(parent)) {
+            targetParents.add(parent);
+        }
+        List<State<Context>> exits = new ArrayList<>();
+        StateType shared = null;
+        for (StateType state = t.getFromState(); null != state; state = parents.get(state)) {
+            if (targetParents.contains(state)) {
+                shared = state;
+                break;
+            }
+            if (overrides(state, EXIT)) {
+                exits.add(state);
+            }
+        }
+        List<State<Context>> entries = new ArrayList<>();
+        for (StateType state = t.getToState(); null != state && !state.equals(shared); state = parents.get(state)) {
+            if (overrides(state, ENTER)) {
+                entries.add(state);
+            }
+        }
+        Collections.reverse(entries);
+        t.exits = exits.toArray(new State[exits.size()]);
+        t.entries = entries.toArray(new State[entries.size()]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Transition<StateType, Event, Context>[][] compile(Class<?> stateType, Class<?> eventType) {
+        Transition<StateType, Event, Context>[][] table = new Transition[stateType.getEnumConstants().length][eventType.getEnumConstants().length];
+        for (HashMap<Event, Transition<StateType, Event, Context>> eventTransitions : transitionTable.values()) {
+            for (Transition<StateType, Event, Context> t : eventTransitions.values()) {
+                table[((Enum<?>) t.getFromState()).ordinal()][((Enum<?>) t.getOnEvent()).ordinal()] = t;
+            }
+        }
+        return table;
+    }
+
+    private static Class<?> commonEnumType(Collection<?> values) {
+        Class<?> type = null;
+        for (Object value : values) {
+            if (!(value instanceof Enum)) {
+                return null;
+            }
+            Class<?> declaring = ((Enum<?>) value).getDeclaringClass();
+            if (null == type) {
+                type = declaring;
+            } else if (type != declaring) {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    /*
+     * Walks the states reachable from the initial state breadth first, over a compact adjacency
+     * structure: the targets of state i are targets[offsets[i]] up to targets[offsets[i + 1]]. Runs in
+     * O(V+E) without recursion, so long chains of states cannot overflow the stack. Throws when some
+     * states are unreachable, and returns the states without outgoing transitions.
+     */
+    private Set<StateType> validate() {
+        int stateCount = states.size();
+        List<StateType> byIndex = new ArrayList<>(states);
+        HashMap<StateType, Integer> indexes = new HashMap<>(stateCount * 2);
+        for (int i = 0; i < stateCount; i++) {
+            indexes.put(byIndex.get(i), i);
+        }
+        int[] offsets = new int[stateCount + 1];
+        for (int i = 0; i < stateCount; i++) {
+            HashMap<Event, Transition<StateType, Event, Context>> outgoing = transitionTable.get(byIndex.get(i));
+            int edges = 0;
+            if (null != outgoing) {
+                for (Transition<StateType, Event, Context> head : outgoing.values()) {
+                    edges += null == head.candidates ? 1 : head.candidates.length;
+                }
+            }
+            offsets[i + 1] = offsets[i] + edges;
+        }
+        int[] targets = new int[offsets[stateCount]];
+        for (int i = 0; i < stateCount; i++) {
+            HashMap<Event, Transition<StateType, Event, Context>> outgoing = transitionTable.get(byIndex.get(i));
+            if (null != outgoing) {
+                int edge = offsets[i];
+                for (Transition<StateType, Event, Context> head : outgoing.values()) {
+                    for (Transition<StateType, Event, Context> t : candidatesOf(head)) {
+                        targets[edge++] = indexes.get(t.getToState());
+                    }
+                }
+            }
+        }
+
+        boolean[] reached = new boolean[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        int initial = indexes.get(initialState);
+        reached[initial] = true;
+        queue[tail++] = initial;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int edge = offsets[state]; edge < offsets[state + 1]; edge++) {
+                int target = targets[edge];
+                if (!reached[target]) {
+                    reached[target] = true;
+                    queue[tail++] = target;
+                }
+            }
+        }
+
+        StringBuilder unreachable = new StringBuilder();
+        Set<StateType> sinks = new LinkedHashSet<>();
+        for (int i = 0; i < stateCount; i++) {
+            if (!reached[i]) {
+                if (unreachable.length() > 0) {
+                    unreachable.append(", ");
+                }
+                unreachable.append(byIndex.get(i));
+            }
+            if (offsets[i] == offsets[i + 1]) {
+                sinks.add(byIndex.get(i));
+            }
+        }
+        if (unreachable.length() > 0) {
+            throw new FiniteStateMachineException("The following states are not reachable from the initial state: " + unreachable, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        if (!sinks.isEmpty() && logger.isLoggable(Level.FINE)) {
+            logger.fine("The following states have no outgoing transitions: " + sinks);
+        }
+        return Collections.unmodifiableSet(sinks);
+    }
+
+    /**
+     * Looks up the transition triggered by an event from a state. When the state and event have
+     * guarded transitions, this is the first candidate; use getTransition(state, event, ctx) to
+     * evaluate the guards
+     *
+     * @param state
+     *            the state the transition begins in
+     * @param event
+     *            the event that triggers the transition
+     * @return the transition from state on event
+     * @throws FiniteStateMachineException
+     *             when there is not a transition from the state, or the event is not registered
+     *             with this definition
+     */
+    public Transition<StateType, Event, Context> getTransition(StateType state, Event event) throws FiniteStateMachineException {
+        Transition<StateType, Event, Context> transition = findTransition(state, event);
+        if (null == transition) {
+            throw noTransition(state, event);
+        }
+        return transition;
+    }
+
+    /**
+     * Looks up the transition triggered by an event from a state, evaluating guards against a
+     * Context
+     *
+     * @param state
+     *            the state the transition begins in
+     * @param event
+     *            the event that triggers the transition
+     * @param ctx
+     *            the Context guards are evaluated against
+     * @return the transition from state on event whose guard holds
+     * @throws FiniteStateMachineException
+     *             when there is not a transition from the state, the event is not registered with
+     *             this definition, no guard holds, or more than one guard holds under
+     *             GuardPolicy.EXCLUSIVE
+     */
+    public Transition<StateType, Event, Context> getTransition(StateType state, Event event, Context ctx) throws FiniteStateMachineException {
+        Transition<StateType, Event, Context> transition = findTransition(state, event, ctx);
+        if (null == transition) {
+            throw noTransition(state, event, ctx);
+        }
+        return transition;
+    }
+
+    /**
+     * Looks up the transition triggered by an event from a state, evaluating any guards, without
+     * building an exception when there is none
+     *
+     * @return the transition from state on event, or null when there is none or the guards reject
+     *         the event
+     */
+    Transition<StateType, Event, Context> findTransition(StateType state, Event event, Context ctx) {
+        Transition<StateType, Event, Context> head = findTransition(state, event);
+        return null == head || null == head.candidates ? head : select(head.candidates, ctx);
+    }
+
+    /*
+     * Tries the candidates in order. The unguarded fallback, if any, is last. Returns null when no
+     * guard holds, or when more than one holds under EXCLUSIVE
+     */
+    private Transition<StateType, Event, Context> select(Transition<StateType, Event, Context>[] candidates, Context ctx) {
+        Transition<StateType, Event, Context> chosen = null;
+        for (Transition<StateType, Event, Context> c : candidates) {
+            if (null == c.guard) {
+                return null == chosen ? c : chosen;
+            }
+            if (c.guard.test(ctx)) {
+                if (guardPolicy == GuardPolicy.FIRST_MATCH) {
+                    return c;
+                }
+                if (null != chosen) {
+                    return null;
+                }
+                chosen = c;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Looks up the head of the table cell for an event from a state, without evaluating guards or
+     * building an exception when there is none
+     *
+     * @return the transition from state on event, or null when there is none
+     */
+    Transition<StateType, Event, Context> findTransition(StateType state, Event event) {
+        if (null != compiledTable) {
+            return eventEnum.isInstance(event) ? compiledTable[((Enum<?>) state).ordinal()][((Enum<?>) event).ordinal()] : null;
+        }
+        HashMap<Event, Transition<StateType, Event, Context>> eventTransitions = transitionTable.get(state);
+        return null == eventTransitions ? null : eventTransitions.get(event);
+    }
+
+    /*
+     * The [state ordinal][event ordinal] table, or null when the states or events are not enums
+     */
+    Transition<StateType, Event, Context>[][] compiledTable() {
+        return compiledTable;
+    }
+
+    /*
+     * The enum class of the events when the table is compiled, or null
+     */
+    Class<?> eventEnum() {
+        return eventEnum;
+    }
+
+    FiniteStateMachineException noTransition(StateType state, Event event) {
+        if (!events.contains(event)) {
+            return new FiniteStateMachineException("invalid initial event: " + event + " not found in internal events", FiniteStateMachineException.Reason.UNKNOWN_EVENT);
+        }
+        return new FiniteStateMachineException("No transition exists from current state: " + state + " for the event: " + event, FiniteStateMachineException.Reason.NO_TRANSITION);
+    }
+
+    /*
+     * Explains why findTransition(state, event, ctx) returned null, evaluating the guards again
+     */
+    FiniteStateMachineException noTransition(StateType state, Event event, Context ctx) {
+        Transition<StateType, Event, Context> head = findTransition(state, event);
+        if (null == head || null == head.candidates) {
+            return noTransition(state, event);
+        }
+        int holding = 0;
+        for (Transition<StateType, Event, Context> c : head.candidates) {
+            if (null != c.guard && c.guard.test(ctx)) {
+                holding++;
+            }
+        }
+        if (holding > 1) {
+            return new FiniteStateMachineException("More than one guard holds in current state: " + state + " for the event: " + event, FiniteStateMachineException.Reason.AMBIGUOUS_GUARDS);
+        }
+        return new FiniteStateMachineException("No guard holds in current state: " + state + " for the event: " + event, FiniteStateMachineException.Reason.GUARD_REJECTED);
+    }
+
+    /**
+     * Creates a new instance of this definition, in the initial state. No validation is repeated;
+     * the instance only holds its current state, its context and a reference to this definition
+     *
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @return a new FsmInstance in the initial state
+     */
+    public FsmInstance<StateType, Event, Context> newInstance(Context ctx) {
+        return new FsmInstance<>(this, ctx);
+    }
+
+    /**
+     * Creates a new thread safe instance of this definition, in the initial state
+     *
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @param policy
+     *            decides what happens when events fired from several threads race each other
+     * @return a new ConcurrentFiniteStateMachine in the initial state
+     */
+    public ConcurrentFiniteStateMachine<StateType, Event, Context> newConcurrentInstance(Context ctx, ConcurrentFiniteStateMachine.RacePolicy policy) {
+        return new ConcurrentFiniteStateMachine<>(this, ctx, policy);
+    }
+
+    /**
+     * Creates a new instance of this definition, in the initial state, whose transition actions and
+     * entry hooks may complete asynchronously
+     *
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @param policy
+     *            decides what happens to events fired while a transition is in flight
+     * @return a new AsyncFiniteStateMachine in the initial state
+     */
+    public AsyncFiniteStateMachine<StateType, Event, Context> newAsyncInstance(Context ctx, AsyncFiniteStateMachine.InFlightPolicy policy) {
+        return new AsyncFiniteStateMachine<>(this, ctx, policy);
+    }
+
+    /**
+     * Creates a new instance of this definition, in the initial state, behind a mailbox that
+     * threads submit events to
+     *
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     * @param executor
+     *            the executor that drains the mailbox; it may be shared by many mailboxes
+     * @param capacity
+     *            the most events the mailbox holds before the OverflowPolicy applies
+     * @param policy
+     *            what happens to events submitted while the mailbox is full
+     * @return a new FsmMailbox whose instance is in the initial state
+     */
+    public FsmMailbox<StateType, Event, Context> newMailbox(Context ctx, Executor executor, int capacity, FsmMailbox.OverflowPolicy policy) {
+        return new FsmMailbox<>(newInstance(ctx), executor, capacity, policy);
+    }
+
+    /**
+     * Creates a columnar store of many instances of this definition, all in the initial state. Both
+     * the states and the events of this definition must be enums
+     *
+     * @param size
+     *            the number of instances in the store
+     * @param ctx
+     *            a Context shared by every instance, passed into transitions and entry hooks under
+     *            HookPolicy.RUN
+     * @param policy
+     *            whether the store runs transition and entry hooks
+     * @return a new FsmBulkStore
+     * @throws FiniteStateMachineException
+     *             when the states or events of this definition are not enums
+     */
+    public FsmBulkStore<StateType, Event, Context> newBulkStore(int size, Context ctx, FsmBulkStore.HookPolicy policy) {
+        return new FsmBulkStore<>(this, size, ctx, policy);
+    }
+
+    /*
+     * The parent of each nested state, as declared with the builder
+     */
+    Map<StateType, StateType> parents() {
+        return parents;
+    }
+
+    /*
+     * A timed transition out of a state, or null when the state does not time out
+     */
+    Transition<StateType, Event, Context> timeoutFrom(StateType state) {
+        return timeouts.get(state);
+    }
+
+    /**
+     * @return how guarded transitions of the same from state and event are chosen between
+     */
+    public GuardPolicy getGuardPolicy() {
+        return guardPolicy;
+    }
+
+    /**
+     * @return the state new instances of this definition start in
+     */
+    public StateType getInitialState() {
+        return initialState;
+    }
+
+    /**
+     * @return an unmodifiable view of every state of this definition
+     */
+    public Set<StateType> getStates() {
+        return Collections.unmodifiableSet(states);
+    }
+
+    /**
+     * @return every transition of this definition. A transition's position in this list is the
+     *         transition index reported to an FsmMetricsListener
+     */
+    public List<Transition<StateType, Event, Context>> getTransitions() {
+        return transitionList;
+    }
+
+    /**
+     * A fingerprint of this definition's states, initial state and transitions. Definitions built
+     * from the same states, events and transitions have the same fingerprint, in any JVM; transition
+     * actions and hooks are not part of it. Snapshots can only be restored into a definition with
+     * the fingerprint they were taken from
+     *
+     * @return the fingerprint of this definition
+     * @throws FiniteStateMachineException
+     *             when the states are not enum constants and two of them have the same toString
+     */
+    public long getFingerprint() {
+        return snapshotIds().getFingerprint();
+    }
+
+    FsmSnapshots.Ids<StateType> snapshotIds() {
+        FsmSnapshots.Ids<StateType> ids = snapshotIds;
+        if (null == ids) {
+            ids = new FsmSnapshots.Ids<>(this);
+            snapshotIds = ids;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the dead-end states of this definition: states without any outgoing transition, in
+     *         which an instance stays forever once it enters them
+     */
+    public Set<StateType> getSinkStates() {
+        return sinkStates;
+    }
+
+    /**
+     * @return an unmodifiable view of every event of this definition
+     */
+    public Set<Event> getEvents() {
+        return Collections.unmodifiableSet(events);
+    }
+
+    /*
+     * Whether an event is one of this definition's, without wrapping the set as getEvents() does
+     */
+    boolean hasEvent(Event event) {
+        return events.contains(event);
+    }
+
+    /**
+     * Graphviz dot notation is a notation that can be used to create a graphical representation of
+     * a directed or undirected graph. In the case of a state machine, we have a directed graph.
+     * There are many programs that will display a picture when given dot notation - here's an
+     * online one: http://viz-js.com/
+     *
+     * The edges are listed in transition table order. FsmGraphExport writes sorted DOT, GraphML or
+     * JSON straight to a Writer or channel, which suits large definitions better
+     *
+     * @return a string with a graphviz dot representation of this definition
+     */
+    public String getGraphvizDotRepresentation() {
+        StringBuilder dot = new StringBuilder(16 + 48 * transitionList.size()).append("digraph g {");
+        for (Transition<StateType, Event, Context> t : transitionList) {
+            dot.append('\n').append(t.getFromState()).append(" -> ").append(t.getToState()).append(" [label=\"").append(t.getOnEvent());
+            if (null != t.guard) {
+                dot.append(" [guarded]");
+            }
+            if (null != t.timeout) {
+                dot.append(" after ").append(t.timeout);
+            }
+            dot.append("\"];");
+        }
+        return dot.append("\n}").toString();
+    }
+}
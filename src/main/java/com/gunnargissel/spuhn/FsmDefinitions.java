@@ -0,0 +1,514 @@
+package com.gunnargissel.spuhn;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.gunnargissel.spuhn.builder.GenericDRFSMTransition;
+
+/**
+ * Writes and reads FsmDefinitions, so that a machine can be declared once and loaded wherever it is
+ * used without running a builder chain. States and events must be enum constants, and are bound by
+ * name; actions and guards are bound by name through an FsmActions registry. A definition is written
+ * with its transitions already flattened, sorted by from state, event and the order guards are tried
+ * in, so the same definition always produces the same document.
+ *
+ * The text format is line based. Blank lines and everything after a '#' are ignored, and the first
+ * line names the format:
+ *
+ * <pre>
+ * spuhn-fsm 1
+ * policy FIRST_MATCH
+ * initial IDLE
+ * parent EDITING WORKING
+ * transition IDLE BEGIN EDITING action=open guard=ready
+ * transition EDITING CANCEL CANCELLED async=save after=PT30S
+ * </pre>
+ *
+ * policy and parent lines are optional. A transition line holds the from state, event and to state,
+ * optionally followed by action=, async= and guard= names and an ISO-8601 after= timeout. Hand
+ * written documents may declare transitions from parent states, which are inherited as they are
+ * when building.
+ *
+ * The binary format is a header followed by a body of the same content, with each name written once
+ * in a table and referred to by its position:
+ *
+ * <pre>
+ * int    magic, "SPND"
+ * byte   format version, 2
+ * int    body length in bytes, at most 64 MiB
+ * int    CRC-32 of the body
+ * byte   guard policy ordinal
+ * 5 x    name tables of states, events, actions, asynchronous actions and guards: an unsigned
+ *        short count, then each name as an unsigned short length and UTF-8
+ * short  initial state
+ * short  number of parents, then a child and parent state for each
+ * int    number of transitions, then for each a short from state, short event, short to state,
+ *        a byte of flags, and a short action, asynchronous action and guard, and a long timeout in
+ *        nanoseconds, for each flag that is set
+ * </pre>
+ *
+ * All values are big endian. A transition without an action, guard or timeout takes seven bytes.
+ *
+ * The transitions are written flattened, grouped by from state and event, in the order their
+ * guards are tried in. readBinary loads this table as it is, once the checksum matches, without
+ * flattening it or merging it cell by cell, but still rejects a table that is not grouped so, or
+ * that breaks any rule the builder enforces, such as an unreachable state.
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmDefinitions {
+
+    private static final String TEXT_HEADER = "spuhn-fsm 1";
+    private static final int MAGIC = 0x53504e44;
+    private static final byte VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 1 + 4 + 4;
+    private static final int MAX_BODY_BYTES = 64 << 20;
+    private static final int ACTION = 1;
+    private static final int ASYNC = 2;
+    private static final int GUARD = 4;
+    private static final int TIMEOUT = 8;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private FsmDefinitions() {
+    }
+
+    /**
+     * Writes a definition in the text format
+     *
+     * @param definition
+     *            the definition to write, whose states and events are enum constants
+     * @param actions
+     *            a registry holding every action and guard of the definition
+     * @param writer
+     *            the writer the document is written to. It is flushed but not closed
+     * @throws IOException
+     *             when the writer fails
+     * @throws FiniteStateMachineException
+     *             when the states or events are not enum constants, or an action or guard is not
+     *             registered
+     */
+    public static <StateType extends State<Context>, Event, Context> void writeText(FsmDefinition<StateType, Event, Context> definition, FsmActions<Context> actions, Writer writer) throws IOException {
+        Objects.requireNonNull(actions);
+        Objects.requireNonNull(writer);
+        List<Transition<StateType, Event, Context>> transitions = sorted(definition);
+        StringBuilder out = new StringBuilder(64 + 48 * transitions.size());
+        out.append(TEXT_HEADER).append('\n');
+        out.append("policy ").append(definition.getGuardPolicy()).append('\n');
+        out.append("initial ").append(name(definition.getInitialState())).append('\n');
+        for (Map.Entry<StateType, StateType> parent : definition.parents().entrySet()) {
+            out.append("parent ").append(name(parent.getKey())).append(' ').append(name(parent.getValue())).append('\n');
+        }
+        for (Transition<StateType, Event, Context> t : transitions) {
+            out.append("transition ").append(name(t.getFromState())).append(' ').append(name(t.getOnEvent())).append(' ').append(name(t.getToState()));
+            if (t.getTransitionFunc().isPresent()) {
+                out.append(" action=").append(actions.nameOf(t.getTransitionFunc().get(), t));
+            }
+            if (t.getAsyncTransitionFunc().isPresent()) {
+                out.append(" async=").append(actions.nameOf(t.getAsyncTransitionFunc().get(), t));
+            }
+            if (null != t.guard) {
+                out.append(" guard=").append(actions.nameOf(t.guard, t));
+            }
+            if (null != t.timeout) {
+                out.append(" after=").append(t.timeout);
+            }
+            out.append('\n');
+        }
+        writer.write(out.toString());
+        writer.flush();
+    }
+
+    /**
+     * Reads a definition in the text format, and builds it as FiniteStateMachineBuilder does
+     *
+     * @param reader
+     *            the reader the document is read from. It is not closed
+     * @param stateType
+     *            the enum class the state names bind to
+     * @param eventType
+     *            the enum class the event names bind to
+     * @param actions
+     *            a registry holding every action and guard the document names
+     * @param metrics
+     *            the listener instances of the definition report to, or null
+     * @return the definition
+     * @throws IOException
+     *             when the reader fails
+     * @throws FiniteStateMachineException
+     *             when the document is not in the text format, names unknown states, events,
+     *             actions or guards, or describes an invalid definition
+     */
+    public static <StateType extends Enum<StateType> & State<Context>, Event extends Enum<Event>, Context> FsmDefinition<StateType, Event, Context> readText(Reader reader, Class<StateType> stateType, Class<Event> eventType, FsmActions<Context> actions, FsmMetricsListener metrics) throws IOException {
+        Objects.requireNonNull(stateType);
+        Objects.requireNonNull(eventType);
+        Objects.requireNonNull(actions);
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        FsmDefinition.GuardPolicy policy = FsmDefinition.GuardPolicy.FIRST_MATCH;
+        StateType initial = null;
+        Map<StateType, StateType> parents = new LinkedHashMap<>();
+        List<Transition<StateType, Event, Context>> transitions = new ArrayList<>();
+        boolean header = false;
+        int number = 0;
+        for (String line = lines.readLine(); null != line; line = lines.readLine()) {
+            number++;
+            int comment = line.indexOf('#');
+            String[] words = WHITESPACE.split((comment < 0 ? line : line.substring(0, comment)).trim());
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            if (!header) {
+                if (!TEXT_HEADER.equals(String.join(" ", words))) {
+                    throw invalid(number, "expected '" + TEXT_HEADER + "'");
+                }
+                header = true;
+                continue;
+            }
+            switch (words[0]) {
+            case "policy":
+                expect(words, 2, number);
+                policy = bind(FsmDefinition.GuardPolicy.class, words[1], number);
+                break;
+            case "initial":
+                expect(words, 2, number);
+                initial = bind(stateType, words[1], number);
+                break;
+            case "parent":
+                expect(words, 3, number);
+                parents.put(bind(stateType, words[1], number), bind(stateType, words[2], number));
+                break;
+            case "transition":
+                if (words.length < 4) {
+                    throw invalid(number, "a transition needs a from state, event and to state");
+                }
+                transitions.add(textTransition(words, stateType, eventType, actions, number));
+                break;
+            default:
+                throw invalid(number, "unknown keyword " + words[0]);
+            }
+        }
+        if (!header) {
+            throw invalid(number, "expected '" + TEXT_HEADER + "'");
+        }
+        if (null == initial) {
+            throw invalid(number, "no initial state");
+        }
+        return new FsmDefinition<>(transitions, initial, parents, policy, metrics);
+    }
+
+    private static <StateType extends Enum<StateType> & State<Context>, Event extends Enum<Event>, Context> Transition<StateType, Event, Context> textTransition(String[] words, Class<StateType> stateType, Class<Event> eventType, FsmActions<Context> actions, int number) {
+        Consumer<Context> action = null;
+        Function<Context, CompletionStage<Void>> async = null;
+        Predicate<Context> guard = null;
+        Duration timeout = null;
+        for (int i = 4; i < words.length; i++) {
+            int equals = words[i].indexOf('=');
+            String key = equals < 0 ? words[i] : words[i].substring(0, equals);
+            String value = words[i].substring(equals + 1);
+            try {
+                switch (key) {
+                case "action":
+                    action = actions.action(value);
+                    break;
+                case "async":
+                    async = actions.asyncAction(value);
+                    break;
+                case "guard":
+                    guard = actions.guard(value);
+                    break;
+                case "after":
+                    timeout = Duration.parse(value);
+                    break;
+                default:
+                    throw invalid(number, "unknown attribute " + words[i]);
+                }
+            } catch (FiniteStateMachineException | DateTimeParseException e) {
+                throw invalid(number, e.getMessage());
+            }
+        }
+        return transition(bind(stateType, words[1], number), bind(stateType, words[3], number), bind(eventType, words[2], number), action, async, guard, timeout);
+    }
+
+    private static void expect(String[] words, int count, int number) {
+        if (words.length != count) {
+            throw invalid(number, words[0] + " takes " + (count - 1) + " value" + (count > 2 ? "s" : ""));
+        }
+    }
+
+    private static <T extends Enum<T>> T bind(Class<T> type, String name, int number) {
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            throw invalid(number, "no " + type.getSimpleName() + " named " + name);
+        }
+    }
+
+    private static FiniteStateMachineException invalid(int number, String message) {
+        return new FiniteStateMachineException("Invalid definition, line " + number + ": " + message, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+    }
+
+    private static <StateType, Event, Context> Transition<StateType, Event, Context> transition(StateType from, StateType to, Event event, Consumer<Context> action, Function<Context, CompletionStage<Void>> async, Predicate<Context> guard, Duration timeout) {
+        if (null != timeout && (timeout.isNegative() || timeout.isZero())) {
+            throw new FiniteStateMachineException("Invalid definition: the timeout of a transition from " + from + " on " + event + " must be positive", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        return new GenericDRFSMTransition<>(from, to, event, action, async, guard, timeout);
+    }
+
+    /**
+     * Writes a definition in the binary format
+     *
+     * @param definition
+     *            the definition to write, whose states and events are enum constants
+     * @param actions
+     *            a registry holding every action and guard of the definition
+     * @param channel
+     *            the channel the definition is written to. It is not closed
+     * @throws IOException
+     *             when the channel fails
+     * @throws FiniteStateMachineException
+     *             when the states or events are not enum constants, or an action or guard is not
+     *             registered
+     */
+    public static <StateType extends State<Context>, Event, Context> void writeBinary(FsmDefinition<StateType, Event, Context> definition, FsmActions<Context> actions, WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(actions);
+        Objects.requireNonNull(channel);
+        List<Transition<StateType, Event, Context>> transitions = sorted(definition);
+        Names states = new Names();
+        Names events = new Names();
+        Names actionNames = new Names();
+        Names asyncNames = new Names();
+        Names guardNames = new Names();
+        for (Transition<StateType, Event, Context> t : transitions) {
+            states.add(name(t.getFromState()));
+            states.add(name(t.getToState()));
+            events.add(name(t.getOnEvent()));
+            t.getTransitionFunc().ifPresent(f -> actionNames.add(actions.nameOf(f, t)));
+            t.getAsyncTransitionFunc().ifPresent(f -> asyncNames.add(actions.nameOf(f, t)));
+            if (null != t.guard) {
+                guardNames.add(actions.nameOf(t.guard, t));
+            }
+        }
+        for (Map.Entry<StateType, StateType> parent : definition.parents().entrySet()) {
+            states.add(name(parent.getKey()));
+            states.add(name(parent.getValue()));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + 8 * transitions.size());
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(definition.getGuardPolicy().ordinal());
+        for (Names table : Arrays.asList(states, events, actionNames, asyncNames, guardNames)) {
+            table.write(body);
+        }
+        body.writeShort(states.idOf(name(definition.getInitialState())));
+        body.writeShort(definition.parents().size());
+        for (Map.Entry<StateType, StateType> parent : definition.parents().entrySet()) {
+            body.writeShort(states.idOf(name(parent.getKey())));
+            body.writeShort(states.idOf(name(parent.getValue())));
+        }
+        body.writeInt(transitions.size());
+        for (Transition<StateType, Event, Context> t : transitions) {
+            body.writeShort(states.idOf(name(t.getFromState())));
+            body.writeShort(events.idOf(name(t.getOnEvent())));
+            body.writeShort(states.idOf(name(t.getToState())));
+            Consumer<Context> action = t.getTransitionFunc().orElse(null);
+            Function<Context, CompletionStage<Void>> async = t.getAsyncTransitionFunc().orElse(null);
+            body.writeByte((null == action ? 0 : ACTION) | (null == async ? 0 : ASYNC) | (null == t.guard ? 0 : GUARD) | (null == t.timeout ? 0 : TIMEOUT));
+            if (null != action) {
+                body.writeShort(actionNames.idOf(actions.nameOf(action, t)));
+            }
+            if (null != async) {
+                body.writeShort(asyncNames.idOf(actions.nameOf(async, t)));
+            }
+            if (null != t.guard) {
+                body.writeShort(guardNames.idOf(actions.nameOf(t.guard, t)));
+            }
+            if (null != t.timeout) {
+                body.writeLong(t.timeout.toNanos());
+            }
+        }
+        body.flush();
+
+        if (bytes.size() > MAX_BODY_BYTES) {
+            throw new FiniteStateMachineException("The definition is too large for the binary format: " + bytes.size() + " bytes", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + content.length);
+        buffer.putInt(MAGIC).put(VERSION).putInt(content.length).putInt((int) crc.getValue()).put(content);
+        FsmSnapshots.flush(buffer, channel);
+    }
+
+    /**
+     * Reads a definition in the binary format. The table is loaded as it was written, without
+     * flattening it again, and validated as FiniteStateMachineBuilder does
+     *
+     * @param channel
+     *            the channel the definition is read from. It is not closed
+     * @param stateType
+     *            the enum class the state names bind to
+     * @param eventType
+     *            the enum class the event names bind to
+     * @param actions
+     *            a registry holding every action and guard the definition names
+     * @param metrics
+     *            the listener instances of the definition report to, or null
+     * @return the definition
+     * @throws IOException
+     *             when the channel fails or ends early
+     * @throws FiniteStateMachineException
+     *             when the bytes are not in the binary format, are corrupt, name unknown states,
+     *             events, actions or guards, or describe an invalid definition
+     */
+    public static <StateType extends Enum<StateType> & State<Context>, Event extends Enum<Event>, Context> FsmDefinition<StateType, Event, Context> readBinary(ReadableByteChannel channel, Class<StateType> stateType, Class<Event> eventType, FsmActions<Context> actions, FsmMetricsListener metrics) throws IOException {
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(stateType);
+        Objects.requireNonNull(eventType);
+        Objects.requireNonNull(actions);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        FsmSnapshots.fill(header, channel);
+        int length = header.getInt() == MAGIC && header.get() == VERSION ? header.getInt() : -1;
+        if (length < 0) {
+            throw new FiniteStateMachineException("Invalid definition: unknown format", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        if (length > MAX_BODY_BYTES) {
+            throw new FiniteStateMachineException("Invalid definition: a body of " + length + " bytes is larger than " + MAX_BODY_BYTES, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        int checksum = header.getInt();
+        ByteBuffer body = ByteBuffer.allocate(length);
+        FsmSnapshots.fill(body, channel);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new FiniteStateMachineException("Invalid definition: the body does not match its checksum", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        try {
+            FsmDefinition.GuardPolicy policy = FsmDefinition.GuardPolicy.values()[body.get() & 0xff];
+            StateType[] states = bindAll(stateType, body);
+            Event[] events = bindAll(eventType, body);
+            String[] actionNames = Names.read(body);
+            String[] asyncNames = Names.read(body);
+            String[] guardNames = Names.read(body);
+            StateType initial = states[body.getShort() & 0xffff];
+            int parentCount = body.getShort() & 0xffff;
+            Map<StateType, StateType> parents = new LinkedHashMap<>();
+            for (int i = 0; i < parentCount; i++) {
+                parents.put(states[body.getShort() & 0xffff], states[body.getShort() & 0xffff]);
+            }
+            int count = body.getInt();
+            List<Transition<StateType, Event, Context>> transitions = new ArrayList<>(Math.min(count, length / 7));
+            for (int i = 0; i < count; i++) {
+                StateType from = states[body.getShort() & 0xffff];
+                Event event = events[body.getShort() & 0xffff];
+                StateType to = states[body.getShort() & 0xffff];
+                int flags = body.get();
+                Consumer<Context> action = (flags & ACTION) == 0 ? null : actions.action(actionNames[body.getShort() & 0xffff]);
+                Function<Context, CompletionStage<Void>> async = (flags & ASYNC) == 0 ? null : actions.asyncAction(asyncNames[body.getShort() & 0xffff]);
+                Predicate<Context> guard = (flags & GUARD) == 0 ? null : actions.guard(guardNames[body.getShort() & 0xffff]);
+                Duration timeout = (flags & TIMEOUT) == 0 ? null : Duration.ofNanos(body.getLong());
+                transitions.add(transition(from, to, event, action, async, guard, timeout));
+            }
+            return new FsmDefinition<>(transitions, initial, parents, policy, metrics, stateType, eventType);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // the body was read in full, so these only come from a corrupt body
+            throw new FiniteStateMachineException("Invalid definition: corrupt body", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+    }
+
+    private static <T extends Enum<T>> T[] bindAll(Class<T> type, ByteBuffer body) {
+        String[] names = Names.read(body);
+        T[] constants = Arrays.copyOf(type.getEnumConstants(), names.length);
+        for (int i = 0; i < names.length; i++) {
+            try {
+                constants[i] = Enum.valueOf(type, names[i]);
+            } catch (IllegalArgumentException e) {
+                throw new FiniteStateMachineException("Invalid definition: no " + type.getSimpleName() + " named " + names[i], FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+        }
+        return constants;
+    }
+
+    /*
+     * The transitions of an enum definition by from state and event ordinal, then by the order their
+     * guards are tried in
+     */
+    private static <StateType extends State<Context>, Event, Context> List<Transition<StateType, Event, Context>> sorted(FsmDefinition<StateType, Event, Context> definition) {
+        List<Transition<StateType, Event, Context>> transitions = new ArrayList<>(definition.getTransitions());
+        for (Transition<StateType, Event, Context> t : transitions) {
+            name(t.getFromState());
+            name(t.getOnEvent());
+        }
+        transitions.sort((a, b) -> {
+            int order = Integer.compare(((Enum<?>) a.getFromState()).ordinal(), ((Enum<?>) b.getFromState()).ordinal());
+            if (0 == order) {
+                order = Integer.compare(((Enum<?>) a.getOnEvent()).ordinal(), ((Enum<?>) b.getOnEvent()).ordinal());
+            }
+            return 0 == order ? Integer.compare(a.index, b.index) : order;
+        });
+        return transitions;
+    }
+
+    private static String name(Object value) {
+        if (!(value instanceof Enum)) {
+            throw new FiniteStateMachineException("Only definitions whose states and events are enum constants can be written: " + value, FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        return ((Enum<?>) value).name();
+    }
+
+    /*
+     * A table of names in the order they were first added
+     */
+    private static final class Names {
+        private final Map<String, Integer> ids = new LinkedHashMap<>();
+
+        void add(String name) {
+            ids.putIfAbsent(name, ids.size());
+        }
+
+        int idOf(String name) {
+            return ids.get(name);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(ids.size());
+            for (String name : ids.keySet()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        static String[] read(ByteBuffer in) {
+            String[] names = new String[in.getShort() & 0xffff];
+            for (int i = 0; i < names.length; i++) {
+                int length = in.getShort() & 0xffff;
+                names[i] = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                ((Buffer) in).position(in.position() + length);
+            }
+            return names;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.gunnargissel.spuhn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * An FsmSnapshotStore that keeps each snapshot in a file of its own in a directory, named after the
+ * URL-safe Base64 of the id, so any id of up to 180 bytes of UTF-8 makes a valid file name. A
+ * snapshot is written to a temporary file next to it and then moved over the old one, so a reader
+ * never sees half a snapshot. Each directory should only be written by one store at a time
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmFileSnapshotStore implements FsmSnapshotStore {
+
+    private static final String SUFFIX = ".snapshot";
+    private static final Base64.Encoder NAMES = Base64.getUrlEncoder().withoutPadding();
+
+    private final Path directory;
+
+    /**
+     * Opens a store in a directory, creating the directory if needed
+     *
+     * @param directory
+     *            the directory holding the snapshot files
+     * @throws IOException
+     *             when the directory cannot be created
+     */
+    public FsmFileSnapshotStore(Path directory) throws IOException {
+        Objects.requireNonNull(directory);
+        Files.createDirectories(directory);
+        this.directory = directory;
+    }
+
+    @Override
+    public void save(String id, byte[] snapshot) throws IOException {
+        Path file = file(id);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(temporary, snapshot);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    @Override
+    public byte[] load(String id) throws IOException {
+        try {
+            return Files.readAllBytes(file(id));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void delete(String id) throws IOException {
+        Files.deleteIfExists(file(id));
+    }
+
+    private Path file(String id) {
+        return directory.resolve(NAMES.encodeToString(id.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+}
@@ -0,0 +1,559 @@
+package com.gunnargissel.spuhn;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes the graph of an FsmDefinition as Graphviz DOT, GraphML or JSON, straight to a Writer or
+ * channel. Nothing but a sort order of the transitions is held in memory, so definitions with
+ * hundreds of thousands of transitions can be exported without building the document as a string.
+ *
+ * The output is deterministic: states are written in the order of their identifiers, as described
+ * in FsmSnapshots, and transitions by from state, then event, then the order their guards are tried
+ * in. States and events must therefore be enums, or have distinct toString values.
+ *
+ * Optionally, nested states are clustered inside their parents, the current state of an instance
+ * is highlighted, and transitions are annotated with the counts collected by an FsmMetrics, with the
+ * hot ones highlighted.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states of the exported definition
+ * @param <Event>
+ *            A type enumerating all the possible events of the exported definition
+ * @param <Context>
+ *            The context type of the exported definition
+ */
+public final class FsmGraphExport<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * The document format written
+     */
+    public enum Format {
+        /**
+         * Graphviz DOT, with nested states as clusters
+         */
+        DOT,
+        /**
+         * GraphML, with nested states as nested graphs and everything else as data keys
+         */
+        GRAPHML,
+        /**
+         * A JSON object with the initial state, the states, the parents of nested states and the
+         * transitions
+         */
+        JSON
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // the document is assembled in chunks of this many characters, each passed to the Writer in
+    // one call, since Writers lock on every call
+    private static final int CHUNK_SIZE = 1 << 15;
+
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final Format format;
+    private boolean clustered;
+    private StateType currentState;
+    private FsmMetrics metrics;
+    private long hotThreshold;
+
+    /**
+     * Constructor for FsmGraphExport
+     *
+     * @param definition
+     *            the definition to export
+     * @param format
+     *            the document format to write
+     */
+    public FsmGraphExport(FsmDefinition<StateType, Event, Context> definition, Format format) {
+        Objects.requireNonNull(definition);
+        Objects.requireNonNull(format);
+        this.definition = definition;
+        this.format = format;
+    }
+
+    /**
+     * Decide whether nested states are written inside their parents. Off by default
+     *
+     * @param clustered
+     *            true to write the parents of nested states
+     */
+    public void setClustered(boolean clustered) {
+        this.clustered = clustered;
+    }
+
+    /**
+     * Highlight a state, usually the current state of an instance
+     *
+     * @param currentState
+     *            a state of the exported definition, or null to highlight none
+     */
+    public void setCurrentState(StateType currentState) {
+        if (null != currentState && !definition.getStates().contains(currentState)) {
+            throw new FiniteStateMachineException("invalid state: " + currentState + " not found in internal states", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        this.currentState = currentState;
+    }
+
+    /**
+     * Annotate each transition with the number of times it was taken, and highlight the hot ones
+     *
+     * @param metrics
+     *            metrics attached to the exported definition, or null to annotate nothing
+     * @param hotThreshold
+     *            the count from which a transition is highlighted
+     */
+    public void setMetrics(FsmMetrics metrics, long hotThreshold) {
+        if (null != metrics && !metrics.matches(definition)) {
+            throw new FiniteStateMachineException("The metrics are attached to another definition than this export", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        this.metrics = metrics;
+        this.hotThreshold = hotThreshold;
+    }
+
+    /**
+     * Writes the graph to a Writer, which is flushed but not closed
+     *
+     * @param writer
+     *            the writer the document is written to
+     * @throws IOException
+     *             when the writer fails
+     */
+    public void write(Writer writer) throws IOException {
+        Chunks sink = new Chunks(writer);
+        StringBuilder out = new StringBuilder(1024);
+        int[] order = sortedTransitions();
+        switch (format) {
+        case DOT:
+            writeDot(sink, out, order);
+            break;
+        case GRAPHML:
+            writeGraphMl(sink, out, order);
+            break;
+        default:
+            writeJson(sink, out, order);
+            break;
+        }
+        sink.spill(out, true);
+        writer.flush();
+    }
+
+    /**
+     * Writes the graph to a channel as UTF-8. The channel is not closed
+     *
+     * @param channel
+     *            the channel the document is written to
+     * @throws IOException
+     *             when the channel fails
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        write(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE));
+    }
+
+    /*
+     * Transition indexes sorted by from state identifier with a counting sort, then within each from
+     * state by event identifier and transition index, which is the order guards are tried in
+     */
+    private int[] sortedTransitions() {
+        List<Transition<StateType, Event, Context>> transitions = definition.getTransitions();
+        FsmSnapshots.Ids<StateType> ids = definition.snapshotIds();
+        int[] starts = new int[ids.stateIdLimit() + 1];
+        int[] from = new int[transitions.size()];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = ids.idOf(transitions.get(i).getFromState());
+            starts[from[i] + 1]++;
+        }
+        int largest = 0;
+        for (int s = 0; s < starts.length - 1; s++) {
+            largest = Math.max(largest, starts[s + 1]);
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[from.length];
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        for (int i = 0; i < from.length; i++) {
+            order[next[from[i]]++] = i;
+        }
+        long[] keys = new long[largest];
+        for (int s = 0; s < starts.length - 1; s++) {
+            int start = starts[s];
+            int count = starts[s + 1] - start;
+            if (count < 2) {
+                continue;
+            }
+            for (int j = 0; j < count; j++) {
+                int index = order[start + j];
+                keys[j] = (long) ids.eventIdOf(transitions.get(index).getOnEvent()) << 32 | index;
+            }
+            Arrays.sort(keys, 0, count);
+            for (int j = 0; j < count; j++) {
+                order[start + j] = (int) keys[j];
+            }
+        }
+        return order;
+    }
+
+    /*
+     * Passes the text assembled so far to the Writer once it is a chunk long, through one reused
+     * char array, so neither the chunk nor a copy of it is allocated per write
+     */
+    private static final class Chunks {
+        private final Writer writer;
+        private char[] chunk = new char[0];
+
+        Chunks(Writer writer) {
+            this.writer = writer;
+        }
+
+        void spill(StringBuilder out, boolean last) throws IOException {
+            while (out.length() >= CHUNK_SIZE || (last && out.length() > 0)) {
+                if (chunk.length < Math.min(out.length(), 2 * CHUNK_SIZE)) {
+                    chunk = new char[Math.min(out.length(), 2 * CHUNK_SIZE)];
+                }
+                int length = Math.min(out.length(), chunk.length);
+                out.getChars(0, length, chunk, 0);
+                writer.write(chunk, 0, length);
+                out.delete(0, length);
+            }
+        }
+    }
+
+    private long count(Transition<StateType, Event, Context> t) {
+        return metrics.getTransitionCount(t.index);
+    }
+
+    /*
+     * The states of the definition in identifier order
+     */
+    private List<StateType> states() {
+        FsmSnapshots.Ids<StateType> ids = definition.snapshotIds();
+        List<StateType> states = new ArrayList<>(ids.stateIdLimit());
+        for (int id = 0; id < ids.stateIdLimit(); id++) {
+            StateType state = ids.stateAt(id);
+            if (null != state) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    private StateType parentOf(StateType state) {
+        return clustered ? definition.parents().get(state) : null;
+    }
+
+    /*
+     * The children of every parent state, and the states without a parent under the null key, each
+     * in a stable order
+     */
+    private Map<StateType, List<StateType>> hierarchy() {
+        Map<StateType, List<StateType>> children = new HashMap<>();
+        List<StateType> all = states();
+        if (clustered) {
+            for (StateType parent : definition.parents().values()) {
+                if (!children.containsKey(parent)) {
+                    children.put(parent, new ArrayList<>());
+                    all.add(parent);
+                }
+            }
+        }
+        for (StateType state : all) {
+            children.computeIfAbsent(parentOf(state), p -> new ArrayList<>()).add(state);
+        }
+        if (clustered) {
+            // without clustering the states are already in identifier order
+            for (List<StateType> siblings : children.values()) {
+                siblings.sort(FsmGraphExport::compareStable);
+            }
+        }
+        return children;
+    }
+
+    /*
+     * Orders states, including parent states, as FsmSnapshots orders identifiers
+     */
+    private static int compareStable(Object a, Object b) {
+        if (a instanceof Enum && b instanceof Enum) {
+            return Integer.compare(((Enum<?>) a).ordinal(), ((Enum<?>) b).ordinal());
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    private void writeDot(Chunks sink, StringBuilder out, int[] order) throws IOException {
+        out.append("digraph g {\n");
+        writeDotStates(sink, out, hierarchy(), null, "  ");
+        List<Transition<StateType, Event, Context>> transitions = definition.getTransitions();
+        for (int index : order) {
+            Transition<StateType, Event, Context> t = transitions.get(index);
+            out.append("  ");
+            dotId(out, t.getFromState());
+            out.append(" -> ");
+            dotId(out, t.getToState());
+            out.append(" [label=\"");
+            dotText(out, t.getOnEvent());
+            if (null != t.guard) {
+                out.append(" [guarded]");
+            }
+            if (null != t.timeout) {
+                out.append(" after ");
+                out.append(t.timeout.toString());
+            }
+            if (null != metrics) {
+                long count = count(t);
+                out.append(" (").append(count).append(")\", penwidth=").append(1 + (64 - Long.numberOfLeadingZeros(count)) / 4);
+                if (count >= hotThreshold) {
+                    out.append(", color=red");
+                }
+            } else {
+                out.append('"');
+            }
+            out.append("];\n");
+            sink.spill(out, false);
+        }
+        out.append("}\n");
+    }
+
+    private void writeDotStates(Chunks sink, StringBuilder out, Map<StateType, List<StateType>> children, StateType parent, String indent) throws IOException {
+        for (StateType state : children.getOrDefault(parent, new ArrayList<>())) {
+            out.append(indent);
+            if (children.containsKey(state)) {
+                out.append("subgraph ");
+                dotId(out, "cluster_" + state);
+                out.append(" {\n").append(indent).append("  label=");
+                dotId(out, state);
+                out.append(";\n");
+                writeDotStates(sink, out, children, state, indent + "  ");
+                out.append(indent).append("}\n");
+                continue;
+            }
+            dotId(out, state);
+            if (state.equals(definition.getInitialState())) {
+                out.append(" [peripheries=2]");
+            }
+            if (state.equals(currentState)) {
+                out.append(" [style=filled, fillcolor=yellow]");
+            }
+            out.append(";\n");
+            sink.spill(out, false);
+        }
+    }
+
+    private static void dotId(StringBuilder out, Object value) {
+        out.append('"');
+        dotText(out, value);
+        out.append('"');
+    }
+
+    private static void dotText(StringBuilder out, Object value) {
+        String s = String.valueOf(value);
+        if (s.indexOf('"') < 0 && s.indexOf('\\') < 0) {
+            out.append(s);
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+
+    private void writeGraphMl(Chunks sink, StringBuilder out, int[] order) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.append("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+        out.append("  <key id=\"initial\" for=\"node\" attr.name=\"initial\" attr.type=\"boolean\"/>\n");
+        out.append("  <key id=\"current\" for=\"node\" attr.name=\"current\" attr.type=\"boolean\"/>\n");
+        out.append("  <key id=\"event\" for=\"edge\" attr.name=\"event\" attr.type=\"string\"/>\n");
+        out.append("  <key id=\"guarded\" for=\"edge\" attr.name=\"guarded\" attr.type=\"boolean\"/>\n");
+        out.append("  <key id=\"timeout\" for=\"edge\" attr.name=\"timeout\" attr.type=\"string\"/>\n");
+        out.append("  <key id=\"count\" for=\"edge\" attr.name=\"count\" attr.type=\"long\"/>\n");
+        out.append("  <key id=\"hot\" for=\"edge\" attr.name=\"hot\" attr.type=\"boolean\"/>\n");
+        out.append("  <graph id=\"g\" edgedefault=\"directed\">\n");
+        writeGraphMlStates(sink, out, hierarchy(), null, "    ");
+        List<Transition<StateType, Event, Context>> transitions = definition.getTransitions();
+        for (int index : order) {
+            Transition<StateType, Event, Context> t = transitions.get(index);
+            out.append("    <edge source=\"");
+            xml(out, t.getFromState());
+            out.append("\" target=\"");
+            xml(out, t.getToState());
+            out.append("\"><data key=\"event\">");
+            xml(out, t.getOnEvent());
+            out.append("</data>");
+            if (null != t.guard) {
+                out.append("<data key=\"guarded\">true</data>");
+            }
+            if (null != t.timeout) {
+                out.append("<data key=\"timeout\">").append(t.timeout).append("</data>");
+            }
+            if (null != metrics) {
+                long count = count(t);
+                out.append("<data key=\"count\">").append(count).append("</data>");
+                if (count >= hotThreshold) {
+                    out.append("<data key=\"hot\">true</data>");
+                }
+            }
+            out.append("</edge>\n");
+            sink.spill(out, false);
+        }
+        out.append("  </graph>\n</graphml>\n");
+    }
+
+    private void writeGraphMlStates(Chunks sink, StringBuilder out, Map<StateType, List<StateType>> children, StateType parent, String indent) throws IOException {
+        for (StateType state : children.getOrDefault(parent, new ArrayList<>())) {
+            out.append(indent).append("<node id=\"");
+            xml(out, state);
+            out.append("\">");
+            if (children.containsKey(state)) {
+                out.append('\n').append(indent).append("  <graph id=\"");
+                xml(out, state);
+                out.append(":\" edgedefault=\"directed\">\n");
+                writeGraphMlStates(sink, out, children, state, indent + "    ");
+                out.append(indent).append("  </graph>\n").append(indent);
+            } else {
+                if (state.equals(definition.getInitialState())) {
+                    out.append("<data key=\"initial\">true</data>");
+                }
+                if (state.equals(currentState)) {
+                    out.append("<data key=\"current\">true</data>");
+                }
+            }
+            out.append("</node>\n");
+            sink.spill(out, false);
+        }
+    }
+
+    private static void xml(StringBuilder out, Object value) {
+        String s = String.valueOf(value);
+        if (s.indexOf('&') < 0 && s.indexOf('<') < 0 && s.indexOf('>') < 0 && s.indexOf('"') < 0) {
+            out.append(s);
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                out.append("&amp;");
+                break;
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '"':
+                out.append("&quot;");
+                break;
+            default:
+                out.append(c);
+                break;
+            }
+        }
+    }
+
+    private void writeJson(Chunks sink, StringBuilder out, int[] order) throws IOException {
+        out.append("{\n  \"initial\": ");
+        json(out, definition.getInitialState());
+        if (null != currentState) {
+            out.append(",\n  \"current\": ");
+            json(out, currentState);
+        }
+        out.append(",\n  \"states\": [");
+        String separator = "\n    ";
+        for (StateType state : states()) {
+            out.append(separator);
+            separator = ",\n    ";
+            writeJsonState(out, state);
+            sink.spill(out, false);
+        }
+        out.append("\n  ]");
+        if (clustered && !definition.parents().isEmpty()) {
+            out.append(",\n  \"parents\": [");
+            separator = "\n    ";
+            List<StateType> parents = new ArrayList<>(new LinkedHashSet<>(definition.parents().values()));
+            parents.sort(FsmGraphExport::compareStable);
+            for (StateType state : parents) {
+                out.append(separator);
+                separator = ",\n    ";
+                writeJsonState(out, state);
+            }
+            out.append("\n  ]");
+        }
+        out.append(",\n  \"transitions\": [");
+        separator = "\n    ";
+        List<Transition<StateType, Event, Context>> transitions = definition.getTransitions();
+        for (int index : order) {
+            Transition<StateType, Event, Context> t = transitions.get(index);
+            out.append(separator);
+            separator = ",\n    ";
+            out.append("{\"from\": ");
+            json(out, t.getFromState());
+            out.append(", \"event\": ");
+            json(out, t.getOnEvent());
+            out.append(", \"to\": ");
+            json(out, t.getToState());
+            if (null != t.guard) {
+                out.append(", \"guarded\": true");
+            }
+            if (null != t.timeout) {
+                out.append(", \"timeout\": \"").append(t.timeout).append('"');
+            }
+            if (null != metrics) {
+                long count = count(t);
+                out.append(", \"count\": ").append(count);
+                if (count >= hotThreshold) {
+                    out.append(", \"hot\": true");
+                }
+            }
+            out.append('}');
+            sink.spill(out, false);
+        }
+        out.append("\n  ]\n}\n");
+    }
+
+    private void writeJsonState(StringBuilder out, StateType state) {
+        out.append("{\"id\": ");
+        json(out, state);
+        StateType parent = parentOf(state);
+        if (null != parent) {
+            out.append(", \"parent\": ");
+            json(out, parent);
+        }
+        out.append('}');
+    }
+
+    private static void json(StringBuilder out, Object value) {
+        String s = String.valueOf(value);
+        out.append('"');
+        boolean plain = true;
+        for (int i = 0; i < s.length() && plain; i++) {
+            char c = s.charAt(i);
+            plain = c >= 0x20 && c != '"' && c != '\\';
+        }
+        if (plain) {
+            out.append(s).append('"');
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
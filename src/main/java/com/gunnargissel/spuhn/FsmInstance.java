@@ -0,0 +1,558 @@
+package com.gunnargissel.spuhn;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A running instance of an FsmDefinition. An instance only holds its current state and its
+ * context; the transition table, states and events belong to the shared definition, so creating an
+ * instance costs one small object and no validation work.
+ *
+ * Instances are not thread safe. Use FsmDefinition.newInstance(Context) to create one.
+ *
+ * Firing an event allocates nothing once the JIT has warmed up: transitions are only reported at
+ * Level.FINE, and exception messages are only built when an event is rejected.
+ *
+ * When the definition has an FsmMetricsListener, every completed transition and rejected event is
+ * reported to it. Without one, no clock is read. An instance attached to an FsmJournal appends each
+ * transition to it just before the new state is committed. An instance attached to an FsmTimer arms and
+ * cancels its timeout as it enters and leaves states with timed transitions.
+ *
+ * Events run to completion. An event fired from a transition action or a state hook is put on a
+ * per-instance queue and processed once the current transition has committed and run its entry
+ * hooks, in a loop rather than by recursion, so hooks always see a settled current state and chains
+ * of internal events cannot overflow the stack. defer(Event) holds an event the current state does
+ * not accept until the instance reaches a state that does. Both queues are ring buffers that are
+ * allocated on first use and then reused.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states for this instance
+ * @param <Event>
+ *            A type enumerating all the possible events for this instance to trigger transitions
+ *            between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context
+ */
+public class FsmInstance<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides what fireAll does before it applies a batch of events
+     */
+    public enum BatchMode {
+        /**
+         * Events are applied in order until one is rejected. Events before the rejected one have
+         * already run their hooks, and the instance stays in the state they led to
+         */
+        STOP_AT_REJECTED,
+        /**
+         * The whole batch is checked against the transition table first, without running any hooks.
+         * If any event would be rejected, nothing is applied and the instance keeps its state.
+         * Guards are checked against the Context as it is before the batch, so a guard that depends
+         * on what earlier actions in the batch change may still reject an event when it is applied
+         */
+        VALIDATE_FIRST
+    }
+
+    private static final Logger logger = Logger.getLogger(FsmInstance.class.getName());
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final Context ctx;
+    private StateType currentState;
+    private long stateEnteredAt;
+    // set by FsmJournal.attach
+    FsmJournal<StateType, Event, Context> journal;
+    long journalId;
+    // set by FsmTimer.attach
+    FsmTimer.Timeout timeout;
+    // true while a transition and the events it raises are being processed
+    private boolean dispatching;
+    // events raised by hooks while dispatching, and deferred events; allocated on first use
+    private EventQueue<Event> raised;
+    private EventQueue<Event> deferred;
+
+    /**
+     * Constructor for FsmInstance
+     *
+     * @param definition
+     *            the shared definition of this instance
+     * @param ctx
+     *            a Context that will be passed into each transition and final state event
+     */
+    protected FsmInstance(FsmDefinition<StateType, Event, Context> definition, Context ctx) {
+        Objects.requireNonNull(definition);
+        this.definition = definition;
+        this.ctx = ctx;
+        this.currentState = definition.getInitialState();
+        if (null != definition.metrics) {
+            this.stateEnteredAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the Logger this instance reports transitions to, at Level.FINE
+     */
+    protected Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Fire an event that cause this instance to transition from its current state a new state
+     * defined in its definition's transition table. Transitioning from one state to another will
+     * cause the perform method on the transition to fire and the enter method on the final state to
+     * fire.
+     *
+     * When called from a transition action or state hook of this instance, the event is queued and
+     * fire returns at once. Queued events are processed in order before the outermost fire returns,
+     * and a queued event without a transition is thrown from there, discarding the rest of the queue
+     *
+     * @param event
+     *            an event corresponding to a transition from the current state to a new state
+     * @throws FiniteStateMachineException
+     *             when there is not a transition from the current state, or the event being fired
+     *             is not registered with this instance's definition
+     */
+    public void fire(Event event) throws FiniteStateMachineException {
+        if (dispatching) {
+            raise(event, false);
+            return;
+        }
+        Transition<StateType, Event, Context> transition = definition.findTransition(currentState, event, ctx);
+        if (null == transition) {
+            throw reject(currentState, event);
+        }
+        log(event, transition);
+        run(transition);
+    }
+
+    /**
+     * Fire an event if the current state accepts it, or else hold it until this instance reaches a
+     * state that does. Deferred events are retried, oldest first, after every transition, and are
+     * taken before any other queued events. Like fire, defer only queues the event when called from
+     * a transition action or state hook of this instance
+     *
+     * @param event
+     *            an event registered with this instance's definition
+     * @throws FiniteStateMachineException
+     *             when the event is not registered with this instance's definition
+     */
+    public void defer(Event event) throws FiniteStateMachineException {
+        if (dispatching) {
+            raise(event, true);
+            return;
+        }
+        Transition<StateType, Event, Context> transition = definition.findTransition(currentState, event, ctx);
+        if (null == transition) {
+            if (!definition.hasEvent(event)) {
+                throw reject(currentState, event);
+            }
+            deferred().add(event, true);
+            return;
+        }
+        log(event, transition);
+        run(transition);
+    }
+
+    /**
+     * @return the number of deferred events waiting for a state that accepts them
+     */
+    public int getDeferredCount() {
+        return null == deferred ? 0 : deferred.size();
+    }
+
+    private void log(Event event, Transition<StateType, Event, Context> transition) {
+        Logger logger = getLogger();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("current state: " + currentState + " event: " + event + " transition: " + transition);
+        }
+    }
+
+    private void raise(Event event, boolean mayDefer) {
+        if (null == raised) {
+            raised = new EventQueue<>();
+        }
+        raised.add(event, mayDefer);
+    }
+
+    private EventQueue<Event> deferred() {
+        if (null == deferred) {
+            deferred = new EventQueue<>();
+        }
+        return deferred;
+    }
+
+    /*
+     * Applies a transition, then the deferred and raised events it leads to, to completion
+     */
+    private void run(Transition<StateType, Event, Context> transition) {
+        dispatching = true;
+        try {
+            apply(transition);
+            if (null != raised || null != deferred) {
+                drain();
+            }
+        } finally {
+            dispatching = false;
+            if (null != raised) {
+                raised.clear();
+            }
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            Event event = recall();
+            boolean mayDefer = false;
+            if (null == event) {
+                if (null == raised || raised.size() == 0) {
+                    return;
+                }
+                mayDefer = raised.isDeferrable(0);
+                event = raised.remove(0);
+            }
+            Transition<StateType, Event, Context> transition = definition.findTransition(currentState, event, ctx);
+            if (null == transition) {
+                if (mayDefer && definition.hasEvent(event)) {
+                    deferred().add(event, true);
+                    continue;
+                }
+                throw reject(currentState, event);
+            }
+            log(event, transition);
+            apply(transition);
+        }
+    }
+
+    /*
+     * Removes and returns the oldest deferred event the current state accepts, or null
+     */
+    private Event recall() {
+        if (null == deferred) {
+            return null;
+        }
+        for (int i = 0; i < deferred.size(); i++) {
+            if (null != definition.findTransition(currentState, deferred.get(i), ctx)) {
+                return deferred.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private void apply(Transition<StateType, Event, Context> transition) {
+        FsmMetricsListener metrics = definition.metrics;
+        if (null == metrics) {
+            transition.runExitHooks(ctx);
+            transition.transit(ctx);
+            commit(transition);
+            transition.runEntryHooks(ctx);
+            return;
+        }
+        long start = System.nanoTime();
+        transition.runExitHooks(ctx);
+        transition.transit(ctx);
+        long transited = System.nanoTime();
+        commit(transition);
+        transition.runEntryHooks(ctx);
+        long entered = System.nanoTime();
+        metrics.transitionCompleted(transition.index, start - stateEnteredAt, transited - start, entered - transited);
+        stateEnteredAt = entered;
+    }
+
+    private void commit(Transition<StateType, Event, Context> transition) {
+        // journaled first, so a journal that cannot take the record leaves this instance where it was
+        if (null != journal) {
+            journal.append(journalId, transition.index);
+        }
+        currentState = transition.getToState();
+        if (null != timeout) {
+            timeout.timer.entered(timeout, transition.timeoutOnEntry);
+        }
+    }
+
+    void armTimeout() {
+        timeout.timer.entered(timeout, definition.timeoutFrom(currentState));
+    }
+
+    /*
+     * Fires a timed transition's event, if this instance is still in the state the timeout was
+     * armed in. Rejections are only reported to the metrics listener
+     */
+    @SuppressWarnings("unchecked")
+    boolean fireTimeout(Transition<?, ?, ?> timed) {
+        if (!currentState.equals(timed.getFromState())) {
+            return false;
+        }
+        Event event = (Event) timed.getOnEvent();
+        if (dispatching) {
+            raise(event, false);
+            return true;
+        }
+        Transition<StateType, Event, Context> transition = definition.findTransition(currentState, event, ctx);
+        if (null == transition) {
+            reject(currentState, event);
+            return false;
+        }
+        run(transition);
+        return true;
+    }
+
+    /*
+     * The steps of run and apply, for the dispatchers FsmCompiler generates. A dispatcher only
+     * takes a transition itself when compiledReady holds, and otherwise calls fire
+     */
+    boolean compiledReady(FsmDefinition<?, ?, ?> compiled) {
+        return definition == compiled && !dispatching;
+    }
+
+    int stateOrdinal() {
+        return ((Enum<?>) currentState).ordinal();
+    }
+
+    Context context() {
+        return ctx;
+    }
+
+    @SuppressWarnings("unchecked")
+    void beginCompiled(Object event, Transition<?, ?, ?> transition) {
+        log((Event) event, (Transition<StateType, Event, Context>) transition);
+        dispatching = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    void commitCompiled(Transition<?, ?, ?> transition) {
+        commit((Transition<StateType, Event, Context>) transition);
+    }
+
+    void endCompiled() {
+        try {
+            if (null != raised || null != deferred) {
+                drain();
+            }
+        } finally {
+            abortCompiled();
+        }
+    }
+
+    void abortCompiled() {
+        dispatching = false;
+        if (null != raised) {
+            raised.clear();
+        }
+    }
+
+    private FiniteStateMachineException reject(StateType state, Event event) {
+        FiniteStateMachineException rejection = definition.noTransition(state, event, ctx);
+        if (null != definition.metrics) {
+            definition.metrics.eventRejected(rejection.getReason());
+        }
+        return rejection;
+    }
+
+    /**
+     * Fire a batch of events in order, stopping at the first event without a transition from the
+     * state the instance is in. Unlike fire, a rejected event does not throw; the returned
+     * BatchResult reports it
+     *
+     * @param events
+     *            the events to fire, in order
+     * @return the final state, the number of events applied and the index of the rejected event
+     */
+    public BatchResult<StateType> fireAll(Event[] events) {
+        return fireAll(events, BatchMode.STOP_AT_REJECTED);
+    }
+
+    /**
+     * Fire a batch of events in order. Events raised by the hooks of each transition run to
+     * completion before the next event of the batch, and a raised event that is rejected is thrown
+     * rather than reported in the BatchResult
+     *
+     * @param events
+     *            the events to fire, in order
+     * @param mode
+     *            whether to stop at the first rejected event, or to check the whole batch before
+     *            applying any of it
+     * @return the final state, the number of events applied and the index of the rejected event
+     */
+    public BatchResult<StateType> fireAll(Event[] events, BatchMode mode) {
+        Objects.requireNonNull(events);
+        Objects.requireNonNull(mode);
+        if (dispatching) {
+            throw new FiniteStateMachineException("fireAll may not be called from a transition or state hook of the same instance; use fire", FiniteStateMachineException.Reason.REENTRANT_EVENT);
+        }
+        if (mode == BatchMode.VALIDATE_FIRST) {
+            StateType state = currentState;
+            for (int i = 0; i < events.length; i++) {
+                Transition<StateType, Event, Context> transition = definition.findTransition(state, events[i], ctx);
+                if (null == transition) {
+                    return rejected(0, i, state, events[i]);
+                }
+                state = transition.getToState();
+            }
+        }
+        for (int i = 0; i < events.length; i++) {
+            Transition<StateType, Event, Context> transition = definition.findTransition(currentState, events[i], ctx);
+            if (null == transition) {
+                return rejected(i, i, currentState, events[i]);
+            }
+            run(transition);
+        }
+        return completed(events.length);
+    }
+
+    /**
+     * Fire a batch of events in order, stopping at the first event without a transition from the
+     * state the instance is in. Unlike fire, a rejected event does not throw; the returned
+     * BatchResult reports it
+     *
+     * @param events
+     *            the events to fire, in order
+     * @return the final state, the number of events applied and the index of the rejected event
+     */
+    public BatchResult<StateType> fireAll(Iterable<Event> events) {
+        return fireAll(events, BatchMode.STOP_AT_REJECTED);
+    }
+
+    /**
+     * Fire a batch of events in order. Under VALIDATE_FIRST the events are iterated twice
+     *
+     * @param events
+     *            the events to fire, in order
+     * @param mode
+     *            whether to stop at the first rejected event, or to check the whole batch before
+     *            applying any of it
+     * @return the final state, the number of events applied and the index of the rejected event
+     */
+    public BatchResult<StateType> fireAll(Iterable<Event> events, BatchMode mode) {
+        Objects.requireNonNull(events);
+        Objects.requireNonNull(mode);
+        if (dispatching) {
+            throw new FiniteStateMachineException("fireAll may not be called from a transition or state hook of the same instance; use fire", FiniteStateMachineException.Reason.REENTRANT_EVENT);
+        }
+        int i = 0;
+        if (mode == BatchMode.VALIDATE_FIRST) {
+            StateType state = currentState;
+            for (Event event : events) {
+                Transition<StateType, Event, Context> transition = definition.findTransition(state, event, ctx);
+                if (null == transition) {
+                    return rejected(0, i, state, event);
+                }
+                state = transition.getToState();
+                i++;
+            }
+            i = 0;
+        }
+        for (Event event : events) {
+            Transition<StateType, Event, Context> transition = definition.findTransition(currentState, event, ctx);
+            if (null == transition) {
+                return rejected(i, i, currentState, event);
+            }
+            run(transition);
+            i++;
+        }
+        return completed(i);
+    }
+
+    private BatchResult<StateType> rejected(int applied, int index, StateType state, Event event) {
+        FiniteStateMachineException rejection = reject(state, event);
+        Logger logger = getLogger();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("batch stopped after " + applied + " events, event " + index + " rejected: " + rejection.getMessage());
+        }
+        return new BatchResult<>(currentState, applied, index, rejection);
+    }
+
+    private BatchResult<StateType> completed(int applied) {
+        Logger logger = getLogger();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("batch of " + applied + " events complete, current state: " + currentState);
+        }
+        return new BatchResult<>(currentState, applied, -1, null);
+    }
+
+    /**
+     * Returns true if this currentState is state
+     *
+     * @param state
+     *            A state
+     * @return true if this currentState is state
+     */
+    public boolean isCurrentState(StateType state) {
+        return currentState.equals(state);
+    }
+
+    /**
+     * @return the state this instance is currently in
+     */
+    public StateType getCurrentState() {
+        return currentState;
+    }
+
+    /**
+     * @return the Context passed into each transition and final state event
+     */
+    public Context getContext() {
+        return ctx;
+    }
+
+    /**
+     * @return the shared definition of this instance
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Takes a snapshot of this instance's current state: the definition's fingerprint followed by
+     * the state's identifier, as described in FsmSnapshots. The context is not part of it
+     *
+     * @return a twelve byte snapshot of the current state
+     */
+    public byte[] snapshot() {
+        FsmSnapshots.Ids<StateType> ids = definition.snapshotIds();
+        return ByteBuffer.allocate(12).putLong(ids.getFingerprint()).putInt(ids.idOf(currentState)).array();
+    }
+
+    /**
+     * Restores this instance to the state it was in when a snapshot was taken. No transition or
+     * entry hooks run. An instance attached to an FsmJournal journals the restored state
+     *
+     * @param snapshot
+     *            a snapshot taken by snapshot(), from an instance of a definition with the same
+     *            fingerprint
+     * @throws FiniteStateMachineException
+     *             when the snapshot is corrupt, or was taken from another definition
+     */
+    public void restore(byte[] snapshot) throws FiniteStateMachineException {
+        if (snapshot.length != 12) {
+            throw new FiniteStateMachineException("Invalid snapshot: expected 12 bytes, found " + snapshot.length, FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+        }
+        FsmSnapshots.Ids<StateType> ids = definition.snapshotIds();
+        ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        FsmSnapshots.checkFingerprint(ids, buffer.getLong());
+        restoreState(ids.stateOf(buffer.getInt()));
+    }
+
+    void restoreState(StateType state) {
+        if (null != journal) {
+            journal.appendSet(journalId, currentState, state);
+        }
+        this.currentState = state;
+        if (null != definition.metrics) {
+            this.stateEnteredAt = System.nanoTime();
+        }
+        if (null != timeout) {
+            armTimeout();
+        }
+    }
+
+    /**
+     * Resets this instance's current state to the initial state of its definition. The definition
+     * was validated when it was built, so no validation is repeated. An instance attached to an
+     * FsmJournal journals the reset
+     */
+    public void initialize() {
+        restoreState(definition.getInitialState());
+    }
+}
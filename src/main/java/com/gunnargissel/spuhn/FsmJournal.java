@@ -0,0 +1,370 @@
+package com.gunnargissel.spuhn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A durable, append only record of the transitions taken by FsmInstances of one definition. Each
+ * transition is written as a fixed width record of the instance's id, the from state, the event,
+ * the to state and a timestamp, into memory mapped segment files in a directory. replay rebuilds the
+ * current state of every journaled instance by scanning the segments in order, without running any
+ * transition or entry hooks.
+ *
+ * Instances are attached with attach(FsmInstance, long). Each of their transitions is appended
+ * after its action runs and before the new state is committed, so a transition that cannot be
+ * journaled, for instance because the journal is closed, throws IllegalStateException and leaves
+ * the instance where it was, with no entry hook run. FsmInstance.initialize() and restore(byte[])
+ * of an attached instance are appended too, as records without an event, so replay agrees with the
+ * live instance. Any number of instances and threads may append to one journal.
+ *
+ * Records reach the operating system as soon as they are appended, so they survive the process
+ * dying. Every groupCommit records, and on commit() and close(), the segment is forced to disk, so
+ * a power failure loses at most the records since the last commit.
+ *
+ * Each segment starts with a 32 byte header: the int magic "SPNJ", an int format version, the long
+ * definition fingerprint (see FsmDefinition.getFingerprint()), the int record size and the int
+ * segment number. Each record is 32 big endian bytes:
+ *
+ * <pre>
+ * long  instance id
+ * long  timestamp, in milliseconds since the epoch
+ * int   from state identifier
+ * int   event identifier, or -1 when the state was set by initialize or restore
+ * int   to state identifier
+ * int   check value, never 0, so that unwritten records can be told apart
+ * </pre>
+ *
+ * States and events are identified as described in FsmSnapshots. Segments are unmapped as soon as
+ * they are finished with, where the runtime allows it, and otherwise when they are garbage
+ * collected.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states of the journaled definition
+ * @param <Event>
+ *            A type enumerating all the possible events of the journaled definition
+ * @param <Context>
+ *            The context type of the journaled definition
+ */
+public final class FsmJournal<StateType extends State<Context>, Event, Context> implements Closeable {
+
+    private static final int MAGIC = 0x53504e4a;
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 32;
+    private static final String SUFFIX = ".journal";
+    static final int NO_EVENT = -1;
+    // sun.misc.Unsafe.invokeCleaner bound to the Unsafe instance, on runtimes that have it
+    private static final MethodHandle UNMAP = unmapper();
+
+    private final Path directory;
+    private final FsmDefinition<StateType, Event, Context> definition;
+    private final long fingerprint;
+    private final int segmentRecords;
+    private final int groupCommit;
+    private final FsmSnapshots.Ids<StateType> ids;
+    // identifiers of each transition's from state, event and to state, by transition index
+    private final int[] fromIds;
+    private final int[] eventIds;
+    private final int[] toIds;
+    // guarded by this
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int position;
+    private int uncommitted;
+    private boolean closed;
+
+    private FsmJournal(Path directory, FsmDefinition<StateType, Event, Context> definition, int segmentRecords, int groupCommit) {
+        this.directory = directory;
+        this.definition = definition;
+        this.segmentRecords = segmentRecords;
+        this.groupCommit = groupCommit;
+        this.ids = definition.snapshotIds();
+        this.fingerprint = ids.getFingerprint();
+        List<Transition<StateType, Event, Context>> transitions = definition.getTransitions();
+        fromIds = new int[transitions.size()];
+        eventIds = new int[transitions.size()];
+        toIds = new int[transitions.size()];
+        for (int i = 0; i < fromIds.length; i++) {
+            Transition<StateType, Event, Context> t = transitions.get(i);
+            fromIds[i] = ids.idOf(t.getFromState());
+            eventIds[i] = ids.eventIdOf(t.getOnEvent());
+            toIds[i] = ids.idOf(t.getToState());
+        }
+    }
+
+    /**
+     * Opens a journal in a directory, creating the directory if needed. An existing journal of the
+     * same definition is appended to, after its last complete record
+     *
+     * @param directory
+     *            the directory holding the journal's segment files
+     * @param definition
+     *            the definition whose instances will be journaled
+     * @param segmentRecords
+     *            how many records each segment file holds before a new one is started
+     * @param groupCommit
+     *            how many records are appended between forcing the segment to disk
+     * @return the open journal
+     * @throws IOException
+     *             when the directory or segments cannot be read or written
+     * @throws FiniteStateMachineException
+     *             when the directory holds a journal of a definition with another fingerprint
+     */
+    public static <StateType extends State<Context>, Event, Context> FsmJournal<StateType, Event, Context> open(Path directory, FsmDefinition<StateType, Event, Context> definition, int segmentRecords, int groupCommit) throws IOException {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(definition);
+        if (segmentRecords <= 0 || segmentRecords > (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES || groupCommit <= 0) {
+            throw new IllegalArgumentException("segmentRecords must be between 1 and " + (Integer.MAX_VALUE - HEADER_BYTES) / RECORD_BYTES + ", and groupCommit positive");
+        }
+        Files.createDirectories(directory);
+        FsmJournal<StateType, Event, Context> journal = new FsmJournal<>(directory, definition, segmentRecords, groupCommit);
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            journal.startSegment(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            journal.segment = map(last, FileChannel.MapMode.READ_WRITE);
+            journal.segmentNumber = checkHeader(journal.segment, journal.fingerprint, last);
+            journal.position = HEADER_BYTES + RECORD_BYTES * countRecords(journal.segment);
+        }
+        return journal;
+    }
+
+    /**
+     * Journals every transition an instance takes from now on, under an id of the caller's choosing
+     *
+     * @param instance
+     *            an instance of this journal's definition
+     * @param instanceId
+     *            the id the instance's records are written under, and its key in replay's result
+     * @throws FiniteStateMachineException
+     *             when the instance belongs to another definition
+     */
+    public void attach(FsmInstance<StateType, Event, Context> instance, long instanceId) {
+        if (instance.getDefinition() != definition) {
+            throw new FiniteStateMachineException("The instance belongs to another definition than this journal", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+        }
+        instance.journal = this;
+        instance.journalId = instanceId;
+    }
+
+    void append(long instanceId, int transitionIndex) {
+        append(instanceId, fromIds[transitionIndex], eventIds[transitionIndex], toIds[transitionIndex]);
+    }
+
+    void appendSet(long instanceId, StateType from, StateType to) {
+        append(instanceId, ids.idOf(from), NO_EVENT, ids.idOf(to));
+    }
+
+    private void append(long instanceId, int from, int event, int to) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The journal is closed");
+            }
+            if (position == segment.capacity()) {
+                MappedByteBuffer finished = segment;
+                finished.force();
+                startSegment(segmentNumber + 1);
+                unmap(finished);
+            }
+            int at = position;
+            segment.putLong(at, instanceId);
+            segment.putLong(at + 8, now);
+            segment.putInt(at + 16, from);
+            segment.putInt(at + 20, event);
+            segment.putInt(at + 24, to);
+            segment.putInt(at + 28, check(instanceId, now, from, event, to));
+            position = at + RECORD_BYTES;
+            if (++uncommitted >= groupCommit) {
+                segment.force();
+                uncommitted = 0;
+            }
+        }
+    }
+
+    private static int check(long instanceId, long timestamp, int from, int event, int to) {
+        long h = instanceId * 0x9e3779b97f4a7c15L + timestamp;
+        h = (h ^ (h >>> 29)) * 0xbf58476d1ce4e5b9L + from;
+        h = (h ^ (h >>> 31)) * 0x94d049bb133111ebL + ((long) event << 32 | to & 0xffffffffL);
+        return (int) (h ^ (h >>> 32)) | 1;
+    }
+
+    private void startSegment(int number) {
+        try {
+            Path path = directory.resolve(String.format("%08d%s", number, SUFFIX));
+            MappedByteBuffer next = map(path, FileChannel.MapMode.READ_WRITE, HEADER_BYTES + (long) segmentRecords * RECORD_BYTES);
+            next.putInt(0, MAGIC);
+            next.putInt(4, VERSION);
+            next.putLong(8, fingerprint);
+            next.putInt(16, RECORD_BYTES);
+            next.putInt(20, number);
+            segment = next;
+            segmentNumber = number;
+            position = HEADER_BYTES;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start journal segment " + number + " in " + directory, e);
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk
+     */
+    public synchronized void commit() {
+        if (!closed && uncommitted > 0) {
+            segment.force();
+            uncommitted = 0;
+        }
+    }
+
+    /**
+     * Commits and closes this journal. Attached instances fail to fire events once it is closed
+     */
+    @Override
+    public synchronized void close() {
+        commit();
+        closed = true;
+        if (null != segment) {
+            unmap(segment);
+            segment = null;
+        }
+    }
+
+    /**
+     * @return the definition whose instances this journal records
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Rebuilds the current state of every journaled instance by scanning a journal's segments in
+     * order. No transition or entry hooks run. Scanning stops at the first incomplete record, which
+     * is where an interrupted process stopped writing
+     *
+     * @param directory
+     *            the directory holding the journal's segment files
+     * @param definition
+     *            the definition the journal was written for
+     * @return the last state each instance id was journaled in
+     * @throws IOException
+     *             when the segments cannot be read
+     * @throws FiniteStateMachineException
+     *             when a segment was written for a definition with another fingerprint, or is
+     *             corrupt
+     */
+    public static <StateType extends State<Context>, Event, Context> Map<Long, StateType> replay(Path directory, FsmDefinition<StateType, Event, Context> definition) throws IOException {
+        FsmSnapshots.Ids<StateType> ids = definition.snapshotIds();
+        Map<Long, StateType> states = new HashMap<>();
+        for (Path path : segments(directory)) {
+            MappedByteBuffer segment = map(path, FileChannel.MapMode.READ_ONLY);
+            try {
+                checkHeader(segment, ids.getFingerprint(), path);
+                int records = countRecords(segment);
+                for (int i = 0; i < records; i++) {
+                    int at = HEADER_BYTES + i * RECORD_BYTES;
+                    states.put(segment.getLong(at), ids.stateOf(segment.getInt(at + 24)));
+                }
+                if (HEADER_BYTES + records * RECORD_BYTES < segment.capacity()) {
+                    break;
+                }
+            } finally {
+                unmap(segment);
+            }
+        }
+        return states;
+    }
+
+    /*
+     * Counts the complete records at the start of a segment
+     */
+    private static int countRecords(ByteBuffer segment) {
+        int records = 0;
+        for (int at = HEADER_BYTES; at + RECORD_BYTES <= segment.capacity(); at += RECORD_BYTES) {
+            int check = segment.getInt(at + 28);
+            if (0 == check || check != check(segment.getLong(at), segment.getLong(at + 8), segment.getInt(at + 16), segment.getInt(at + 20), segment.getInt(at + 24))) {
+                break;
+            }
+            records++;
+        }
+        return records;
+    }
+
+    private static int checkHeader(ByteBuffer segment, long fingerprint, Path path) {
+        if (segment.capacity() < HEADER_BYTES || segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION || segment.getInt(16) != RECORD_BYTES) {
+            throw new FiniteStateMachineException("Invalid journal segment: " + path, FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+        }
+        FsmSnapshots.checkFingerprint(fingerprint, segment.getLong(8));
+        return segment.getInt(20);
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /*
+     * Releases a mapping now rather than when it is garbage collected. The buffer must not be used
+     * again
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (null != UNMAP) {
+            try {
+                UNMAP.invoke((ByteBuffer) buffer);
+            } catch (Throwable e) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    private static MethodHandle unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            MethodHandle invokeCleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class));
+            return invokeCleaner.bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8 has no invokeCleaner, and mappings are released by the garbage collector
+            return null;
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+        return map(path, mode, Files.size(path));
+    }
+
+    private static MappedByteBuffer map(Path path, FileChannel.MapMode mode, long size) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY ? new StandardOpenOption[] { StandardOpenOption.READ } : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE };
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            return channel.map(mode, 0, size);
+        }
+    }
+}
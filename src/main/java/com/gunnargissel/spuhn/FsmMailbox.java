@@ -0,0 +1,209 @@
+package com.gunnargissel.spuhn;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An actor style front for an FsmInstance. Any number of threads may submit events to the mailbox;
+ * they are queued in a bounded mailbox and drained, in batches and in submission order, by tasks run
+ * on a shared Executor. At most one drain task runs per mailbox at a time, so the instance is never
+ * processed by two threads at once, and many mailboxes can share one small thread pool.
+ *
+ * Every submitted event gets a CompletableFuture that completes with the state the instance is in
+ * after the event, or exceptionally with the FiniteStateMachineException that rejected it, or with
+ * whatever a hook threw. When the executor rejects a drain task, for instance because it has been
+ * shut down, the events left in the mailbox complete exceptionally with the
+ * RejectedExecutionException.
+ *
+ * Use FsmDefinition.newMailbox(Context, Executor, int, OverflowPolicy) to create one.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states for this mailbox's instance
+ * @param <Event>
+ *            A type enumerating all the possible events for this mailbox's instance to trigger
+ *            transitions between states
+ * @param <Context>
+ *            A type used to give transitions between states a handle into some external context
+ */
+public class FsmMailbox<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * Decides what submit does when the mailbox is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the mailbox has room for the event
+         */
+        BLOCK,
+        /**
+         * Discard the event. The returned future is cancelled
+         */
+        DROP,
+        /**
+         * Throw a FiniteStateMachineException from submit
+         */
+        FAIL
+    }
+
+    /*
+     * The most events a drain task processes before it gives its thread back to the executor, so
+     * that one busy mailbox cannot starve the others sharing the executor
+     */
+    private static final int DRAIN_BATCH = 64;
+
+    private final FsmInstance<StateType, Event, Context> instance;
+    private final Executor executor;
+    private final OverflowPolicy policy;
+    private final BlockingQueue<Envelope<StateType, Event>> mailbox;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+
+    private static final class Envelope<StateType, Event> {
+        private final Event event;
+        private final CompletableFuture<StateType> result = new CompletableFuture<>();
+
+        private Envelope(Event event) {
+            this.event = event;
+        }
+    }
+
+    /**
+     * Constructor for FsmMailbox
+     *
+     * @param instance
+     *            the instance the mailbox's events are fired at. Nothing else may fire events at it
+     * @param executor
+     *            the executor that runs drain tasks; it may be shared by many mailboxes
+     * @param capacity
+     *            the most events the mailbox holds before the OverflowPolicy applies
+     * @param policy
+     *            what submit does when the mailbox is full
+     */
+    protected FsmMailbox(FsmInstance<StateType, Event, Context> instance, Executor executor, int capacity, OverflowPolicy policy) {
+        Objects.requireNonNull(instance);
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(policy);
+        this.instance = instance;
+        this.executor = executor;
+        this.policy = policy;
+        this.mailbox = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Queue an event to be fired at this mailbox's instance
+     *
+     * @param event
+     *            an event corresponding to a transition from the state the instance will be in when
+     *            the event is processed
+     * @return a future completing with the state the instance is in after the event
+     * @throws FiniteStateMachineException
+     *             when the mailbox is full under the FAIL policy
+     * @throws RejectedExecutionException
+     *             when the executor rejects the drain task. The event is removed from the mailbox
+     *             and its future completes exceptionally
+     */
+    public CompletableFuture<StateType> submit(Event event) throws FiniteStateMachineException {
+        Envelope<StateType, Event> envelope = new Envelope<>(event);
+        if (!mailbox.offer(envelope)) {
+            switch (policy) {
+            case BLOCK:
+                try {
+                    mailbox.put(envelope);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    envelope.result.completeExceptionally(e);
+                    return envelope.result;
+                }
+                break;
+            case DROP:
+                envelope.result.cancel(false);
+                return envelope.result;
+            default:
+                FsmMetricsListener metrics = instance.getDefinition().metrics;
+                if (null != metrics) {
+                    metrics.eventRejected(FiniteStateMachineException.Reason.MAILBOX_FULL);
+                }
+                throw new FiniteStateMachineException("Event: " + event + " rejected because the mailbox is full", FiniteStateMachineException.Reason.MAILBOX_FULL);
+            }
+        }
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            // unless a drain already took the event, it is withdrawn, so the caller's failure is final
+            if (mailbox.remove(envelope)) {
+                envelope.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return envelope.result;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Envelope<StateType, Event> envelope;
+            for (int processed = 0; processed < DRAIN_BATCH && null != (envelope = mailbox.poll()); processed++) {
+                try {
+                    instance.fire(envelope.event);
+                    envelope.result.complete(instance.getCurrentState());
+                } catch (RuntimeException e) {
+                    envelope.result.completeExceptionally(e);
+                } catch (Error e) {
+                    envelope.result.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!mailbox.isEmpty()) {
+                try {
+                    schedule();
+                } catch (RejectedExecutionException e) {
+                    // nothing will drain the mailbox any more, so fail whatever is left in it
+                    Envelope<StateType, Event> envelope;
+                    while (null != (envelope = mailbox.poll())) {
+                        envelope.result.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting in the mailbox
+     */
+    public int size() {
+        return mailbox.size();
+    }
+
+    /**
+     * @return the OverflowPolicy of this mailbox
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the shared definition of this mailbox's instance
+     */
+    public FsmDefinition<StateType, Event, Context> getDefinition() {
+        return instance.getDefinition();
+    }
+}
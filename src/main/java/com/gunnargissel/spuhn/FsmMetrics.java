@@ -0,0 +1,186 @@
+package com.gunnargissel.spuhn;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An FsmMetricsListener that counts transitions and rejections and accumulates timings, using
+ * LongAdders so that many threads can report without contending on a single counter.
+ *
+ * For each transition it keeps a count and the total time spent in its action and in its end state's
+ * entry hook. For each state it keeps the total time instances spent in it before leaving. Action
+ * and entry hook times are also recorded in latency histograms with power of two buckets: bucket i
+ * counts the calls that took between 2^(i-1) and 2^i - 1 nanoseconds, and bucket 0 those that took
+ * no measurable time.
+ *
+ * An FsmMetrics can be attached to several definitions only when they have the same transitions in
+ * the same order, such as repeated builds of one FiniteStateMachineBuilder; their instances then
+ * report into the same counters. Attaching it to a definition with other transitions fails the
+ * build with a FiniteStateMachineException.
+ *
+ * @author gunnar.gissel
+ */
+public class FsmMetrics implements FsmMetricsListener {
+
+    private static final int BUCKETS = 64;
+
+    private FsmDefinition<?, ?, ?> definition;
+    private LongAdder[] transitions;
+    private LongAdder[] actionNanos;
+    private LongAdder[] entryNanos;
+    private LongAdder[] stateNanos;
+    private int[] fromStates;
+    private Map<Object, Integer> stateIndexes;
+    private final LongAdder[] actionHistogram = adders(BUCKETS);
+    private final LongAdder[] entryHistogram = adders(BUCKETS);
+    private final LongAdder[] rejections = adders(FiniteStateMachineException.Reason.values().length);
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    @Override
+    public synchronized void attached(FsmDefinition<?, ?, ?> definition) {
+        List<? extends Transition<?, ?, ?>> all = definition.getTransitions();
+        if (null != this.definition) {
+            if (!sameTransitions(this.definition.getTransitions(), all)) {
+                throw new FiniteStateMachineException("This FsmMetrics is already attached to a definition with other transitions; give each definition its own FsmMetrics", FiniteStateMachineException.Reason.INVALID_DEFINITION);
+            }
+            return;
+        }
+        stateIndexes = new HashMap<>();
+        for (Object state : definition.getStates()) {
+            stateIndexes.put(state, stateIndexes.size());
+        }
+        fromStates = new int[all.size()];
+        for (int i = 0; i < fromStates.length; i++) {
+            fromStates[i] = stateIndexes.get(all.get(i).getFromState());
+        }
+        transitions = adders(all.size());
+        actionNanos = adders(all.size());
+        entryNanos = adders(all.size());
+        stateNanos = adders(stateIndexes.size());
+        this.definition = definition;
+    }
+
+    /*
+     * Whether the counters are indexed like the transitions of a definition
+     */
+    synchronized boolean matches(FsmDefinition<?, ?, ?> other) {
+        return definition == other || (null != definition && sameTransitions(definition.getTransitions(), other.getTransitions()));
+    }
+
+    private static boolean sameTransitions(List<? extends Transition<?, ?, ?>> attached, List<? extends Transition<?, ?, ?>> other) {
+        if (attached.size() != other.size()) {
+            return false;
+        }
+        for (int i = 0; i < attached.size(); i++) {
+            Transition<?, ?, ?> a = attached.get(i);
+            Transition<?, ?, ?> b = other.get(i);
+            if (!a.getFromState().equals(b.getFromState()) || !a.getOnEvent().equals(b.getOnEvent()) || !a.getToState().equals(b.getToState())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void transitionCompleted(int transitionIndex, long nanosInFromState, long actionNanos, long entryNanos) {
+        transitions[transitionIndex].increment();
+        this.actionNanos[transitionIndex].add(actionNanos);
+        this.entryNanos[transitionIndex].add(entryNanos);
+        stateNanos[fromStates[transitionIndex]].add(nanosInFromState);
+        actionHistogram[bucket(actionNanos)].increment();
+        entryHistogram[bucket(entryNanos)].increment();
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    @Override
+    public void eventRejected(FiniteStateMachineException.Reason reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    /**
+     * @return the first definition this FsmMetrics was attached to, or null
+     */
+    public FsmDefinition<?, ?, ?> getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @param transitionIndex
+     *            the index of a transition in FsmDefinition.getTransitions()
+     * @return how many times the transition completed
+     */
+    public long getTransitionCount(int transitionIndex) {
+        return transitions[transitionIndex].sum();
+    }
+
+    /**
+     * @param transitionIndex
+     *            the index of a transition in FsmDefinition.getTransitions()
+     * @return the total time spent in the transition's action
+     */
+    public long getActionNanos(int transitionIndex) {
+        return actionNanos[transitionIndex].sum();
+    }
+
+    /**
+     * @param transitionIndex
+     *            the index of a transition in FsmDefinition.getTransitions()
+     * @return the total time spent in the entry hook of the transition's end state
+     */
+    public long getEntryNanos(int transitionIndex) {
+        return entryNanos[transitionIndex].sum();
+    }
+
+    /**
+     * @param state
+     *            a state of the attached definition
+     * @return the total time instances spent in state before leaving it
+     */
+    public long getNanosInState(Object state) {
+        Integer index = stateIndexes.get(state);
+        return null == index ? 0 : stateNanos[index].sum();
+    }
+
+    /**
+     * @param reason
+     *            why events were rejected
+     * @return how many events were rejected for reason
+     */
+    public long getRejections(FiniteStateMachineException.Reason reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return a snapshot of the action latency histogram
+     */
+    public long[] getActionHistogram() {
+        return snapshot(actionHistogram);
+    }
+
+    /**
+     * @return a snapshot of the entry hook latency histogram
+     */
+    public long[] getEntryHistogram() {
+        return snapshot(entryHistogram);
+    }
+
+    private static long[] snapshot(LongAdder[] histogram) {
+        long[] counts = new long[histogram.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram[i].sum();
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,49 @@
+package com.gunnargissel.spuhn;
+
+/**
+ * Receives a report of every transition completed and every event rejected by the instances of an
+ * FsmDefinition. Attach one with FiniteStateMachineBuilder.setMetricsListener; FsmMetrics is a
+ * ready made implementation.
+ *
+ * Listeners are called on the thread firing the event, in the middle of dispatch, so they must be
+ * cheap and thread safe. Transitions are identified by their index in FsmDefinition.getTransitions()
+ * rather than by object, so that a listener can keep its counters in flat arrays.
+ *
+ * Reports come from FsmInstance, FiniteStateMachine, FsmMailbox, ConcurrentFiniteStateMachine and
+ * AsyncFiniteStateMachine. FsmBulkStore does not report.
+ *
+ * @author gunnar.gissel
+ */
+public interface FsmMetricsListener {
+
+    /**
+     * Called once, when a definition reporting to this listener has been built and validated
+     *
+     * @param definition
+     *            the definition whose instances will report to this listener
+     */
+    default void attached(FsmDefinition<?, ?, ?> definition) {
+    }
+
+    /**
+     * Called after a transition's action and its end state's entry hook have run
+     *
+     * @param transitionIndex
+     *            the index of the transition in FsmDefinition.getTransitions()
+     * @param nanosInFromState
+     *            how long the instance stayed in the transition's from state
+     * @param actionNanos
+     *            how long the transition's exit hooks and action took
+     * @param entryNanos
+     *            how long the transition's entry hooks took
+     */
+    void transitionCompleted(int transitionIndex, long nanosInFromState, long actionNanos, long entryNanos);
+
+    /**
+     * Called when an instance rejects an event
+     *
+     * @param reason
+     *            why the event was rejected
+     */
+    void eventRejected(FiniteStateMachineException.Reason reason);
+}
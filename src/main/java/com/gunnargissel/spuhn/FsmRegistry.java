@@ -0,0 +1,297 @@
+package com.gunnargissel.spuhn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Shares definitions and holds live instances for many tenants, each with a workflow of its own.
+ *
+ * Definitions are interned: intern returns the definition already registered with the same
+ * fingerprint when the two are equivalent, as decided by FsmAnalysis.equivalent, which compares
+ * actions and guards by identity, and report to the same FsmMetricsListener, so tenants with the
+ * same workflow share one definition.
+ * definition(key, builder) only runs the builder the first time a key is asked for.
+ *
+ * Instances are held in a cache of at most maxInstances, by id. When it is full, the least
+ * recently used instance is evicted: its snapshot is saved to the FsmSnapshotStore, and the next
+ * instance(id, ...) for it restores it from there without running any hooks. An instance evicted
+ * while a caller still holds it keeps working, but only the state it was evicted in is stored, so
+ * callers should ask the registry for an instance each time they use it rather than keep it. Only
+ * the current state is paged out; the context is passed in again when the instance is restored.
+ * Asking for a live instance with another definition than the one it was started with restores its
+ * state into a new instance of the definition asked for, which replaces it.
+ *
+ * getStats() reports hits, misses, restores and evictions to size the cache by. All methods are
+ * synchronized, and store failures are thrown as IllegalStateException. When the store fails to
+ * save an instance being evicted, it stays live and the instance asked for is not added.
+ *
+ * @author gunnar.gissel
+ *
+ * @param <StateType>
+ *            A type enumerating all the possible states of the registered definitions
+ * @param <Event>
+ *            A type enumerating all the possible events of the registered definitions
+ * @param <Context>
+ *            The context type of the registered definitions
+ */
+public final class FsmRegistry<StateType extends State<Context>, Event, Context> {
+
+    /**
+     * The counters of a registry at one point in time
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long restores;
+        private final long evictions;
+        private final int size;
+        private final int definitions;
+        private final long internHits;
+
+        private Stats(long hits, long misses, long restores, long evictions, int size, int definitions, long internHits) {
+            this.hits = hits;
+            this.misses = misses;
+            this.restores = restores;
+            this.evictions = evictions;
+            this.size = size;
+            this.definitions = definitions;
+            this.internHits = internHits;
+        }
+
+        /**
+         * @return how many times instance found a live instance
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return how many times instance did not find a live instance, whether it restored one
+         *         from the store or started a new one
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return how many of the misses were restored from the store
+         */
+        public long getRestores() {
+            return restores;
+        }
+
+        /**
+         * @return how many instances were evicted and saved to the store
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return how many instances are live
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return how many distinct definitions are interned
+         */
+        public int getDefinitions() {
+            return definitions;
+        }
+
+        /**
+         * @return how many times intern or definition returned a definition already interned
+         */
+        public long getInternHits() {
+            return internHits;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + " misses: " + misses + " restores: " + restores + " evictions: " + evictions + " size: " + size + " definitions: " + definitions + " intern hits: " + internHits;
+        }
+    }
+
+    private final int maxInstances;
+    private final FsmSnapshotStore store;
+    private final HashMap<Long, List<FsmDefinition<StateType, Event, Context>>> byFingerprint = new HashMap<>();
+    private final HashMap<String, FsmDefinition<StateType, Event, Context>> byKey = new HashMap<>();
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, FsmInstance<StateType, Event, Context>> live;
+    private int definitions;
+    private long hits;
+    private long misses;
+    private long restores;
+    private long evictions;
+    private long internHits;
+
+    /**
+     * @param maxInstances
+     *            how many instances are kept live before the least recently used is evicted
+     * @param store
+     *            where evicted instances are saved
+     */
+    public FsmRegistry(int maxInstances, FsmSnapshotStore store) {
+        Objects.requireNonNull(store);
+        if (maxInstances <= 0) {
+            throw new IllegalArgumentException("maxInstances must be positive");
+        }
+        this.maxInstances = maxInstances;
+        this.store = store;
+        this.live = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the registered definition equivalent to a definition and reporting to the same
+     * FsmMetricsListener, registering it if there is none
+     *
+     * @param definition
+     *            a definition
+     * @return the definition to use in its place
+     */
+    public synchronized FsmDefinition<StateType, Event, Context> intern(FsmDefinition<StateType, Event, Context> definition) {
+        Objects.requireNonNull(definition);
+        List<FsmDefinition<StateType, Event, Context>> candidates = byFingerprint.computeIfAbsent(definition.getFingerprint(), f -> new ArrayList<>(1));
+        for (FsmDefinition<StateType, Event, Context> candidate : candidates) {
+            if (candidate == definition || (candidate.metrics == definition.metrics && FsmAnalysis.equivalent(candidate, definition))) {
+                internHits++;
+                return candidate;
+            }
+        }
+        candidates.add(definition);
+        definitions++;
+        return definition;
+    }
+
+    /**
+     * Returns the definition registered under a key, such as a tenant's workflow name and version,
+     * building and interning it the first time the key is asked for
+     *
+     * @param key
+     *            the key of the definition
+     * @param builder
+     *            builds the definition when the key is new
+     * @return the interned definition
+     */
+    public synchronized FsmDefinition<StateType, Event, Context> definition(String key, Supplier<FsmDefinition<StateType, Event, Context>> builder) {
+        Objects.requireNonNull(key);
+        FsmDefinition<StateType, Event, Context> definition = byKey.get(key);
+        if (null != definition) {
+            internHits++;
+            return definition;
+        }
+        definition = intern(builder.get());
+        byKey.put(key, definition);
+        return definition;
+    }
+
+    /**
+     * Returns the live instance with an id, restoring it from the store, or starting a new one in
+     * the definition's initial state when the store has none. A live instance of another definition
+     * is replaced by an instance of this one, restored to its state
+     *
+     * @param id
+     *            the id of the instance
+     * @param definition
+     *            the definition of the instance, as returned by intern or definition
+     * @param ctx
+     *            the context of the instance, when it is not live or is replaced
+     * @return the live instance
+     * @throws FiniteStateMachineException
+     *             when the stored snapshot, or the state of the live instance, was taken from a
+     *             definition with another fingerprint
+     * @throws IllegalStateException
+     *             when the store fails to load the instance, or to save the instance evicted for it
+     */
+    public synchronized FsmInstance<StateType, Event, Context> instance(String id, FsmDefinition<StateType, Event, Context> definition, Context ctx) {
+        Objects.requireNonNull(id);
+        Objects.requireNonNull(definition);
+        FsmInstance<StateType, Event, Context> instance = live.get(id);
+        if (null != instance) {
+            if (instance.getDefinition() == definition) {
+                hits++;
+                return instance;
+            }
+            // moved to the definition asked for as if it had been evicted and restored, in its place
+            misses++;
+            FsmInstance<StateType, Event, Context> replacement = definition.newInstance(ctx);
+            replacement.restore(instance.snapshot());
+            restores++;
+            live.put(id, replacement);
+            return replacement;
+        }
+        misses++;
+        instance = definition.newInstance(ctx);
+        byte[] snapshot = load(id);
+        if (null != snapshot) {
+            instance.restore(snapshot);
+            restores++;
+        }
+        if (live.size() >= maxInstances) {
+            // saved before it is removed, so an instance the store fails to take stays live
+            Iterator<Map.Entry<String, FsmInstance<StateType, Event, Context>>> eldest = live.entrySet().iterator();
+            Map.Entry<String, FsmInstance<StateType, Event, Context>> evicted = eldest.next();
+            save(evicted.getKey(), evicted.getValue());
+            eldest.remove();
+            evictions++;
+        }
+        live.put(id, instance);
+        return instance;
+    }
+
+    /**
+     * Forgets an instance, both live and in the store
+     *
+     * @param id
+     *            the id of the instance
+     */
+    public synchronized void remove(String id) {
+        live.remove(id);
+        try {
+            store.delete(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not delete the snapshot of " + id, e);
+        }
+    }
+
+    /**
+     * Saves every live instance to the store, keeping them live, such as before shutting down
+     */
+    public synchronized void flush() {
+        for (Map.Entry<String, FsmInstance<StateType, Event, Context>> entry : live.entrySet()) {
+            save(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the counters of this registry
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, restores, evictions, live.size(), definitions, internHits);
+    }
+
+    private void save(String id, FsmInstance<StateType, Event, Context> instance) {
+        try {
+            store.save(id, instance.snapshot());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not save the snapshot of " + id, e);
+        }
+    }
+
+    private byte[] load(String id) {
+        try {
+            return store.load(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load the snapshot of " + id, e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.gunnargissel.spuhn;
+
+import java.io.IOException;
+
+/**
+ * Where an FsmRegistry pages out the instances it evicts. Each instance is stored as the twelve
+ * byte snapshot taken by FsmInstance.snapshot(), under the id the registry knows it by.
+ * FsmFileSnapshotStore is a store on the local file system
+ *
+ * @author gunnar.gissel
+ */
+public interface FsmSnapshotStore {
+
+    /**
+     * Stores a snapshot, replacing any stored under the same id
+     *
+     * @param id
+     *            the id of the instance
+     * @param snapshot
+     *            the instance's snapshot
+     * @throws IOException
+     *             when the snapshot cannot be stored
+     */
+    void save(String id, byte[] snapshot) throws IOException;
+
+    /**
+     * @param id
+     *            the id of an instance
+     * @return the snapshot stored under the id, or null when there is none
+     * @throws IOException
+     *             when the store cannot be read
+     */
+    byte[] load(String id) throws IOException;
+
+    /**
+     * Removes the snapshot stored under an id, if any
+     *
+     * @param id
+     *            the id of an instance
+     * @throws IOException
+     *             when the snapshot cannot be removed
+     */
+    void delete(String id) throws IOException;
+}
@@ -0,0 +1,316 @@
+package com.gunnargissel.spuhn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * Writes and reads the current states of many FsmInstances through NIO channels, so that a process
+ * can restore millions of machines after a restart without replaying their events and without
+ * running any entry hooks.
+ *
+ * A state is identified by a small integer: its ordinal when the states are enum constants, and
+ * otherwise its position among the definition's states sorted by toString. Events are identified
+ * the same way in an FsmJournal. Snapshots are tied to
+ * the definition they were taken from by FsmDefinition.getFingerprint(), and reading them back into
+ * a definition with another fingerprint fails.
+ *
+ * The bulk format is a header followed by one state identifier per instance:
+ *
+ * <pre>
+ * int   magic, "SPNS"
+ * byte  format version, 1
+ * long  definition fingerprint
+ * byte  bytes per state identifier: 1, 2 or 4, the fewest that fit the definition
+ * int   number of instances
+ * </pre>
+ *
+ * All values are big endian. A definition with up to 256 states takes one byte per instance.
+ *
+ * Buffers are flipped and cleared through the Buffer type so that classes compiled on newer JDKs
+ * still run on Java 8.
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmSnapshots {
+
+    private static final int MAGIC = 0x53504e53;
+    private static final byte VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 1 + 4;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private FsmSnapshots() {
+    }
+
+    /*
+     * The stable identifiers of a definition's states and events, and the fingerprint computed from
+     * them. Built the first time a definition is snapshotted or journaled, and cached on the
+     * definition
+     */
+    static final class Ids<StateType> {
+        private final long fingerprint;
+        private final Map<StateType, Integer> idByState;
+        // null entries are ordinals of enum constants that are not states of the definition
+        private final StateType[] stateById;
+        private final Map<Object, Integer> idByEvent;
+        private final Object[] eventById;
+        private final int width;
+
+        @SuppressWarnings("unchecked")
+        Ids(FsmDefinition<?, ?, ?> definition) {
+            stateById = (StateType[]) stableOrder(definition.getStates(), "States");
+            idByState = (Map<StateType, Integer>) indexes(stateById);
+            eventById = stableOrder(definition.getEvents(), "Events");
+            idByEvent = indexes(eventById);
+            width = stateById.length <= 0x100 ? 1 : stateById.length <= 0x10000 ? 2 : 4;
+            fingerprint = fingerprint(definition);
+        }
+
+        /*
+         * Enum constants are ordered by ordinal, leaving null for the constants missing from values.
+         * Other values are ordered by toString, which must be distinct
+         */
+        private static Object[] stableOrder(Collection<?> values, String kind) {
+            Object first = values.iterator().next();
+            if (first instanceof Enum) {
+                Object[] constants = ((Enum<?>) first).getDeclaringClass().getEnumConstants().clone();
+                for (int i = 0; i < constants.length; i++) {
+                    if (!values.contains(constants[i])) {
+                        constants[i] = null;
+                    }
+                }
+                return constants;
+            }
+            List<Object> sorted = new ArrayList<>(values);
+            sorted.sort((a, b) -> String.valueOf(a).compareTo(String.valueOf(b)));
+            for (int i = 1; i < sorted.size(); i++) {
+                if (String.valueOf(sorted.get(i)).equals(String.valueOf(sorted.get(i - 1)))) {
+                    throw new FiniteStateMachineException(kind + " must have distinct toString values to be snapshotted, found two: " + sorted.get(i), FiniteStateMachineException.Reason.INVALID_DEFINITION);
+                }
+            }
+            return sorted.toArray();
+        }
+
+        private static Map<Object, Integer> indexes(Object[] byId) {
+            Map<Object, Integer> ids = new HashMap<>(byId.length * 2);
+            for (int i = 0; i < byId.length; i++) {
+                if (null != byId[i]) {
+                    ids.put(byId[i], i);
+                }
+            }
+            return ids;
+        }
+
+        /*
+         * FNV-1a over a canonical description of the definition: the state and event identifiers, the
+         * initial state, and the transitions sorted by their description. Transition actions and
+         * hooks are code, and are not part of the fingerprint
+         */
+        private long fingerprint(FsmDefinition<?, ?, ?> definition) {
+            List<String> transitions = new ArrayList<>(definition.getTransitions().size());
+            for (Transition<?, ?, ?> t : definition.getTransitions()) {
+                transitions.add(t.getFromState() + "\u0000" + t.getOnEvent() + "\u0000" + t.getToState());
+            }
+            transitions.sort(null);
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < stateById.length; i++) {
+                hash = hash(hash, "state " + i + "=" + stateById[i]);
+            }
+            for (int i = 0; i < eventById.length; i++) {
+                hash = hash(hash, "event " + i + "=" + eventById[i]);
+            }
+            hash = hash(hash, "initial=" + definition.getInitialState());
+            for (String transition : transitions) {
+                hash = hash(hash, transition);
+            }
+            return hash;
+        }
+
+        private static long hash(long hash, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            return (hash ^ 0xffff) * 0x100000001b3L;
+        }
+
+        long getFingerprint() {
+            return fingerprint;
+        }
+
+        int idOf(StateType state) {
+            return idByState.get(state);
+        }
+
+        int eventIdOf(Object event) {
+            return idByEvent.get(event);
+        }
+
+        /**
+         * @return one more than the largest state identifier
+         */
+        int stateIdLimit() {
+            return stateById.length;
+        }
+
+        /**
+         * @return the state with an identifier, or null when no state of the definition has it
+         */
+        StateType stateAt(int id) {
+            return stateById[id];
+        }
+
+        StateType stateOf(int id) {
+            StateType state = id >= 0 && id < stateById.length ? stateById[id] : null;
+            if (null == state) {
+                throw new FiniteStateMachineException("Invalid snapshot: no state has the identifier " + id, FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Writes the current state of every instance to a channel, in iteration order
+     *
+     * @param definition
+     *            the definition every instance belongs to
+     * @param instances
+     *            the instances to snapshot
+     * @param channel
+     *            the channel the snapshots are written to. It is not closed
+     * @throws IOException
+     *             when the channel fails
+     * @throws FiniteStateMachineException
+     *             when an instance belongs to another definition
+     */
+    public static <StateType extends State<Context>, Event, Context> void write(FsmDefinition<StateType, Event, Context> definition, Collection<? extends FsmInstance<StateType, Event, Context>> instances, WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(instances);
+        Objects.requireNonNull(channel);
+        Ids<StateType> ids = definition.snapshotIds();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        buffer.putInt(MAGIC).put(VERSION).putLong(ids.getFingerprint()).put((byte) ids.width).putInt(instances.size());
+        int written = 0;
+        for (FsmInstance<StateType, Event, Context> instance : instances) {
+            if (instance.getDefinition() != definition) {
+                throw new FiniteStateMachineException("Instance " + written + " belongs to another definition", FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+            }
+            if (buffer.remaining() < 4) {
+                flush(buffer, channel);
+            }
+            int id = ids.idOf(instance.getCurrentState());
+            switch (ids.width) {
+            case 1:
+                buffer.put((byte) id);
+                break;
+            case 2:
+                buffer.putShort((short) id);
+                break;
+            default:
+                buffer.putInt(id);
+            }
+            written++;
+        }
+        if (written != instances.size()) {
+            throw new IllegalStateException("The instances changed while they were written");
+        }
+        flush(buffer, channel);
+    }
+
+    static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    /**
+     * Reads snapshots written by write, creating one instance of the definition in its snapshotted
+     * state for each of them. No entry hooks run
+     *
+     * @param definition
+     *            the definition the snapshots were taken from
+     * @param channel
+     *            the channel the snapshots are read from. It is not closed
+     * @param contexts
+     *            supplies the Context of each instance, by its position in the snapshots
+     * @return the restored instances, in the order they were written
+     * @throws IOException
+     *             when the channel fails or ends early
+     * @throws FiniteStateMachineException
+     *             when the snapshots are not in this format, or were taken from a definition with
+     *             another fingerprint
+     */
+    public static <StateType extends State<Context>, Event, Context> List<FsmInstance<StateType, Event, Context>> read(FsmDefinition<StateType, Event, Context> definition, ReadableByteChannel channel, IntFunction<Context> contexts) throws IOException {
+        Objects.requireNonNull(channel);
+        Objects.requireNonNull(contexts);
+        Ids<StateType> ids = definition.snapshotIds();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        ((Buffer) buffer).limit(HEADER_BYTES);
+        fill(buffer, channel);
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new FiniteStateMachineException("Invalid snapshot: unknown format", FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+        }
+        checkFingerprint(ids, buffer.getLong());
+        int width = buffer.get();
+        int count = buffer.getInt();
+        if (width != ids.width || count < 0) {
+            throw new FiniteStateMachineException("Invalid snapshot: corrupt header", FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+        }
+        List<FsmInstance<StateType, Event, Context>> instances = new ArrayList<>(count);
+        ((Buffer) buffer).clear().flip();
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < width) {
+                buffer.compact();
+                ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), buffer.position() + (long) (count - i) * width));
+                fill(buffer, channel);
+            }
+            int id;
+            switch (width) {
+            case 1:
+                id = buffer.get() & 0xff;
+                break;
+            case 2:
+                id = buffer.getShort() & 0xffff;
+                break;
+            default:
+                id = buffer.getInt();
+            }
+            FsmInstance<StateType, Event, Context> instance = definition.newInstance(contexts.apply(i));
+            instance.restoreState(ids.stateOf(id));
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /*
+     * Reads until the buffer's limit, then flips it for reading
+     */
+    static void fill(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("The channel ended early");
+            }
+        }
+        ((Buffer) buffer).flip();
+    }
+
+    static void checkFingerprint(Ids<?> ids, long fingerprint) {
+        checkFingerprint(ids.getFingerprint(), fingerprint);
+    }
+
+    static void checkFingerprint(long expected, long fingerprint) {
+        if (fingerprint != expected) {
+            throw new FiniteStateMachineException("Invalid snapshot: taken from a definition with fingerprint " + Long.toHexString(fingerprint) + ", expected " + Long.toHexString(expected), FiniteStateMachineException.Reason.INVALID_SNAPSHOT);
+        }
+    }
+}
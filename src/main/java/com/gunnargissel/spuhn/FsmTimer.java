@@ -0,0 +1,254 @@
+package com.gunnargissel.spuhn;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Drives the timed transitions of any number of FsmInstances from one hashed timing wheel. An
+ * attached instance arms its timer when it enters a state with a timeout, and cancels it when it
+ * leaves that state. Both are constant time, and each instance reuses a single timer node, so no
+ * task objects are allocated while instances transition.
+ *
+ * The wheel is a ring of slots, each a tick long. A timeout is put in the slot of the tick it
+ * expires in, along with the number of turns of the wheel left before then, so timeouts much longer
+ * than one turn need no extra slots.
+ *
+ * A timer has no thread of its own. advance() reads the clock, walks every tick that has passed
+ * since the last call, and fires each expired timeout's event at its instance on the calling
+ * thread. Call it from the event loop that uses the attached instances, or from a single periodic
+ * task that is otherwise the only user of them: instances are not thread safe, and the timer does
+ * not make them so. A timeout fires no earlier than its duration after the state was entered, and at
+ * most one tick after that plus however late advance() is called.
+ *
+ * The clock is a LongSupplier of nanoseconds, System::nanoTime by default, so tests can drive a
+ * timer deterministically.
+ *
+ * @author gunnar.gissel
+ */
+public final class FsmTimer {
+
+    private static final int DEFAULT_SLOTS = 512;
+
+    /*
+     * The timer node of one attached instance. It is linked into a slot of the wheel while the
+     * instance is in a state with a timeout
+     */
+    static final class Timeout {
+        final FsmTimer timer;
+        final FsmInstance<?, ?, ?> instance;
+        Transition<?, ?, ?> timed;
+        Timeout prev;
+        Timeout next;
+        // the slot this node is linked into, or -1 when it is not armed
+        int slot = -1;
+        long rounds;
+
+        Timeout(FsmTimer timer, FsmInstance<?, ?, ?> instance) {
+            this.timer = timer;
+            this.instance = instance;
+        }
+    }
+
+    private final LongSupplier clock;
+    private final long tickNanos;
+    private final long start;
+    private final Timeout[] wheel;
+    private final int mask;
+    // guarded by this
+    private long tick;
+    private int armed;
+
+    /**
+     * Constructor for FsmTimer, with 512 slots, reading System.nanoTime()
+     *
+     * @param tick
+     *            how long each slot of the wheel is; timeouts are rounded up to whole ticks
+     */
+    public FsmTimer(Duration tick) {
+        this(tick, DEFAULT_SLOTS, System::nanoTime);
+    }
+
+    /**
+     * Constructor for FsmTimer
+     *
+     * @param tick
+     *            how long each slot of the wheel is; timeouts are rounded up to whole ticks
+     * @param slots
+     *            the number of slots in the wheel, rounded up to a power of two
+     * @param clock
+     *            the current time in nanoseconds, which must never go backwards
+     */
+    public FsmTimer(Duration tick, int slots, LongSupplier clock) {
+        Objects.requireNonNull(tick);
+        Objects.requireNonNull(clock);
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive: " + tick);
+        }
+        if (slots <= 0 || slots > 1 << 30) {
+            throw new IllegalArgumentException("slots must be between 1 and " + (1 << 30) + ": " + slots);
+        }
+        int size = Integer.highestOneBit(slots) == slots ? slots : Integer.highestOneBit(slots) << 1;
+        this.clock = clock;
+        this.tickNanos = tick.toNanos();
+        this.start = clock.getAsLong();
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Drives the timed transitions of an instance from now on. If the instance is already in a
+     * state with a timeout, the timeout starts now. An instance is driven by at most one timer;
+     * attaching it to another detaches it from this one
+     *
+     * @param instance
+     *            the instance to drive
+     */
+    public void attach(FsmInstance<?, ?, ?> instance) {
+        Timeout node = instance.timeout;
+        if (null != node) {
+            if (node.timer == this) {
+                return;
+            }
+            node.timer.detach(instance);
+        }
+        node = new Timeout(this, instance);
+        instance.timeout = node;
+        instance.armTimeout();
+    }
+
+    /**
+     * Stops driving the timed transitions of an instance, cancelling its pending timeout
+     *
+     * @param instance
+     *            an instance attached to this timer
+     */
+    public void detach(FsmInstance<?, ?, ?> instance) {
+        Timeout node = instance.timeout;
+        if (null != node && node.timer == this) {
+            entered(node, null);
+            instance.timeout = null;
+        }
+    }
+
+    /*
+     * Cancels the node's timeout, if armed, and arms it for the timed transition out of the state
+     * just entered, if any
+     */
+    void entered(Timeout node, Transition<?, ?, ?> timed) {
+        // a node is only armed here, on its instance's thread, so one seen disarmed stays disarmed
+        if (null == timed && node.slot < 0 && null == node.timed) {
+            return;
+        }
+        synchronized (this) {
+            if (node.slot >= 0) {
+                unlink(node);
+            }
+            // also invalidates a timeout that has expired but not yet fired
+            node.timed = timed;
+            if (null != timed) {
+                long now = clock.getAsLong() - start;
+                long expiry = Math.max(tick, (now + timed.timeout.toNanos() + tickNanos - 1) / tickNanos);
+                node.rounds = (expiry - tick) / wheel.length;
+                link(node, (int) (expiry & mask));
+            }
+        }
+    }
+
+    private void link(Timeout node, int slot) {
+        Timeout head = wheel[slot];
+        node.prev = null;
+        node.next = head;
+        if (null != head) {
+            head.prev = node;
+        }
+        wheel[slot] = node;
+        node.slot = slot;
+        armed++;
+    }
+
+    private void unlink(Timeout node) {
+        if (null == node.prev) {
+            wheel[node.slot] = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (null != node.next) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.slot = -1;
+        armed--;
+    }
+
+    /**
+     * Walks every tick that has passed since the last call, and fires the event of each expired
+     * timeout at its instance, on the calling thread. An event the instance rejects, for instance
+     * because no guard holds, is reported to the definition's FsmMetricsListener and otherwise
+     * dropped. A timeout whose instance moved on before its turn came, such as by the action of
+     * another timeout fired in the same call, is skipped
+     *
+     * @return the number of timeouts whose event was applied
+     */
+    public int advance() {
+        List<Timeout> expired = null;
+        List<Transition<?, ?, ?>> expiredTimed = null;
+        synchronized (this) {
+            long now = (clock.getAsLong() - start) / tickNanos;
+            while (tick <= now && armed > 0) {
+                int slot = (int) (tick & mask);
+                Timeout node = wheel[slot];
+                while (null != node) {
+                    Timeout following = node.next;
+                    if (node.rounds <= 0) {
+                        unlink(node);
+                        if (null == expired) {
+                            expired = new ArrayList<>();
+                            expiredTimed = new ArrayList<>();
+                        }
+                        expired.add(node);
+                        expiredTimed.add(node.timed);
+                    } else {
+                        node.rounds--;
+                    }
+                    node = following;
+                }
+                tick++;
+            }
+            if (armed == 0 && tick <= now) {
+                tick = now + 1;
+            }
+        }
+        if (null == expired) {
+            return 0;
+        }
+        int fired = 0;
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout node = expired.get(i);
+            Transition<?, ?, ?> timed = expiredTimed.get(i);
+            // an earlier event may have re-armed or cancelled the timeout since it expired
+            if (claim(node, timed) && node.instance.fireTimeout(timed)) {
+                fired++;
+            }
+        }
+        return fired;
+    }
+
+    private synchronized boolean claim(Timeout node, Transition<?, ?, ?> timed) {
+        if (node.slot >= 0 || node.timed != timed) {
+            return false;
+        }
+        node.timed = null;
+        return true;
+    }
+
+    /**
+     * @return the number of attached instances whose timeout is pending
+     */
+    public synchronized int getPending() {
+        return armed;
+    }
+}
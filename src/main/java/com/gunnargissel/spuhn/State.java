@@ -1,7 +1,43 @@
 package com.gunnargissel.spuhn;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A state of a finite state machine, with optional lifecycle hooks. A transition runs the exit hook
+ * of the state it leaves, then its action, then the enter hook of the state it arrives in. Hooks
+ * that a state does not override are found when the definition is built and are never called, so
+ * they cost nothing per event
+ */
 public interface State<Context> {
 
-	void enter(Context ctx);
+	/**
+	 * Entry hook, run after the action of a transition into this state. With nested states, it
+	 * also runs when a transition enters a state that has this state as its parent. Does nothing by
+	 * default
+	 * @param ctx the Context of the machine entering this state
+	 */
+	default void enter(Context ctx) {
+	}
+
+	/**
+	 * Exit hook, run before the action of a transition out of this state. With nested states, it
+	 * also runs when a transition leaves a state that has this state as its parent. Does nothing by
+	 * default
+	 * @param ctx the Context of the machine leaving this state
+	 */
+	default void exit(Context ctx) {
+	}
+
+	/**
+	 * Entry hook used by AsyncFiniteStateMachine. Override it when entering this state starts
+	 * non-blocking work; by default it runs enter on the calling thread
+	 * @param ctx the Context of the machine entering this state
+	 * @return a stage that completes when entering this state is done
+	 */
+	default CompletionStage<Void> enterAsync(Context ctx) {
+		enter(ctx);
+		return CompletableFuture.completedFuture(null);
+	}
 	
 }
@@ -1,28 +1,127 @@
 package com.gunnargissel.spuhn;
 
+import java.time.Duration;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public abstract class Transition<State,Event,Context> {
 
 	private final State fromState;
 	private final State toState;
 	private final Event onEvent;
-	private final Optional<Consumer<Context>> transitionFunc;
+	private final Consumer<Context> transitionFunc;
+	private final Function<Context, CompletionStage<Void>> asyncTransitionFunc;
+	final Predicate<Context> guard;
+	final Duration timeout;
+	// the timed transition out of this transition's to state, if any. Assigned when the definition is built
+	Transition<State, Event, Context> timeoutOnEntry;
+	/*
+	 * When a from state and event have guarded transitions, the transition stored in the table
+	 * holds every candidate in the order they are tried, itself included. Null otherwise
+	 */
+	Transition<State, Event, Context>[] candidates;
+	// position in the FsmDefinition's transition list, assigned when the definition is built
+	int index = -1;
+	/*
+	 * The states this transition exits, innermost first, and enters, outermost first, leaving out
+	 * states that do not override the hook. Assigned when the definition is built; without nested
+	 * states they are at most the from and the to state. asyncEntry is the to state when it
+	 * overrides enterAsync, and null otherwise
+	 */
+	com.gunnargissel.spuhn.State<Context>[] exits;
+	com.gunnargissel.spuhn.State<Context>[] entries;
+	com.gunnargissel.spuhn.State<Context> asyncEntry;
 	
 	public Transition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc){
+		this(fromState, toState, onEvent, transitionFunc, null);
+	}
+
+	public Transition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc){
+		this(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc, null);
+	}
+
+	public Transition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc, Predicate<Context> guard){
+		this(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc, guard, null);
+	}
+
+	public Transition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc, Predicate<Context> guard, Duration timeout){
 		Objects.requireNonNull(fromState);
 		Objects.requireNonNull(toState);
 		Objects.requireNonNull(onEvent);
 		this.fromState = fromState;
 		this.toState = toState;
 		this.onEvent = onEvent;
-		this.transitionFunc = Optional.ofNullable(transitionFunc);
+		this.transitionFunc = transitionFunc;
+		this.asyncTransitionFunc = asyncTransitionFunc;
+		this.guard = guard;
+		this.timeout = timeout;
 	}
 	
+	/**
+	 * Runs this transition's action. An asynchronous action is joined on the calling thread
+	 * @param ctx the Context of the machine taking this transition
+	 */
 	public void transit(Context ctx){
-		transitionFunc.ifPresent(contextConsumer -> contextConsumer.accept(ctx));
+		if (null != transitionFunc) {
+			transitionFunc.accept(ctx);
+		}
+		if (null != asyncTransitionFunc) {
+			try {
+				asyncTransitionFunc.apply(ctx).toCompletableFuture().join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Starts this transition's action. A synchronous action runs on the calling thread and returns
+	 * an already completed stage
+	 * @param ctx the Context of the machine taking this transition
+	 * @return a stage that completes when the action is done
+	 */
+	public CompletionStage<Void> transitAsync(Context ctx){
+		if (null != asyncTransitionFunc) {
+			return asyncTransitionFunc.apply(ctx);
+		}
+		if (null != transitionFunc) {
+			transitionFunc.accept(ctx);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	void runExitHooks(Context ctx) {
+		for (com.gunnargissel.spuhn.State<Context> state : exits) {
+			state.exit(ctx);
+		}
+	}
+
+	void runEntryHooks(Context ctx) {
+		for (com.gunnargissel.spuhn.State<Context> state : entries) {
+			state.enter(ctx);
+		}
+	}
+
+	CompletionStage<Void> runEntryHooksAsync(Context ctx) {
+		if (null == asyncEntry) {
+			runEntryHooks(ctx);
+			return CompletableFuture.completedFuture(null);
+		}
+		for (com.gunnargissel.spuhn.State<Context> state : entries) {
+			if (state != asyncEntry) {
+				state.enter(ctx);
+			}
+		}
+		return asyncEntry.enterAsync(ctx);
 	}
 
 	public State getFromState() {
@@ -38,7 +137,27 @@ public abstract class Transition<State,Event,Context> {
 	}
 
 	public Optional<Consumer<Context>> getTransitionFunc() {
-		return transitionFunc;
+		return Optional.ofNullable(transitionFunc);
+	}
+
+	public Optional<Function<Context, CompletionStage<Void>>> getAsyncTransitionFunc() {
+		return Optional.ofNullable(asyncTransitionFunc);
+	}
+
+	/**
+	 * @return the predicate that must hold on the machine's Context for this transition to be taken,
+	 * or empty when the transition is unguarded
+	 */
+	public Optional<Predicate<Context>> getGuard() {
+		return Optional.ofNullable(guard);
+	}
+
+	/**
+	 * @return how long an instance stays in the from state before an FsmTimer fires this
+	 * transition's event at it, or empty when the transition is not timed
+	 */
+	public Optional<Duration> getTimeout() {
+		return Optional.ofNullable(timeout);
 	}
 
 	@Override
@@ -49,6 +168,9 @@ public abstract class Transition<State,Event,Context> {
 		result = prime * result + ((onEvent == null) ? 0 : onEvent.hashCode());
 		result = prime * result + ((toState == null) ? 0 : toState.hashCode());
 		result = prime * result + ((transitionFunc == null) ? 0 : transitionFunc.hashCode());
+		result = prime * result + ((asyncTransitionFunc == null) ? 0 : asyncTransitionFunc.hashCode());
+		result = prime * result + ((guard == null) ? 0 : guard.hashCode());
+		result = prime * result + ((timeout == null) ? 0 : timeout.hashCode());
 		return result;
 	}
 
@@ -82,12 +204,27 @@ public abstract class Transition<State,Event,Context> {
 				return false;
 		} else if (!transitionFunc.equals(other.transitionFunc))
 			return false;
+		if (asyncTransitionFunc == null) {
+			if (other.asyncTransitionFunc != null)
+				return false;
+		} else if (!asyncTransitionFunc.equals(other.asyncTransitionFunc))
+			return false;
+		if (guard == null) {
+			if (other.guard != null)
+				return false;
+		} else if (!guard.equals(other.guard))
+			return false;
+		if (timeout == null) {
+			if (other.timeout != null)
+				return false;
+		} else if (!timeout.equals(other.timeout))
+			return false;
 		return true;
 	}
 
 	@Override
 	public String toString() {
-		return "DRFSMTransition [fromState=" + fromState + ", toState=" + toState + ", onEvent=" + onEvent + ", transitionFunc=" + transitionFunc + "]";
+		return "DRFSMTransition [fromState=" + fromState + ", toState=" + toState + ", onEvent=" + onEvent + ", transitionFunc=" + getTransitionFunc() + (null == asyncTransitionFunc ? "" : ", asyncTransitionFunc=" + asyncTransitionFunc) + (null == guard ? "" : ", guard=" + guard) + (null == timeout ? "" : ", timeout=" + timeout) + "]";
 	}
 	
 	
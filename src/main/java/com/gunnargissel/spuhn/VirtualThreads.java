@@ -0,0 +1,82 @@
+package com.gunnargissel.spuhn;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Executors that run each task on its own virtual thread, for use with FsmMailbox when transition
+ * and state entry hooks block, for instance on JDBC calls. A blocked virtual thread releases its
+ * carrier thread, so thousands of mailboxes can block in their hooks at once without exhausting a
+ * thread pool, and each mailbox still processes its events one at a time, in order.
+ *
+ * This library targets Java 8, so the Java 21 virtual thread factory is looked up reflectively;
+ * isAvailable() tells whether the running JVM has it. On Java 21 to 23, a hook that blocks while
+ * holding a monitor (a synchronized block) still pins its carrier thread.
+ *
+ * <pre>
+ * FsmMailbox&lt;S, E, C&gt; mailbox = definition.newMailbox(ctx, VirtualThreads.newExecutor(), 1024, OverflowPolicy.BLOCK);
+ * </pre>
+ *
+ * @author gunnar.gissel
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return null != NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task
+     *
+     * @return a new virtual thread per task executor
+     * @throws UnsupportedOperationException
+     *             when the running JVM does not support virtual threads
+     */
+    public static ExecutorService newExecutor() {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on Java " + System.getProperty("java.version"));
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task, or falls back to another
+     * executor when the running JVM does not support virtual threads
+     *
+     * @param fallback
+     *            supplies the executor to use without virtual threads
+     * @return a new virtual thread per task executor, or the fallback executor
+     */
+    public static ExecutorService newExecutorOrElse(Supplier<ExecutorService> fallback) {
+        return isAvailable() ? newExecutor() : fallback.get();
+    }
+}
@@ -1,9 +1,40 @@
 package com.gunnargissel.spuhn.builder;
 
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public interface DuringFunctionBuilder<State, Event, Context> {
 
+    /**
+     * Guards this transition with a predicate on the machine's Context. A from state and event may
+     * have several guarded transitions; they are tried in the order they were declared, and the
+     * first whose guard holds is taken. An unguarded transition for the same from state and event
+     * is taken when no guard holds. Guards must not have side effects. Optional in valid transitions
+     * 
+     * @param guard
+     *            a Predicate that must hold on this FiniteStateMachine's Context for the transition
+     *            to be taken
+     * @return This DuringFunctionBuilder, to define the function that executes during this
+     *         transition
+     */
+    DuringFunctionBuilder<State, Event, Context> when(Predicate<Context> guard);
+
+    /**
+     * Times this transition out of its from state. When an instance attached to an FsmTimer has
+     * been in the from state for the timeout, the timer fires this transition's event at it. All the
+     * timed transitions from one state must share their event and timeout. Optional in valid
+     * transitions
+     * 
+     * @param timeout
+     *            how long an instance stays in the from state before the event is fired, positive
+     * @return This DuringFunctionBuilder, to define the function that executes during this
+     *         transition
+     */
+    DuringFunctionBuilder<State, Event, Context> after(Duration timeout);
+
     /**
      * Defines the Consumer that will execute during this transition. Optional in valid transitions
      * 
@@ -15,4 +46,18 @@ public interface DuringFunctionBuilder<State, Event, Context> {
      */
     TransitionBuilder<State, Event, Context> during(Consumer<Context> func);
 
+    /**
+     * Defines an asynchronous function that will execute during this transition, replacing any
+     * Consumer given to during. An AsyncFiniteStateMachine only commits the transition's end state
+     * once the returned stage completes; other machines wait for it. Optional in valid transitions
+     * 
+     * @param func
+     *            a Function that has access to this FiniteStateMachine's Context and returns a stage
+     *            that completes when the transition's work is done
+     * @return This TransitionBuilder, to provide a final reference to the builder object, in case
+     *         you are not using the FiniteStateMachineBuilder.transition() method to create
+     *         transitions
+     */
+    TransitionBuilder<State, Event, Context> duringAsync(Function<Context, CompletionStage<Void>> func);
+
 }
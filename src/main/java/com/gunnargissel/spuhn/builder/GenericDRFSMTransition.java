@@ -2,7 +2,11 @@ package com.gunnargissel.spuhn.builder;
 
 import com.gunnargissel.spuhn.Transition;
 
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 
 public class GenericDRFSMTransition<State,Event,Context> extends Transition<State,Event,Context> {
@@ -11,4 +15,16 @@ public class GenericDRFSMTransition<State,Event,Context> extends Transition<Stat
 		super(fromState, toState, onEvent, transitionFunc);
 	}
 
+	public GenericDRFSMTransition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc) {
+		super(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc);
+	}
+
+	public GenericDRFSMTransition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc, Predicate<Context> guard) {
+		super(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc, guard);
+	}
+
+	public GenericDRFSMTransition(State fromState, State toState, Event onEvent, Consumer<Context> transitionFunc, Function<Context, CompletionStage<Void>> asyncTransitionFunc, Predicate<Context> guard, Duration timeout) {
+		super(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc, guard, timeout);
+	}
+
 }
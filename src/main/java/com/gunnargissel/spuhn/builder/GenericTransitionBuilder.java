@@ -3,8 +3,12 @@ package com.gunnargissel.spuhn.builder;
 import com.gunnargissel.spuhn.State;
 import com.gunnargissel.spuhn.Transition;
 
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 
 public class GenericTransitionBuilder<StateType extends State<Context>, Event, Context> implements FromStateBuilder<StateType, Event, Context>, ToStateBuilder<StateType, Event, Context>,
@@ -14,6 +18,9 @@ public class GenericTransitionBuilder<StateType extends State<Context>, Event, C
 	private StateType toState;
 	private Event onEvent;
 	private Consumer<Context> transitionFunc;
+	private Function<Context, CompletionStage<Void>> asyncTransitionFunc;
+	private Predicate<Context> guard;
+	private Duration timeout;
 
 	public GenericTransitionBuilder() {
 	}
@@ -58,9 +65,34 @@ public class GenericTransitionBuilder<StateType extends State<Context>, Event, C
 		return this.onEvent;
 	}
 
+	@Override
+	public DuringFunctionBuilder<StateType, Event, Context> when(Predicate<Context> guard) {
+		Objects.requireNonNull(guard);
+		this.guard = guard;
+		return this;
+	}
+
+	@Override
+	public DuringFunctionBuilder<StateType, Event, Context> after(Duration timeout) {
+		Objects.requireNonNull(timeout);
+		if (timeout.isNegative() || timeout.isZero()) {
+			throw new IllegalArgumentException("timeout must be positive: " + timeout);
+		}
+		this.timeout = timeout;
+		return this;
+	}
+
 	@Override
 	public TransitionBuilder<StateType, Event, Context> during(Consumer<Context> func) {
 		this.transitionFunc = func;
+		this.asyncTransitionFunc = null;
+		return this;
+	}
+
+	@Override
+	public TransitionBuilder<StateType, Event, Context> duringAsync(Function<Context, CompletionStage<Void>> func) {
+		this.asyncTransitionFunc = func;
+		this.transitionFunc = null;
 		return this;
 	}
 
@@ -69,7 +101,7 @@ public class GenericTransitionBuilder<StateType extends State<Context>, Event, C
 	}
 
 	public Transition<StateType, Event, Context> build() {
-		return new GenericDRFSMTransition<StateType, Event, Context>(fromState, toState, onEvent, transitionFunc);
+		return new GenericDRFSMTransition<StateType, Event, Context>(fromState, toState, onEvent, transitionFunc, asyncTransitionFunc, guard, timeout);
 	}
 
 	@Override
@@ -0,0 +1,119 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.gunnargissel.spuhn.AsyncFiniteStateMachine.InFlightPolicy;
+
+public class AsyncFiniteStateMachineTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> builder;
+    private TestContext ctx;
+    private CompletableFuture<Void> action;
+
+    public AsyncFiniteStateMachineTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        ctx = new TestContext("test");
+        action = new CompletableFuture<>();
+        builder = new FiniteStateMachineBuilder<>(ctx, Optional.empty());
+        builder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN).duringAsync(c -> action);
+        builder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END).during(c -> c.setState("ended"));
+        builder.setInitialState(TestHookState.INITIAL);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure the new state is only committed once the action completes, and events fired
+     * meanwhile are queued
+     */
+    public void testCommitsAfterActionCompletes() throws Exception {
+        AsyncFiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = builder.buildDefinition().newAsyncInstance(ctx, InFlightPolicy.QUEUE);
+        CompletableFuture<TestHookState> begin = fsm.fireAsync(TestEvent.BEGIN);
+        CompletableFuture<TestHookState> end = fsm.fireAsync(TestEvent.END);
+        assertTrue(fsm.isInFlight());
+        assertTrue(fsm.isCurrentState(TestHookState.INITIAL));
+        assertFalse(begin.isDone());
+        assertEquals("test", ctx.getState());
+
+        action.complete(null);
+        assertEquals(TestHookState.ENTRY_HOOK, begin.get());
+        assertEquals(TestHookState.NO_ENTRY_HOOK, end.get());
+        assertEquals("ended", ctx.getState());
+        assertTrue(fsm.isCurrentState(TestHookState.NO_ENTRY_HOOK));
+        assertFalse(fsm.isInFlight());
+    }
+
+    /**
+     * Test to ensure events fired while a transition is in flight are rejected under REJECT
+     */
+    public void testRejectWhileInFlight() throws Exception {
+        AsyncFiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = builder.buildDefinition().newAsyncInstance(ctx, InFlightPolicy.REJECT);
+        CompletableFuture<TestHookState> begin = fsm.fireAsync(TestEvent.BEGIN);
+        CompletableFuture<TestHookState> end = fsm.fireAsync(TestEvent.END);
+        assertTrue(end.isCompletedExceptionally());
+        action.complete(null);
+        assertEquals(TestHookState.ENTRY_HOOK, begin.get());
+        assertEquals(TestHookState.NO_ENTRY_HOOK, fsm.fireAsync(TestEvent.END).get());
+    }
+
+    /**
+     * Test to ensure a failed action leaves the machine in its state and lets later events run
+     */
+    public void testFailedActionDoesNotCommit() throws Exception {
+        AsyncFiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = builder.buildDefinition().newAsyncInstance(ctx, InFlightPolicy.QUEUE);
+        CompletableFuture<TestHookState> begin = fsm.fireAsync(TestEvent.BEGIN);
+        CompletableFuture<TestHookState> end = fsm.fireAsync(TestEvent.END);
+        action.completeExceptionally(new IllegalStateException("unavailable"));
+        try {
+            begin.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("unavailable", e.getCause().getMessage());
+        }
+        try {
+            end.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("No transition exists from current state: INITIAL for the event: END", e.getCause().getMessage());
+        }
+        assertTrue(fsm.isCurrentState(TestHookState.INITIAL));
+        assertFalse(fsm.isInFlight());
+    }
+
+    /**
+     * Test to ensure an action that returns no stage fails its event without blocking later events
+     */
+    public void testNullStageDoesNotBlock() throws Exception {
+        FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> nullStage = new FiniteStateMachineBuilder<>(ctx, Optional.empty());
+        nullStage.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN).duringAsync(c -> null);
+        nullStage.transition().from(TestHookState.INITIAL).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        nullStage.setInitialState(TestHookState.INITIAL);
+        AsyncFiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = nullStage.buildDefinition().newAsyncInstance(ctx, InFlightPolicy.QUEUE);
+        CompletableFuture<TestHookState> begin = fsm.fireAsync(TestEvent.BEGIN);
+        assertTrue(begin.isCompletedExceptionally());
+        assertFalse(fsm.isInFlight());
+        assertTrue(fsm.isCurrentState(TestHookState.INITIAL));
+        assertEquals(TestHookState.NO_ENTRY_HOOK, fsm.fireAsync(TestEvent.END).get());
+    }
+
+    /**
+     * Test to ensure a synchronous machine waits for an asynchronous action
+     */
+    public void testSynchronousFireJoinsAsyncAction() {
+        FiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = builder.build();
+        action.complete(null);
+        fsm.fire(TestEvent.BEGIN);
+        assertTrue(fsm.isCurrentState(TestHookState.ENTRY_HOOK));
+        assertEquals("foobar", ctx.getState());
+    }
+}
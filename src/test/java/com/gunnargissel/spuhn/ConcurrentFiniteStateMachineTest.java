@@ -0,0 +1,169 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gunnargissel.spuhn.ConcurrentFiniteStateMachine.RacePolicy;
+
+public class ConcurrentFiniteStateMachineTest extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 20000;
+
+    private FiniteStateMachineBuilder<TestState, TestEvent, String> builder;
+    private AtomicInteger transitions;
+    private AtomicInteger runningHooks;
+    private AtomicInteger overlappingHooks;
+
+    public ConcurrentFiniteStateMachineTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        builder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        transitions = new AtomicInteger();
+        runningHooks = new AtomicInteger();
+        overlappingHooks = new AtomicInteger();
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END).during(ctx -> countHook());
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN).during(ctx -> countHook());
+        builder.setInitialState(TestState.INITIAL);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private void countHook() {
+        if (runningHooks.incrementAndGet() > 1) {
+            overlappingHooks.incrementAndGet();
+        }
+        transitions.incrementAndGet();
+        runningHooks.decrementAndGet();
+    }
+
+    /**
+     * Fires END and BEGIN from many threads at once, and returns the number of events that were
+     * accepted by the machine
+     */
+    private int fireFromManyThreads(ConcurrentFiniteStateMachine<TestState, TestEvent, String> fsm) throws Exception {
+        AtomicInteger accepted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            TestEvent event = i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN;
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                    try {
+                        fsm.fire(event);
+                        accepted.incrementAndGet();
+                    } catch (FiniteStateMachineException e) {
+                        // no transition for this event from the state another thread committed
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return accepted.get();
+    }
+
+    public void testSingleThreadedEventHandling() {
+        ConcurrentFiniteStateMachine<TestState, TestEvent, String> fsm = builder.buildDefinition().newConcurrentInstance("context", RacePolicy.REJECT);
+        assertTrue(fsm.isCurrentState(TestState.INITIAL));
+        fsm.fire(TestEvent.END);
+        assertTrue(fsm.isCurrentState(TestState.END));
+        try {
+            fsm.fire(TestEvent.END);
+        } catch (FiniteStateMachineException e) {
+            assertEquals("No transition exists from current state: END for the event: END", e.getMessage());
+            fsm.initialize();
+            assertTrue(fsm.isCurrentState(TestState.INITIAL));
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure every accepted event commits exactly one transition when threads race
+     */
+    public void testRetryCommitsEveryAcceptedEvent() throws Exception {
+        ConcurrentFiniteStateMachine<TestState, TestEvent, String> fsm = builder.buildDefinition().newConcurrentInstance("context", RacePolicy.RETRY);
+        int accepted = fireFromManyThreads(fsm);
+        assertEquals(accepted, transitions.get());
+        assertEquals(accepted % 2 == 0 ? TestState.INITIAL : TestState.END, fsm.getCurrentState());
+    }
+
+    /**
+     * Test to ensure hooks never overlap under the SERIALIZED policy
+     */
+    public void testSerializedHooksNeverOverlap() throws Exception {
+        ConcurrentFiniteStateMachine<TestState, TestEvent, String> fsm = builder.buildDefinition().newConcurrentInstance("context", RacePolicy.SERIALIZED);
+        int accepted = fireFromManyThreads(fsm);
+        assertEquals(accepted, transitions.get());
+        assertEquals(0, overlappingHooks.get());
+        assertEquals(accepted % 2 == 0 ? TestState.INITIAL : TestState.END, fsm.getCurrentState());
+    }
+
+    /**
+     * Test to ensure a hook firing at its own machine fails instead of waiting for itself forever
+     */
+    public void testSerializedHookMayNotFireAtItsOwnMachine() {
+        FiniteStateMachineBuilder<TestState, TestEvent, String> reentrant = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        List<ConcurrentFiniteStateMachine<TestState, TestEvent, String>> machine = new ArrayList<>();
+        reentrant.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END).during(ctx -> machine.get(0).fire(TestEvent.BEGIN));
+        reentrant.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        reentrant.setInitialState(TestState.INITIAL);
+        machine.add(reentrant.buildDefinition().newConcurrentInstance("context", RacePolicy.SERIALIZED));
+        try {
+            machine.get(0).fire(TestEvent.END);
+        } catch (FiniteStateMachineException e) {
+            assertTrue(machine.get(0).isCurrentState(TestState.INITIAL));
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure an event waiting for a blocking hook under the SERIALIZED policy parks instead
+     * of spinning, and is applied once the hook returns
+     */
+    public void testSerializedWaiterParks() throws Exception {
+        FiniteStateMachineBuilder<TestState, TestEvent, String> blocking = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blocking.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END).during(ctx -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        blocking.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        blocking.setInitialState(TestState.INITIAL);
+        ConcurrentFiniteStateMachine<TestState, TestEvent, String> fsm = blocking.buildDefinition().newConcurrentInstance("context", RacePolicy.SERIALIZED);
+        Thread owner = new Thread(() -> fsm.fire(TestEvent.END));
+        owner.start();
+        entered.await();
+        Thread waiter = new Thread(() -> fsm.fire(TestEvent.BEGIN));
+        waiter.start();
+        for (int i = 0; i < 500 && waiter.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        release.countDown();
+        owner.join(5000);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(TestState.INITIAL, fsm.getCurrentState());
+    }
+}
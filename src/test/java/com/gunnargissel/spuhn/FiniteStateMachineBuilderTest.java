@@ -1,5 +1,10 @@
 package com.gunnargissel.spuhn;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
 
@@ -67,4 +72,97 @@ public class FiniteStateMachineBuilderTest extends TestCase {
             fail();
         }
     }
+
+    public void testDefinitionSharedByInstances() {
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        builder.setInitialState(TestState.INITIAL);
+        FsmDefinition<TestState, TestEvent, String> definition = builder.buildDefinition();
+        FsmInstance<TestState, TestEvent, String> first = definition.newInstance("first");
+        FsmInstance<TestState, TestEvent, String> second = definition.newInstance("second");
+        first.fire(TestEvent.END);
+        assertTrue(first.isCurrentState(TestState.END));
+        assertTrue(second.isCurrentState(TestState.INITIAL));
+        assertSame(definition, second.getDefinition());
+        assertEquals("second", second.getContext());
+        first.initialize();
+        assertTrue(first.isCurrentState(TestState.INITIAL));
+    }
+
+    public void testLongChainValidates() {
+        FiniteStateMachineBuilder<TestIndexedState, String, String> chainBuilder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        int states = 100000;
+        for (int i = 0; i < states - 1; i++) {
+            chainBuilder.transition().from(new TestIndexedState(i)).to(new TestIndexedState(i + 1)).on("next");
+        }
+        chainBuilder.setInitialState(new TestIndexedState(0));
+        FsmDefinition<TestIndexedState, String, String> definition = chainBuilder.buildDefinition();
+        assertEquals(states, definition.getStates().size());
+        assertEquals(Collections.singleton(new TestIndexedState(states - 1)), definition.getSinkStates());
+    }
+
+    public void testSinkStatesReported() {
+        builder.transition().from(TestState.TOP_DIAMOND).to(TestState.LEFT_DIAMOND).on(TestEvent.LEFT);
+        builder.transition().from(TestState.TOP_DIAMOND).to(TestState.RIGHT_DIAMOND).on(TestEvent.RIGHT);
+        builder.transition().from(TestState.LEFT_DIAMOND).to(TestState.BOTTOM_DIAMOND).on(TestEvent.DOWN);
+        builder.setInitialState(TestState.TOP_DIAMOND);
+        FsmDefinition<TestState, TestEvent, String> definition = builder.buildDefinition();
+        assertEquals(new HashSet<>(Arrays.asList(TestState.RIGHT_DIAMOND, TestState.BOTTOM_DIAMOND)), definition.getSinkStates());
+    }
+
+    public void testAllUnreachableStatesReported() {
+        builder.transition().from(TestState.TOP_DIAMOND).to(TestState.RIGHT_DIAMOND).on(TestEvent.RIGHT);
+        builder.transition().from(TestState.LEFT_DIAMOND).to(TestState.BOTTOM_DIAMOND).on(TestEvent.DOWN);
+        builder.setInitialState(TestState.TOP_DIAMOND);
+        try {
+            builder.buildDefinition();
+        } catch (FiniteStateMachineException e) {
+            assertEquals("The following states are not reachable from the initial state: LEFT_DIAMOND, BOTTOM_DIAMOND", e.getMessage());
+            return;
+        }
+        fail();
+    }
+
+    private FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> nestedBuilder(List<String> log) {
+        FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> nested = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        nested.setParent(TestNestedState.EDITING, TestNestedState.WORKING);
+        nested.setParent(TestNestedState.REVIEWING, TestNestedState.WORKING);
+        nested.transition().from(TestNestedState.IDLE).to(TestNestedState.EDITING).on(TestEvent.BEGIN).during(l -> l.add("begin"));
+        nested.transition().from(TestNestedState.EDITING).to(TestNestedState.REVIEWING).on(TestEvent.RIGHT);
+        nested.transition().from(TestNestedState.WORKING).to(TestNestedState.CANCELLED).on(TestEvent.CANCEL).during(l -> l.add("cancel"));
+        nested.transition().from(TestNestedState.REVIEWING).to(TestNestedState.EDITING).on(TestEvent.CANCEL);
+        nested.transition().from(TestNestedState.CANCELLED).to(TestNestedState.IDLE).on(TestEvent.REFRESH);
+        nested.setInitialState(TestNestedState.IDLE);
+        return nested;
+    }
+
+    public void testNestedStatesInheritTransitions() {
+        List<String> log = new ArrayList<>();
+        FsmDefinition<TestNestedState, TestEvent, List<String>> definition = nestedBuilder(log).buildDefinition();
+        assertFalse(definition.getStates().contains(TestNestedState.WORKING));
+        assertEquals(TestNestedState.CANCELLED, definition.getTransition(TestNestedState.EDITING, TestEvent.CANCEL).getToState());
+        assertEquals(TestNestedState.EDITING, definition.getTransition(TestNestedState.REVIEWING, TestEvent.CANCEL).getToState());
+
+        FsmInstance<TestNestedState, TestEvent, List<String>> instance = definition.newInstance(log);
+        instance.fire(TestEvent.BEGIN);
+        assertEquals(Arrays.asList("exit IDLE", "begin", "enter WORKING", "enter EDITING"), log);
+        log.clear();
+        instance.fire(TestEvent.RIGHT);
+        assertEquals(Arrays.asList("exit EDITING", "enter REVIEWING"), log);
+        log.clear();
+        instance.fire(TestEvent.CANCEL);
+        instance.fire(TestEvent.CANCEL);
+        assertEquals(Arrays.asList("exit REVIEWING", "enter EDITING", "exit EDITING", "exit WORKING", "cancel", "enter CANCELLED"), log);
+    }
+
+    public void testTransitionsMayNotEndInParentStates() {
+        FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> nested = nestedBuilder(new ArrayList<>());
+        nested.transition().from(TestNestedState.CANCELLED).to(TestNestedState.WORKING).on(TestEvent.BEGIN);
+        try {
+            nested.buildDefinition();
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+    }
 }
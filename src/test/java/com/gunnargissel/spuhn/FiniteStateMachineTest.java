@@ -2,6 +2,11 @@ package com.gunnargissel.spuhn;
 
 import junit.framework.TestCase;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 public class FiniteStateMachineTest extends TestCase {
@@ -326,4 +331,314 @@ public class FiniteStateMachineTest extends TestCase {
         hookFsm.fire(TestEvent.END);
         assertEquals("reset", hookCtx.getState());
     }
+
+    /**
+     * Test to ensure machines whose events are not an enum fall back to the HashMap transition
+     * table and still dispatch and reject events
+     */
+    public void testNonEnumEventHandling() {
+        FiniteStateMachineBuilder<TestState, String, String> stringBuilder = new FiniteStateMachineBuilder<>(ctx, Optional.empty());
+        stringBuilder.transition().from(TestState.INITIAL).to(TestState.END).on("end");
+        stringBuilder.transition().from(TestState.END).to(TestState.INITIAL).on("begin");
+        stringBuilder.setInitialState(TestState.INITIAL);
+        FiniteStateMachine<TestState, String, String> stringFsm = stringBuilder.build();
+        stringFsm.fire("end");
+        assertTrue(stringFsm.isCurrentState(TestState.END));
+        try {
+            stringFsm.fire("end");
+        } catch (FiniteStateMachineException e) {
+            assertTrue(stringFsm.isCurrentState(TestState.END));
+            assertEquals("No transition exists from current state: END for the event: end", e.getMessage());
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure an event fired from a state without outgoing transitions is rejected
+     */
+    public void testEventFromFinalState() {
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.setInitialState(TestState.INITIAL);
+        fsm = builder.build();
+        fsm.fire(TestEvent.END);
+        try {
+            fsm.fire(TestEvent.END);
+        } catch (FiniteStateMachineException e) {
+            assertTrue(fsm.isCurrentState(TestState.END));
+            assertEquals("No transition exists from current state: END for the event: END", e.getMessage());
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure firing events does not allocate once the dispatch path has warmed up
+     */
+    public void testFireDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        builder.setInitialState(TestState.INITIAL);
+        fsm = builder.build();
+        int events = 200000;
+        for (int i = 0; i < events; i++) {
+            fsm.fire(i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < events; i++) {
+            fsm.fire(i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        // allow for the measurement itself, but not for a single byte per event
+        assertTrue("fire() allocated " + allocated + " bytes for " + events + " events", allocated < events);
+    }
+
+    /**
+     * Test to ensure a batch of events is applied in order and reported as complete
+     */
+    public void testFireAll() {
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        builder.setInitialState(TestState.INITIAL);
+        fsm = builder.build();
+        BatchResult<TestState> result = fsm.fireAll(new TestEvent[] { TestEvent.END, TestEvent.BEGIN, TestEvent.END });
+        assertTrue(result.isComplete());
+        assertEquals(3, result.getApplied());
+        assertEquals(-1, result.getRejectedIndex());
+        assertEquals(TestState.END, result.getFinalState());
+        assertTrue(fsm.isCurrentState(TestState.END));
+        result = fsm.fireAll(Arrays.asList(TestEvent.BEGIN, TestEvent.END));
+        assertTrue(result.isComplete());
+        assertEquals(2, result.getApplied());
+    }
+
+    /**
+     * Test to ensure a batch stops at the first rejected event, keeping the events before it
+     */
+    public void testFireAllStopsAtRejectedEvent() {
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        builder.setInitialState(TestState.INITIAL);
+        fsm = builder.build();
+        BatchResult<TestState> result = fsm.fireAll(new TestEvent[] { TestEvent.END, TestEvent.END, TestEvent.BEGIN });
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getApplied());
+        assertEquals(1, result.getRejectedIndex());
+        assertEquals(TestState.END, result.getFinalState());
+        assertEquals("No transition exists from current state: END for the event: END", result.getRejection().getMessage());
+        assertTrue(fsm.isCurrentState(TestState.END));
+    }
+
+    /**
+     * Test to ensure a batch validated up front runs no hooks when one of its events is rejected
+     */
+    public void testFireAllValidateFirst() {
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN);
+        hookBuilder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        hookBuilder.setInitialState(TestHookState.INITIAL);
+        hookFsm = hookBuilder.build();
+        BatchResult<TestHookState> result = hookFsm.fireAll(Arrays.asList(TestEvent.BEGIN, TestEvent.END, TestEvent.END), FsmInstance.BatchMode.VALIDATE_FIRST);
+        assertEquals(0, result.getApplied());
+        assertEquals(2, result.getRejectedIndex());
+        assertEquals(TestHookState.INITIAL, result.getFinalState());
+        assertEquals("test", hookCtx.getState());
+        result = hookFsm.fireAll(new TestEvent[] { TestEvent.BEGIN, TestEvent.END }, FsmInstance.BatchMode.VALIDATE_FIRST);
+        assertTrue(result.isComplete());
+        assertEquals("foobar", hookCtx.getState());
+        assertTrue(hookFsm.isCurrentState(TestHookState.NO_ENTRY_HOOK));
+    }
+
+    /**
+     * Test to ensure completed transitions and rejected events are reported to the metrics
+     * listener, also by repeated builds and concurrent instances, and that a listener cannot be
+     * shared by definitions with different transitions
+     */
+    public void testMetrics() {
+        FsmMetrics metrics = new FsmMetrics();
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END);
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN);
+        builder.setInitialState(TestState.INITIAL);
+        builder.setMetricsListener(metrics);
+        fsm = builder.build();
+        assertSame(fsm.getDefinition(), metrics.getDefinition());
+        fsm.fireAll(new TestEvent[] { TestEvent.END, TestEvent.BEGIN, TestEvent.END, TestEvent.END });
+        try {
+            fsm.fire(TestEvent.END);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.NO_TRANSITION, e.getReason());
+        }
+        int end = fsm.getDefinition().getTransitions().indexOf(fsm.getDefinition().getTransition(TestState.INITIAL, TestEvent.END));
+        assertEquals(2, metrics.getTransitionCount(end));
+        assertEquals(1, metrics.getTransitionCount(1 - end));
+        assertEquals(2, metrics.getRejections(FiniteStateMachineException.Reason.NO_TRANSITION));
+        assertEquals(3, Arrays.stream(metrics.getActionHistogram()).sum());
+        assertTrue(metrics.getNanosInState(TestState.INITIAL) >= 0);
+
+        ConcurrentFiniteStateMachine<TestState, TestEvent, String> concurrent = builder.buildDefinition().newConcurrentInstance("", ConcurrentFiniteStateMachine.RacePolicy.SERIALIZED);
+        concurrent.fire(TestEvent.END);
+        try {
+            concurrent.fire(TestEvent.END);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.NO_TRANSITION, e.getReason());
+        }
+        AsyncFiniteStateMachine<TestState, TestEvent, String> async = builder.buildDefinition().newAsyncInstance("", AsyncFiniteStateMachine.InFlightPolicy.QUEUE);
+        async.fireAsync(TestEvent.END).join();
+        assertTrue(async.fireAsync(TestEvent.END).isCompletedExceptionally());
+        assertEquals(4, metrics.getTransitionCount(end));
+        assertEquals(4, metrics.getRejections(FiniteStateMachineException.Reason.NO_TRANSITION));
+
+        builder.transition().from(TestState.END).to(TestState.END).on(TestEvent.END);
+        try {
+            builder.build();
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+    }
+
+    /**
+     * Test to ensure guarded transitions are tried in declared order, the unguarded transition is
+     * the fallback, and an event no guard holds for is rejected
+     */
+    public void testGuardsFirstMatch() {
+        builder.transition().from(TestState.INITIAL).to(TestState.LEFT_DIAMOND).on(TestEvent.LEFT).when(c -> c.contains("l"));
+        builder.transition().from(TestState.INITIAL).to(TestState.RIGHT_DIAMOND).on(TestEvent.LEFT).when(c -> c.contains("r"));
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.LEFT);
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.RIGHT).when(c -> c.contains("x"));
+        builder.setInitialState(TestState.INITIAL);
+        FsmDefinition<TestState, TestEvent, String> definition = builder.buildDefinition();
+        assertEquals(4, definition.getTransitions().size());
+        FsmInstance<TestState, TestEvent, String> both = definition.newInstance("lr");
+        both.fire(TestEvent.LEFT);
+        assertTrue(both.isCurrentState(TestState.LEFT_DIAMOND));
+        FsmInstance<TestState, TestEvent, String> right = definition.newInstance("r");
+        right.fire(TestEvent.LEFT);
+        assertTrue(right.isCurrentState(TestState.RIGHT_DIAMOND));
+        FsmInstance<TestState, TestEvent, String> neither = definition.newInstance("z");
+        neither.fire(TestEvent.LEFT);
+        assertTrue(neither.isCurrentState(TestState.END));
+        try {
+            definition.newInstance("z").fire(TestEvent.RIGHT);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.GUARD_REJECTED, e.getReason());
+        }
+        FsmBulkStore<TestState, TestEvent, String> store = definition.newBulkStore(2, "r", FsmBulkStore.HookPolicy.SKIP);
+        assertEquals(1, store.fireBatch(new int[] { 0, 1 }, new TestEvent[] { TestEvent.LEFT, TestEvent.RIGHT }));
+        assertEquals(TestState.RIGHT_DIAMOND, store.getState(0));
+        assertEquals(TestState.INITIAL, store.getState(1));
+    }
+
+    /**
+     * Test to ensure exclusive guards reject events more than one guard holds for, and definitions
+     * with two unguarded transitions for one state and event
+     */
+    public void testGuardsExclusive() {
+        builder.setGuardPolicy(FsmDefinition.GuardPolicy.EXCLUSIVE);
+        builder.transition().from(TestState.INITIAL).to(TestState.LEFT_DIAMOND).on(TestEvent.LEFT).when(c -> c.contains("l"));
+        builder.transition().from(TestState.INITIAL).to(TestState.RIGHT_DIAMOND).on(TestEvent.LEFT).when(c -> c.contains("r"));
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.LEFT);
+        builder.setInitialState(TestState.INITIAL);
+        FsmDefinition<TestState, TestEvent, String> definition = builder.buildDefinition();
+        FsmInstance<TestState, TestEvent, String> left = definition.newInstance("l");
+        left.fire(TestEvent.LEFT);
+        assertTrue(left.isCurrentState(TestState.LEFT_DIAMOND));
+        try {
+            definition.newInstance("lr").fire(TestEvent.LEFT);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.AMBIGUOUS_GUARDS, e.getReason());
+        }
+        builder.transition().from(TestState.INITIAL).to(TestState.INTERMEDIATE).on(TestEvent.LEFT);
+        try {
+            builder.buildDefinition();
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+    }
+
+    /**
+     * Test to ensure a transition runs exit, action and enter hooks in that order, and only calls
+     * the hooks its states override
+     */
+    public void testLifecycleHooks() {
+        List<String> log = new ArrayList<>();
+        FiniteStateMachineBuilder<TestLifecycleState, TestEvent, List<String>> lifecycle = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        lifecycle.transition().from(TestLifecycleState.OPEN).to(TestLifecycleState.CLOSED).on(TestEvent.END).during(l -> l.add("during"));
+        lifecycle.transition().from(TestLifecycleState.CLOSED).to(TestLifecycleState.PLAIN).on(TestEvent.BEGIN);
+        lifecycle.setInitialState(TestLifecycleState.OPEN);
+        FsmDefinition<TestLifecycleState, TestEvent, List<String>> definition = lifecycle.buildDefinition();
+        Transition<TestLifecycleState, TestEvent, List<String>> close = definition.getTransition(TestLifecycleState.OPEN, TestEvent.END);
+        assertEquals(1, close.exits.length);
+        assertEquals(1, close.entries.length);
+        Transition<TestLifecycleState, TestEvent, List<String>> plain = definition.getTransition(TestLifecycleState.CLOSED, TestEvent.BEGIN);
+        assertEquals(0, plain.exits.length);
+        assertEquals(0, plain.entries.length);
+        assertNull(plain.asyncEntry);
+        FsmInstance<TestLifecycleState, TestEvent, List<String>> instance = definition.newInstance(log);
+        instance.fire(TestEvent.END);
+        instance.fire(TestEvent.BEGIN);
+        assertEquals(Arrays.asList("exit OPEN", "during", "enter CLOSED"), log);
+    }
+
+    /**
+     * Test to ensure an event fired from a transition action runs after the transition commits and
+     * its entry hook runs, and long chains of internal events do not recurse
+     */
+    @SuppressWarnings("unchecked")
+    public void testRunToCompletion() {
+        List<String> log = new ArrayList<>();
+        FsmInstance<TestLifecycleState, TestEvent, List<String>>[] holder = new FsmInstance[1];
+        FiniteStateMachineBuilder<TestLifecycleState, TestEvent, List<String>> lifecycle = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        lifecycle.transition().from(TestLifecycleState.OPEN).to(TestLifecycleState.CLOSED).on(TestEvent.END).during(l -> {
+            holder[0].fire(TestEvent.BEGIN);
+            l.add("during END");
+        });
+        lifecycle.transition().from(TestLifecycleState.CLOSED).to(TestLifecycleState.PLAIN).on(TestEvent.BEGIN).during(l -> l.add("during BEGIN in " + holder[0].getCurrentState()));
+        lifecycle.transition().from(TestLifecycleState.PLAIN).to(TestLifecycleState.PLAIN).on(TestEvent.REFRESH).during(l -> {
+            if (l.size() < 100000) {
+                holder[0].fire(TestEvent.REFRESH);
+                l.add("refresh");
+            }
+        });
+        lifecycle.setInitialState(TestLifecycleState.OPEN);
+        holder[0] = lifecycle.buildDefinition().newInstance(log);
+        holder[0].fire(TestEvent.END);
+        assertEquals(Arrays.asList("exit OPEN", "during END", "enter CLOSED", "during BEGIN in CLOSED"), log);
+        assertTrue(holder[0].isCurrentState(TestLifecycleState.PLAIN));
+        holder[0].fire(TestEvent.REFRESH);
+        assertEquals(100000, log.size());
+    }
+
+    /**
+     * Test to ensure a deferred event waits for a state that accepts it, and unknown events are not
+     * deferred
+     */
+    public void testDefer() {
+        builder.transition().from(TestState.INITIAL).to(TestState.INTERMEDIATE).on(TestEvent.BEGIN);
+        builder.transition().from(TestState.INTERMEDIATE).to(TestState.END).on(TestEvent.END);
+        builder.setInitialState(TestState.INITIAL);
+        fsm = builder.build();
+        fsm.defer(TestEvent.END);
+        assertTrue(fsm.isCurrentState(TestState.INITIAL));
+        assertEquals(1, fsm.getDeferredCount());
+        fsm.fire(TestEvent.BEGIN);
+        assertTrue(fsm.isCurrentState(TestState.END));
+        assertEquals(0, fsm.getDeferredCount());
+        try {
+            fsm.defer(TestEvent.DOWN);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.UNKNOWN_EVENT, e.getReason());
+        }
+    }
 }
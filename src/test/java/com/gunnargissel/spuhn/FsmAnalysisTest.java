@@ -0,0 +1,109 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class FsmAnalysisTest extends TestCase {
+
+    private final TestPlainState[] p = new TestPlainState[6];
+    private Consumer<String> reset;
+    private Predicate<String> ready;
+
+    public FsmAnalysisTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 0; i < p.length; i++) {
+            p[i] = new TestPlainState(i);
+        }
+        reset = s -> {
+        };
+        ready = s -> s.isEmpty();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /*
+     * P1 and P2 lead to P3 and P4 on "a", and P3 and P4 both go back to P0 on "reset", so P1 and
+     * P2, and P3 and P4, are equivalent. P5 differs from P3 by its action
+     */
+    private FiniteStateMachineBuilder<TestPlainState, String, String> diamond(Consumer<String> p4Reset) {
+        FiniteStateMachineBuilder<TestPlainState, String, String> builder = new FiniteStateMachineBuilder<>("", Optional.empty());
+        builder.transition().from(p[0]).to(p[1]).on("a");
+        builder.transition().from(p[0]).to(p[2]).on("b");
+        builder.transition().from(p[1]).to(p[3]).on("a");
+        builder.transition().from(p[2]).to(p[4]).on("a");
+        builder.transition().from(p[3]).to(p[0]).on("reset").during(reset);
+        builder.transition().from(p[4]).to(p[0]).on("reset").during(p4Reset);
+        builder.setInitialState(p[0]);
+        return builder;
+    }
+
+    /**
+     * Test to ensure equivalent states are merged into the first of them, the transitions out of
+     * the merged states are reported, and the minimized definition is equivalent to the original,
+     * also when only sink states are merged
+     */
+    public void testMinimize() throws Exception {
+        FsmDefinition<TestPlainState, String, String> definition = diamond(reset).buildDefinition();
+        FsmAnalysis.Minimization<TestPlainState, String, String> minimization = FsmAnalysis.minimize(definition);
+        FsmDefinition<TestPlainState, String, String> minimized = minimization.getDefinition();
+        assertEquals(new LinkedHashSet<>(Arrays.asList(p[0], p[1], p[3])), minimized.getStates());
+        assertEquals(p[1], minimization.representative(p[2]));
+        assertEquals(p[3], minimization.representative(p[4]));
+        assertEquals(p[0], minimization.representative(p[0]));
+        assertEquals(2, minimization.getRedundantTransitions().size());
+        assertEquals(p[1], minimized.getTransition(p[0], "b").getToState());
+        assertTrue(FsmAnalysis.equivalent(definition, minimized));
+        assertSame(minimized, FsmAnalysis.minimize(minimized).getDefinition());
+
+        FiniteStateMachineBuilder<TestPlainState, String, String> sinks = new FiniteStateMachineBuilder<>("", Optional.empty());
+        sinks.transition().from(p[0]).to(p[1]).on("a");
+        sinks.transition().from(p[0]).to(p[2]).on("b");
+        sinks.setInitialState(p[0]);
+        minimization = FsmAnalysis.minimize(sinks.buildDefinition());
+        assertEquals(p[1], minimization.representative(p[2]));
+        assertTrue(minimization.getRedundantTransitions().isEmpty());
+        assertEquals(new LinkedHashSet<>(Arrays.asList(p[0], p[1])), minimization.getDefinition().getStates());
+        assertEquals(p[1], minimization.getDefinition().getTransition(p[0], "b").getToState());
+    }
+
+    /**
+     * Test to ensure states with different actions, or that override hooks, are not merged, and
+     * shadowed guarded transitions are reported as redundant
+     */
+    public void testDistinguishedStates() throws Exception {
+        FsmDefinition<TestPlainState, String, String> definition = diamond(reset).buildDefinition();
+        FsmDefinition<TestPlainState, String, String> otherAction = diamond(s -> {
+        }).buildDefinition();
+        assertTrue(FsmAnalysis.minimize(otherAction).getMergedStates().isEmpty());
+        assertFalse(FsmAnalysis.equivalent(definition, otherAction));
+
+        FiniteStateMachineBuilder<TestPlainState, String, String> guarded = diamond(reset);
+        guarded.transition().from(p[0]).to(p[5]).on("c").when(ready);
+        guarded.transition().from(p[0]).to(p[1]).on("c").when(ready);
+        guarded.transition().from(p[5]).to(p[0]).on("reset").during(reset);
+        FsmAnalysis.Minimization<TestPlainState, String, String> minimization = FsmAnalysis.minimize(guarded.buildDefinition());
+        assertEquals(p[3], minimization.representative(p[5]));
+        assertEquals(p[1], minimization.getRedundantTransitions().get(0).getToState());
+        assertEquals(4, minimization.getRedundantTransitions().size());
+
+        FiniteStateMachineBuilder<TestLifecycleState, String, List<String>> hooked = new FiniteStateMachineBuilder<>(new ArrayList<>(), Optional.empty());
+        hooked.transition().from(TestLifecycleState.PLAIN).to(TestLifecycleState.OPEN).on("a");
+        hooked.transition().from(TestLifecycleState.OPEN).to(TestLifecycleState.CLOSED).on("a");
+        hooked.transition().from(TestLifecycleState.CLOSED).to(TestLifecycleState.OPEN).on("a");
+        hooked.setInitialState(TestLifecycleState.PLAIN);
+        assertTrue(FsmAnalysis.minimize(hooked.buildDefinition()).getMergedStates().isEmpty());
+    }
+}
@@ -0,0 +1,136 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.gunnargissel.spuhn.FsmBulkStore.HookPolicy;
+
+public class FsmBulkStoreTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> hookBuilder;
+    private TestContext hookCtx;
+
+    public FsmBulkStoreTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        hookCtx = new TestContext("test");
+        hookBuilder = new FiniteStateMachineBuilder<>(hookCtx, Optional.empty());
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN);
+        hookBuilder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        hookBuilder.setInitialState(TestHookState.INITIAL);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure events fired at one instance of a store leave the others alone, and rejected
+     * events throw
+     */
+    public void testFire() {
+        FsmBulkStore<TestHookState, TestEvent, TestContext> store = hookBuilder.buildDefinition().newBulkStore(3, hookCtx, HookPolicy.RUN);
+        store.fire(1, TestEvent.BEGIN);
+        assertEquals("foobar", hookCtx.getState());
+        assertEquals(TestHookState.INITIAL, store.getState(0));
+        assertEquals(TestHookState.ENTRY_HOOK, store.getState(1));
+        try {
+            store.fire(0, TestEvent.END);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals("No transition exists from current state: INITIAL for the event: END", e.getMessage());
+        }
+        store.initialize();
+        assertEquals(TestHookState.INITIAL, store.getState(1));
+    }
+
+    /**
+     * Test to ensure a batch skips rejected events and applies the rest in order, without hooks
+     * under SKIP
+     */
+    public void testFireBatch() {
+        FsmBulkStore<TestHookState, TestEvent, TestContext> store = hookBuilder.buildDefinition().newBulkStore(3, hookCtx, HookPolicy.SKIP);
+        int rejected = store.fireBatch(new int[] { 0, 0, 1, 2, 2 }, new TestEvent[] { TestEvent.BEGIN, TestEvent.END, TestEvent.END, TestEvent.BEGIN, TestEvent.BEGIN });
+        assertEquals(2, rejected);
+        assertEquals(TestHookState.NO_ENTRY_HOOK, store.getState(0));
+        assertEquals(TestHookState.INITIAL, store.getState(1));
+        assertEquals(TestHookState.ENTRY_HOOK, store.getState(2));
+        assertEquals("test", hookCtx.getState());
+    }
+
+    /**
+     * Test to ensure definitions whose states are not enums cannot back a bulk store
+     */
+    public void testEnumsRequired() {
+        FiniteStateMachineBuilder<TestIndexedState, String, String> builder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        builder.transition().from(new TestIndexedState(0)).to(new TestIndexedState(1)).on("next");
+        builder.setInitialState(new TestIndexedState(0));
+        try {
+            builder.buildDefinition().newBulkStore(1, "context", HookPolicy.SKIP);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+    }
+
+    /**
+     * Test to ensure a parallel batch applies each instance's events in order, with the same result
+     * as a sequential batch
+     */
+    public void testFireParallel() {
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = hookBuilder.buildDefinition();
+        FsmBulkStore<TestHookState, TestEvent, TestContext> sequential = definition.newBulkStore(10000, hookCtx, HookPolicy.SKIP);
+        FsmBulkStore<TestHookState, TestEvent, TestContext> parallel = definition.newBulkStore(10000, hookCtx, HookPolicy.SKIP);
+        Random random = new Random(7);
+        int[] instances = new int[200000];
+        TestEvent[] events = new TestEvent[instances.length];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = random.nextInt(10000);
+            events[i] = random.nextBoolean() ? TestEvent.BEGIN : TestEvent.END;
+        }
+        int rejected = sequential.fireBatch(instances, events);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BulkResult<TestHookState> result = parallel.fireParallel(instances, events, pool);
+            assertEquals(rejected, result.getRejected());
+            assertEquals(instances.length - rejected, result.getApplied());
+            long total = 0;
+            for (TestHookState state : TestHookState.values()) {
+                total += result.getStateCount(state);
+            }
+            assertEquals(10000, total);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(sequential.getState(i), parallel.getState(i));
+        }
+    }
+
+    /**
+     * Test to ensure fireParallel rejects an instance index outside the store before applying any
+     * event
+     */
+    public void testParallelIndexChecked() {
+        FsmBulkStore<TestHookState, TestEvent, TestContext> store = hookBuilder.buildDefinition().newBulkStore(100, hookCtx, HookPolicy.SKIP);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (int bad : new int[] { 100, -1 }) {
+                try {
+                    store.fireParallel(new int[] { 0, bad }, new TestEvent[] { TestEvent.BEGIN, TestEvent.BEGIN }, pool);
+                    fail();
+                } catch (IndexOutOfBoundsException e) {
+                    assertEquals(TestHookState.INITIAL, store.getState(0));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
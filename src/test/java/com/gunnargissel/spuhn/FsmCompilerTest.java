@@ -0,0 +1,99 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+public class FsmCompilerTest extends TestCase {
+
+    private FsmDefinition<TestNestedState, TestEvent, List<String>> definition;
+    private MethodHandle dispatcher;
+    private FsmInstance<TestNestedState, TestEvent, List<String>> instance;
+    private List<String> log;
+
+    public FsmCompilerTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        log = new ArrayList<>();
+        FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> builder = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        builder.setParent(TestNestedState.EDITING, TestNestedState.WORKING);
+        builder.setParent(TestNestedState.REVIEWING, TestNestedState.WORKING);
+        builder.transition().from(TestNestedState.WORKING).to(TestNestedState.CANCELLED).on(TestEvent.CANCEL);
+        builder.transition().from(TestNestedState.IDLE).to(TestNestedState.EDITING).on(TestEvent.BEGIN);
+        builder.transition().from(TestNestedState.EDITING).to(TestNestedState.REVIEWING).on(TestEvent.RIGHT).during(l -> l.add("save"));
+        builder.transition().from(TestNestedState.REVIEWING).to(TestNestedState.EDITING).on(TestEvent.LEFT).when(l -> l.contains("busy"));
+        builder.transition().from(TestNestedState.REVIEWING).to(TestNestedState.IDLE).on(TestEvent.DOWN).during(l -> {
+            if (l.contains("fail")) {
+                throw new IllegalStateException("fail");
+            }
+            instance.fire(TestEvent.BEGIN);
+        });
+        builder.transition().from(TestNestedState.CANCELLED).to(TestNestedState.IDLE).on(TestEvent.REFRESH);
+        builder.setInitialState(TestNestedState.IDLE);
+        definition = builder.buildDefinition();
+        dispatcher = FsmCompiler.compile(definition);
+        instance = definition.newInstance(log);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure a compiled dispatcher runs the same hooks, actions and raised events, in the
+     * same order, as fire
+     */
+    public void testSameStepsAsFire() throws Exception {
+        TestEvent[] events = { TestEvent.BEGIN, TestEvent.RIGHT, TestEvent.DOWN, TestEvent.RIGHT, TestEvent.CANCEL, TestEvent.REFRESH };
+        for (TestEvent event : events) {
+            instance.fire(event);
+        }
+        List<String> fired = new ArrayList<>(log);
+        log.clear();
+        instance = definition.newInstance(log);
+        for (TestEvent event : events) {
+            FsmCompiler.fire(dispatcher, instance, event);
+        }
+        assertEquals(fired, log);
+        assertEquals(Arrays.asList("exit IDLE", "enter WORKING", "enter EDITING", "exit EDITING", "save", "enter REVIEWING", "exit REVIEWING", "exit WORKING", "enter IDLE", "exit IDLE", "enter WORKING", "enter EDITING"), log.subList(0, 12));
+        assertEquals(TestNestedState.IDLE, instance.getCurrentState());
+    }
+
+    /**
+     * Test to ensure a compiled dispatcher rejects events as fire does, and leaves an instance
+     * usable after an action throws
+     */
+    public void testRejectionsAndFailures() throws Exception {
+        FsmCompiler.fire(dispatcher, instance, TestEvent.BEGIN);
+        FsmCompiler.fire(dispatcher, instance, TestEvent.RIGHT);
+        try {
+            FsmCompiler.fire(dispatcher, instance, TestEvent.LEFT);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.GUARD_REJECTED, e.getReason());
+        }
+        try {
+            FsmCompiler.fire(dispatcher, instance, TestEvent.END);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(TestNestedState.REVIEWING, instance.getCurrentState());
+        }
+        log.add("fail");
+        try {
+            FsmCompiler.fire(dispatcher, instance, TestEvent.DOWN);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("fail", e.getMessage());
+        }
+        log.add("busy");
+        FsmCompiler.fire(dispatcher, instance, TestEvent.LEFT);
+        assertEquals(TestNestedState.EDITING, instance.getCurrentState());
+    }
+}
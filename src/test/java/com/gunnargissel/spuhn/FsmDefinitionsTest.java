@@ -0,0 +1,179 @@
+package com.gunnargissel.spuhn;
+
+import com.gunnargissel.spuhn.builder.GenericDRFSMTransition;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class FsmDefinitionsTest extends TestCase {
+
+    private FsmActions<List<String>> actions;
+    private FsmDefinition<TestNestedState, TestEvent, List<String>> definition;
+    private List<String> log;
+
+    public FsmDefinitionsTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        Consumer<List<String>> save = l -> l.add("save");
+        Predicate<List<String>> busy = l -> l.contains("busy");
+        actions = new FsmActions<>();
+        actions.putAction("save", save);
+        actions.putGuard("busy", busy);
+        log = new ArrayList<>();
+        FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> builder = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        builder.setParent(TestNestedState.EDITING, TestNestedState.WORKING);
+        builder.setParent(TestNestedState.REVIEWING, TestNestedState.WORKING);
+        builder.transition().from(TestNestedState.WORKING).to(TestNestedState.CANCELLED).on(TestEvent.CANCEL);
+        builder.transition().from(TestNestedState.REVIEWING).to(TestNestedState.EDITING).on(TestEvent.CANCEL).when(busy);
+        builder.transition().from(TestNestedState.EDITING).to(TestNestedState.REVIEWING).on(TestEvent.RIGHT).during(save);
+        builder.transition().from(TestNestedState.IDLE).to(TestNestedState.EDITING).on(TestEvent.BEGIN);
+        builder.transition().from(TestNestedState.CANCELLED).to(TestNestedState.IDLE).on(TestEvent.REFRESH).after(Duration.ofSeconds(30));
+        builder.setInitialState(TestNestedState.IDLE);
+        definition = builder.buildDefinition();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure the text format is sorted and flattened, and reads back into an equivalent
+     * definition whose transitions equal the originals
+     */
+    public void testTextRoundTrip() throws Exception {
+        StringWriter text = new StringWriter();
+        FsmDefinitions.writeText(definition, actions, text);
+        assertEquals("spuhn-fsm 1\n"
+                + "policy FIRST_MATCH\n"
+                + "initial IDLE\n"
+                + "parent EDITING WORKING\n"
+                + "parent REVIEWING WORKING\n"
+                + "transition IDLE BEGIN EDITING\n"
+                + "transition EDITING RIGHT REVIEWING action=save\n"
+                + "transition EDITING CANCEL CANCELLED\n"
+                + "transition REVIEWING CANCEL EDITING guard=busy\n"
+                + "transition CANCELLED REFRESH IDLE after=PT30S\n", text.toString());
+
+        FsmDefinition<TestNestedState, TestEvent, List<String>> read = FsmDefinitions.readText(new StringReader(text.toString()), TestNestedState.class, TestEvent.class, actions, null);
+        assertEquals(definition.getStates(), read.getStates());
+        assertEquals(definition.getFingerprint(), read.getFingerprint());
+        assertEquals(Duration.ofSeconds(30), read.getTransition(TestNestedState.CANCELLED, TestEvent.REFRESH).getTimeout().get());
+        assertEquals(definition.getTransition(TestNestedState.EDITING, TestEvent.RIGHT), read.getTransition(TestNestedState.EDITING, TestEvent.RIGHT));
+        assertEquals(definition.getTransition(TestNestedState.EDITING, TestEvent.CANCEL), read.getTransition(TestNestedState.EDITING, TestEvent.CANCEL));
+        StringWriter again = new StringWriter();
+        FsmDefinitions.writeText(read, actions, again);
+        assertEquals(text.toString(), again.toString());
+
+        FsmInstance<TestNestedState, TestEvent, List<String>> instance = read.newInstance(log);
+        instance.fire(TestEvent.BEGIN);
+        instance.fire(TestEvent.RIGHT);
+        log.add("busy");
+        instance.fire(TestEvent.CANCEL);
+        assertEquals(Arrays.asList("exit IDLE", "enter WORKING", "enter EDITING", "exit EDITING", "save", "enter REVIEWING", "busy", "exit REVIEWING", "enter EDITING"), log);
+    }
+
+    /**
+     * Test to ensure the binary format loads into a definition that writes the same text and
+     * behaves the same, and unknown names, corrupt documents and oversized bodies are rejected
+     */
+    public void testBinaryRoundTripAndErrors() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FsmDefinitions.writeBinary(definition, actions, Channels.newChannel(bytes));
+        FsmDefinition<TestNestedState, TestEvent, List<String>> read = FsmDefinitions.readBinary(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), TestNestedState.class, TestEvent.class, actions, null);
+        StringWriter expected = new StringWriter();
+        FsmDefinitions.writeText(definition, actions, expected);
+        StringWriter actual = new StringWriter();
+        FsmDefinitions.writeText(read, actions, actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(definition.getStates(), read.getStates());
+        assertEquals(definition.getSinkStates(), read.getSinkStates());
+        assertEquals(definition.getFingerprint(), read.getFingerprint());
+        FsmInstance<TestNestedState, TestEvent, List<String>> instance = read.newInstance(log);
+        instance.fire(TestEvent.BEGIN);
+        instance.fire(TestEvent.RIGHT);
+        log.add("busy");
+        instance.fire(TestEvent.CANCEL);
+        assertEquals(Arrays.asList("exit IDLE", "enter WORKING", "enter EDITING", "exit EDITING", "save", "enter REVIEWING", "busy", "exit REVIEWING", "enter EDITING"), log);
+
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[corrupt.length - 1] ^= 1;
+        byte[] oversized = bytes.toByteArray();
+        oversized[5] = 0x7f;
+        for (byte[] document : Arrays.asList(corrupt, oversized)) {
+            try {
+                FsmDefinitions.readBinary(Channels.newChannel(new ByteArrayInputStream(document)), TestNestedState.class, TestEvent.class, actions, null);
+                fail();
+            } catch (FiniteStateMachineException e) {
+                assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+            }
+        }
+
+        try {
+            FsmDefinitions.readBinary(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), TestNestedState.class, TestEvent.class, new FsmActions<>(), null);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+        try {
+            FsmDefinitions.readText(new StringReader("spuhn-fsm 1\ninitial IDLE\ntransition IDLE BEGIN NOWHERE\n"), TestNestedState.class, TestEvent.class, actions, null);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals("Invalid definition, line 3: no TestNestedState named NOWHERE", e.getMessage());
+        }
+    }
+
+    /**
+     * Test to ensure the loader of flattened tables still rejects a from state and event split in
+     * two runs, and unreachable states
+     */
+    public void testFlattenedTableValidated() {
+        List<List<Transition<TestNestedState, TestEvent, List<String>>>> tables = Arrays.asList(
+                Arrays.asList(transition(TestNestedState.IDLE, TestEvent.BEGIN, TestNestedState.EDITING), transition(TestNestedState.IDLE, TestEvent.REFRESH, TestNestedState.IDLE), transition(TestNestedState.IDLE, TestEvent.BEGIN, TestNestedState.CANCELLED)),
+                Arrays.asList(transition(TestNestedState.IDLE, TestEvent.BEGIN, TestNestedState.EDITING), transition(TestNestedState.CANCELLED, TestEvent.REFRESH, TestNestedState.IDLE)));
+        for (List<Transition<TestNestedState, TestEvent, List<String>>> table : tables) {
+            try {
+                new FsmDefinition<>(new ArrayList<>(table), TestNestedState.IDLE, new HashMap<>(), FsmDefinition.GuardPolicy.FIRST_MATCH, null, TestNestedState.class, TestEvent.class);
+                fail();
+            } catch (FiniteStateMachineException e) {
+                assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+            }
+        }
+    }
+
+    /**
+     * Test to ensure the transitions of one definition cannot be given to another, which would
+     * overwrite the fields the first one relies on
+     */
+    public void testTransitionsNotShared() {
+        try {
+            new FsmDefinition<>(definition.getTransitions(), TestNestedState.IDLE, new HashMap<>(), FsmDefinition.GuardPolicy.FIRST_MATCH, null);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+            assertTrue(e.getMessage().endsWith("already belongs to another definition"));
+        }
+        FsmInstance<TestNestedState, TestEvent, List<String>> instance = definition.newInstance(log);
+        instance.fire(TestEvent.BEGIN);
+        instance.fire(TestEvent.RIGHT);
+        assertTrue(instance.isCurrentState(TestNestedState.REVIEWING));
+    }
+
+    private static Transition<TestNestedState, TestEvent, List<String>> transition(TestNestedState from, TestEvent event, TestNestedState to) {
+        return new GenericDRFSMTransition<>(from, to, event, null);
+    }
+}
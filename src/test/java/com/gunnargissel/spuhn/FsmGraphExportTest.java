@@ -0,0 +1,102 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+public class FsmGraphExportTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestNestedState, TestEvent, List<String>> nested;
+    private List<String> log;
+
+    public FsmGraphExportTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        log = new ArrayList<>();
+        nested = new FiniteStateMachineBuilder<>(log, Optional.empty());
+        nested.setParent(TestNestedState.EDITING, TestNestedState.WORKING);
+        nested.setParent(TestNestedState.REVIEWING, TestNestedState.WORKING);
+        nested.transition().from(TestNestedState.CANCELLED).to(TestNestedState.IDLE).on(TestEvent.REFRESH);
+        nested.transition().from(TestNestedState.WORKING).to(TestNestedState.CANCELLED).on(TestEvent.CANCEL);
+        nested.transition().from(TestNestedState.REVIEWING).to(TestNestedState.EDITING).on(TestEvent.CANCEL);
+        nested.transition().from(TestNestedState.EDITING).to(TestNestedState.REVIEWING).on(TestEvent.RIGHT);
+        nested.transition().from(TestNestedState.IDLE).to(TestNestedState.EDITING).on(TestEvent.BEGIN);
+        nested.setInitialState(TestNestedState.IDLE);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure DOT output is sorted by state and event, with nested states clustered and the
+     * current state highlighted
+     */
+    public void testClusteredDot() throws Exception {
+        FsmGraphExport<TestNestedState, TestEvent, List<String>> export = new FsmGraphExport<>(nested.buildDefinition(), FsmGraphExport.Format.DOT);
+        export.setClustered(true);
+        export.setCurrentState(TestNestedState.EDITING);
+        StringWriter out = new StringWriter();
+        export.write(out);
+        assertEquals("digraph g {\n"
+                + "  \"IDLE\" [peripheries=2];\n"
+                + "  subgraph \"cluster_WORKING\" {\n"
+                + "    label=\"WORKING\";\n"
+                + "    \"EDITING\" [style=filled, fillcolor=yellow];\n"
+                + "    \"REVIEWING\";\n"
+                + "  }\n"
+                + "  \"CANCELLED\";\n"
+                + "  \"IDLE\" -> \"EDITING\" [label=\"BEGIN\"];\n"
+                + "  \"EDITING\" -> \"REVIEWING\" [label=\"RIGHT\"];\n"
+                + "  \"EDITING\" -> \"CANCELLED\" [label=\"CANCEL\"];\n"
+                + "  \"REVIEWING\" -> \"EDITING\" [label=\"CANCEL\"];\n"
+                + "  \"CANCELLED\" -> \"IDLE\" [label=\"REFRESH\"];\n"
+                + "}\n", out.toString());
+    }
+
+    /**
+     * Test to ensure JSON and GraphML carry the counts of an FsmMetrics, and GraphML written to a
+     * channel is well formed
+     */
+    public void testMetricsJsonAndGraphMl() throws Exception {
+        FsmMetrics metrics = new FsmMetrics();
+        nested.setMetricsListener(metrics);
+        FsmDefinition<TestNestedState, TestEvent, List<String>> definition = nested.buildDefinition();
+        FsmInstance<TestNestedState, TestEvent, List<String>> instance = definition.newInstance(log);
+        instance.fire(TestEvent.BEGIN);
+        instance.fire(TestEvent.CANCEL);
+
+        FsmGraphExport<TestNestedState, TestEvent, List<String>> json = new FsmGraphExport<>(definition, FsmGraphExport.Format.JSON);
+        json.setClustered(true);
+        json.setMetrics(metrics, 1);
+        StringWriter out = new StringWriter();
+        json.write(out);
+        assertTrue(out.toString().contains("{\"id\": \"EDITING\", \"parent\": \"WORKING\"}"));
+        assertTrue(out.toString().contains("\"parents\": [\n    {\"id\": \"WORKING\"}\n  ]"));
+        assertTrue(out.toString().contains("{\"from\": \"EDITING\", \"event\": \"CANCEL\", \"to\": \"CANCELLED\", \"count\": 1, \"hot\": true}"));
+        assertTrue(out.toString().contains("{\"from\": \"EDITING\", \"event\": \"RIGHT\", \"to\": \"REVIEWING\", \"count\": 0}"));
+
+        FsmGraphExport<TestNestedState, TestEvent, List<String>> graphMl = new FsmGraphExport<>(definition, FsmGraphExport.Format.GRAPHML);
+        graphMl.setClustered(true);
+        graphMl.setMetrics(metrics, 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        graphMl.write(Channels.newChannel(bytes));
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(5, document.getElementsByTagName("edge").getLength());
+        assertEquals(5, document.getElementsByTagName("node").getLength());
+        assertEquals(2, document.getElementsByTagName("graph").getLength());
+    }
+}
@@ -0,0 +1,135 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public class FsmJournalTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> hookBuilder;
+    private TestContext hookCtx;
+    private Path directory;
+
+    public FsmJournalTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        hookCtx = new TestContext("test");
+        hookBuilder = new FiniteStateMachineBuilder<>(hookCtx, Optional.empty());
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN);
+        hookBuilder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        hookBuilder.transition().from(TestHookState.NO_ENTRY_HOOK).to(TestHookState.INITIAL).on(TestEvent.BEGIN);
+        hookBuilder.setInitialState(TestHookState.INITIAL);
+        directory = Files.createTempDirectory("spuhn-journal");
+    }
+
+    protected void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure replay rebuilds the last state of every attached instance across segments,
+     * without running entry hooks
+     */
+    public void testReplay() throws IOException {
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = hookBuilder.buildDefinition();
+        try (FsmJournal<TestHookState, TestEvent, TestContext> journal = FsmJournal.open(directory, definition, 4, 2)) {
+            for (long id = 0; id < 5; id++) {
+                FsmInstance<TestHookState, TestEvent, TestContext> instance = definition.newInstance(hookCtx);
+                journal.attach(instance, id);
+                for (int i = 0; i < id; i++) {
+                    instance.fire(i % 3 == 1 ? TestEvent.END : TestEvent.BEGIN);
+                }
+            }
+        }
+        hookCtx.setState("test");
+        Map<Long, TestHookState> states = FsmJournal.replay(directory, hookBuilder.buildDefinition());
+        assertEquals(4, states.size());
+        assertEquals(TestHookState.ENTRY_HOOK, states.get(1L));
+        assertEquals(TestHookState.NO_ENTRY_HOOK, states.get(2L));
+        assertEquals(TestHookState.INITIAL, states.get(3L));
+        assertEquals(TestHookState.ENTRY_HOOK, states.get(4L));
+        assertEquals("test", hookCtx.getState());
+    }
+
+    /**
+     * Test to ensure a reopened journal appends after its last record
+     */
+    public void testReopenAppends() throws IOException {
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = hookBuilder.buildDefinition();
+        FsmInstance<TestHookState, TestEvent, TestContext> instance = definition.newInstance(hookCtx);
+        try (FsmJournal<TestHookState, TestEvent, TestContext> journal = FsmJournal.open(directory, definition, 16, 16)) {
+            journal.attach(instance, 7);
+            instance.fire(TestEvent.BEGIN);
+        }
+        try (FsmJournal<TestHookState, TestEvent, TestContext> journal = FsmJournal.open(directory, definition, 16, 16)) {
+            journal.attach(instance, 7);
+            instance.fire(TestEvent.END);
+        }
+        assertEquals(TestHookState.NO_ENTRY_HOOK, FsmJournal.replay(directory, definition).get(7L));
+    }
+
+    /**
+     * Test to ensure an instance that fires after its journal is closed stays where it was, without
+     * running the new state's entry hook
+     */
+    public void testFireAfterClose() throws IOException {
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = hookBuilder.buildDefinition();
+        FsmInstance<TestHookState, TestEvent, TestContext> instance = definition.newInstance(hookCtx);
+        FsmJournal<TestHookState, TestEvent, TestContext> journal = FsmJournal.open(directory, definition, 16, 16);
+        journal.attach(instance, 7);
+        journal.close();
+        try {
+            instance.fire(TestEvent.BEGIN);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("The journal is closed", e.getMessage());
+        }
+        assertEquals(TestHookState.INITIAL, instance.getCurrentState());
+        assertEquals("test", hookCtx.getState());
+        assertTrue(FsmJournal.replay(directory, definition).isEmpty());
+    }
+
+    /**
+     * Test to ensure initialize and restore of an attached instance are journaled, so replay
+     * agrees with the instance
+     */
+    public void testInitializeAndRestoreJournaled() throws IOException {
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = hookBuilder.buildDefinition();
+        FsmInstance<TestHookState, TestEvent, TestContext> instance = definition.newInstance(hookCtx);
+        try (FsmJournal<TestHookState, TestEvent, TestContext> journal = FsmJournal.open(directory, definition, 16, 16)) {
+            journal.attach(instance, 7);
+            instance.fire(TestEvent.BEGIN);
+            byte[] snapshot = instance.snapshot();
+            instance.initialize();
+            assertEquals(TestHookState.INITIAL, FsmJournal.replay(directory, definition).get(7L));
+            instance.restore(snapshot);
+        }
+        assertEquals(TestHookState.ENTRY_HOOK, FsmJournal.replay(directory, definition).get(7L));
+    }
+
+    /**
+     * Test to ensure a journal of one definition cannot be opened or replayed with another
+     */
+    public void testOtherDefinitionRejected() throws IOException {
+        FsmJournal.open(directory, hookBuilder.buildDefinition(), 16, 16).close();
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        try {
+            FsmJournal.replay(directory, hookBuilder.buildDefinition());
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_SNAPSHOT, e.getReason());
+        }
+    }
+}
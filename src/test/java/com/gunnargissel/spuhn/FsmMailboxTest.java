@@ -0,0 +1,224 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gunnargissel.spuhn.FsmMailbox.OverflowPolicy;
+
+public class FsmMailboxTest extends TestCase {
+
+    private FsmDefinition<TestState, TestEvent, String> definition;
+    private AtomicInteger runningHooks;
+    private AtomicInteger overlappingHooks;
+    private ExecutorService pool;
+    private List<Runnable> pendingDrains;
+
+    public FsmMailboxTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        runningHooks = new AtomicInteger();
+        overlappingHooks = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(4);
+        pendingDrains = new ArrayList<>();
+        FiniteStateMachineBuilder<TestState, TestEvent, String> builder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        builder.transition().from(TestState.INITIAL).to(TestState.END).on(TestEvent.END).during(ctx -> checkHook());
+        builder.transition().from(TestState.END).to(TestState.INITIAL).on(TestEvent.BEGIN).during(ctx -> checkHook());
+        builder.setInitialState(TestState.INITIAL);
+        definition = builder.buildDefinition();
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+        super.tearDown();
+    }
+
+    private void checkHook() {
+        if (runningHooks.incrementAndGet() > 1) {
+            overlappingHooks.incrementAndGet();
+        }
+        runningHooks.decrementAndGet();
+    }
+
+    /**
+     * Test to ensure events submitted from many threads are processed one at a time, and every
+     * future completes with the state after its event
+     */
+    public void testEventsFromManyThreads() throws Exception {
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", pool, 16, OverflowPolicy.BLOCK);
+        List<CompletableFuture<TestState>> results = new ArrayList<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            TestEvent event = i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN;
+            producers.add(new Thread(() -> {
+                for (int j = 0; j < 5000; j++) {
+                    CompletableFuture<TestState> result = mailbox.submit(event);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            }));
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        int accepted = 0;
+        for (CompletableFuture<TestState> result : results) {
+            try {
+                TestState state = result.get(10, TimeUnit.SECONDS);
+                assertNotNull(state);
+                accepted++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof FiniteStateMachineException);
+            }
+        }
+        assertEquals(20000, results.size());
+        assertTrue(accepted > 0);
+        assertEquals(0, overlappingHooks.get());
+    }
+
+    /**
+     * Test to ensure a rejected event completes its future exceptionally
+     */
+    public void testRejectedEventCompletesExceptionally() throws Exception {
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", pool, 16, OverflowPolicy.FAIL);
+        assertEquals(TestState.END, mailbox.submit(TestEvent.END).get(10, TimeUnit.SECONDS));
+        try {
+            mailbox.submit(TestEvent.END).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertEquals("No transition exists from current state: END for the event: END", e.getCause().getMessage());
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure a full mailbox cancels dropped events under the DROP policy
+     */
+    public void testDropWhenFull() {
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", pendingDrains::add, 2, OverflowPolicy.DROP);
+        CompletableFuture<TestState> first = mailbox.submit(TestEvent.END);
+        CompletableFuture<TestState> second = mailbox.submit(TestEvent.BEGIN);
+        CompletableFuture<TestState> dropped = mailbox.submit(TestEvent.END);
+        assertTrue(dropped.isCancelled());
+        assertEquals(1, pendingDrains.size());
+        pendingDrains.get(0).run();
+        assertEquals(TestState.END, first.join());
+        assertEquals(TestState.INITIAL, second.join());
+    }
+
+    /**
+     * Test to ensure a full mailbox throws under the FAIL policy
+     */
+    public void testFailWhenFull() {
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", pendingDrains::add, 1, OverflowPolicy.FAIL);
+        mailbox.submit(TestEvent.END);
+        try {
+            mailbox.submit(TestEvent.BEGIN);
+        } catch (FiniteStateMachineException e) {
+            assertEquals("Event: BEGIN rejected because the mailbox is full", e.getMessage());
+            assertEquals(1, mailbox.size());
+            return;
+        }
+        fail();
+    }
+
+    /**
+     * Test to ensure an event whose drain task the executor rejects is withdrawn from the mailbox,
+     * so a later submit does not process it
+     */
+    public void testRejectedDrainTask() {
+        boolean[] rejecting = { true };
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", task -> {
+            if (rejecting[0]) {
+                throw new RejectedExecutionException("shut down");
+            }
+            task.run();
+        }, 4, OverflowPolicy.FAIL);
+        try {
+            mailbox.submit(TestEvent.END);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertEquals(0, mailbox.size());
+        }
+        rejecting[0] = false;
+        try {
+            mailbox.submit(TestEvent.BEGIN).join();
+            fail();
+        } catch (CompletionException e) {
+            assertEquals(FiniteStateMachineException.Reason.NO_TRANSITION, ((FiniteStateMachineException) e.getCause()).getReason());
+        }
+        assertEquals(TestState.END, mailbox.submit(TestEvent.END).join());
+    }
+
+    /**
+     * Test to ensure events left in the mailbox complete exceptionally when the executor rejects the
+     * drain task that would have processed them
+     */
+    public void testRejectedRescheduleFailsLeftoverEvents() {
+        FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", task -> {
+            if (!pendingDrains.isEmpty()) {
+                throw new RejectedExecutionException("shut down");
+            }
+            pendingDrains.add(task);
+        }, 100, OverflowPolicy.FAIL);
+        List<CompletableFuture<TestState>> results = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            results.add(mailbox.submit(i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN));
+        }
+        pendingDrains.get(0).run();
+        assertEquals(0, mailbox.size());
+        assertEquals(TestState.INITIAL, results.get(63).join());
+        for (CompletableFuture<TestState> result : results.subList(64, 70)) {
+            try {
+                result.join();
+                fail();
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    /**
+     * Test to ensure a mailbox drained by virtual threads keeps its events in order, on JVMs that
+     * support them
+     */
+    public void testVirtualThreadMailbox() throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                VirtualThreads.newExecutor();
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+            fail();
+        }
+        ExecutorService virtualThreads = VirtualThreads.newExecutor();
+        try {
+            FsmMailbox<TestState, TestEvent, String> mailbox = definition.newMailbox("context", virtualThreads, 16, OverflowPolicy.BLOCK);
+            CompletableFuture<TestState> result = null;
+            for (int i = 0; i < 1000; i++) {
+                result = mailbox.submit(i % 2 == 0 ? TestEvent.END : TestEvent.BEGIN);
+            }
+            assertEquals(TestState.INITIAL, result.get(10, TimeUnit.SECONDS));
+            assertEquals(0, overlappingHooks.get());
+        } finally {
+            virtualThreads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+public class FsmRegistryTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> hookBuilder;
+    private TestContext hookCtx;
+    private Path directory;
+
+    public FsmRegistryTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        Consumer<TestContext> action = ctx -> ctx.setState("action");
+        hookCtx = new TestContext("test");
+        hookBuilder = new FiniteStateMachineBuilder<>(hookCtx, Optional.empty());
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN).during(action);
+        hookBuilder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        hookBuilder.transition().from(TestHookState.NO_ENTRY_HOOK).to(TestHookState.INITIAL).on(TestEvent.BEGIN);
+        hookBuilder.setInitialState(TestHookState.INITIAL);
+        directory = Files.createTempDirectory("spuhn-registry");
+    }
+
+    protected void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure equivalent definitions are interned into one unless they report to different
+     * listeners, and a key's builder only runs once
+     */
+    public void testInterning() throws Exception {
+        FsmRegistry<TestHookState, TestEvent, TestContext> registry = new FsmRegistry<>(4, new FsmFileSnapshotStore(directory));
+        FsmDefinition<TestHookState, TestEvent, TestContext> first = registry.intern(hookBuilder.buildDefinition());
+        assertSame(first, registry.intern(hookBuilder.buildDefinition()));
+        assertSame(first, registry.definition("tenant-a", hookBuilder::buildDefinition));
+        assertSame(first, registry.definition("tenant-a", () -> {
+            throw new AssertionError();
+        }));
+        hookBuilder.setMetricsListener(new FsmMetrics());
+        FsmDefinition<TestHookState, TestEvent, TestContext> measured = hookBuilder.buildDefinition();
+        assertSame(measured, registry.intern(measured));
+        hookBuilder.setMetricsListener(null);
+
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN).during(ctx -> ctx.setState("other"));
+        FsmDefinition<TestHookState, TestEvent, TestContext> otherAction = hookBuilder.buildDefinition();
+        assertEquals(first.getFingerprint(), otherAction.getFingerprint());
+        assertSame(otherAction, registry.intern(otherAction));
+        FsmRegistry.Stats stats = registry.getStats();
+        assertEquals(3, stats.getDefinitions());
+        assertEquals(3, stats.getInternHits());
+    }
+
+    /**
+     * Test to ensure the least recently used instance is paged out to the store when the registry
+     * is full, and restored in its state, without hooks, when it is asked for again
+     */
+    public void testEviction() throws Exception {
+        FsmRegistry<TestHookState, TestEvent, TestContext> registry = new FsmRegistry<>(2, new FsmFileSnapshotStore(directory));
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = registry.definition("workflow", hookBuilder::buildDefinition);
+        registry.instance("a", definition, hookCtx).fire(TestEvent.BEGIN);
+        registry.instance("b", definition, hookCtx);
+        registry.instance("a", definition, hookCtx);
+        registry.instance("c/\u00e9", definition, hookCtx);
+        assertEquals(1, registry.getStats().getEvictions());
+
+        hookCtx.setState("test");
+        FsmInstance<TestHookState, TestEvent, TestContext> b = registry.instance("b", definition, hookCtx);
+        assertEquals(TestHookState.INITIAL, b.getCurrentState());
+        FsmInstance<TestHookState, TestEvent, TestContext> a = registry.instance("a", definition, hookCtx);
+        assertEquals(TestHookState.ENTRY_HOOK, a.getCurrentState());
+        assertEquals("test", hookCtx.getState());
+
+        FsmRegistry.Stats stats = registry.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(5, stats.getMisses());
+        assertEquals(2, stats.getRestores());
+        assertEquals(3, stats.getEvictions());
+        assertEquals(2, stats.getSize());
+
+        registry.remove("c/\u00e9");
+        assertEquals(TestHookState.INITIAL, registry.instance("c/\u00e9", definition, hookCtx).getCurrentState());
+    }
+
+    /**
+     * Test to ensure asking for a live instance with another definition replaces it with an
+     * instance of that definition in the same state
+     */
+    public void testLiveInstanceOfAnotherDefinition() throws Exception {
+        FsmRegistry<TestHookState, TestEvent, TestContext> registry = new FsmRegistry<>(2, new FsmFileSnapshotStore(directory));
+        FsmDefinition<TestHookState, TestEvent, TestContext> first = hookBuilder.buildDefinition();
+        FsmDefinition<TestHookState, TestEvent, TestContext> second = hookBuilder.buildDefinition();
+        registry.instance("a", first, hookCtx).fire(TestEvent.BEGIN);
+        FsmInstance<TestHookState, TestEvent, TestContext> moved = registry.instance("a", second, hookCtx);
+        assertSame(second, moved.getDefinition());
+        assertEquals(TestHookState.ENTRY_HOOK, moved.getCurrentState());
+        assertSame(moved, registry.instance("a", second, hookCtx));
+        assertEquals(1, registry.getStats().getRestores());
+
+        hookBuilder.transition().from(TestHookState.NO_ENTRY_HOOK).to(TestHookState.ENTRY_HOOK).on(TestEvent.END);
+        try {
+            registry.instance("a", hookBuilder.buildDefinition(), hookCtx);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_SNAPSHOT, e.getReason());
+        }
+        assertSame(moved, registry.instance("a", second, hookCtx));
+    }
+
+    /**
+     * Test to ensure an instance the store fails to save on eviction stays live, and is evicted
+     * once the store works again
+     */
+    public void testFailingStore() throws Exception {
+        FsmFileSnapshotStore files = new FsmFileSnapshotStore(directory);
+        boolean[] failing = { true };
+        FsmSnapshotStore store = new FsmSnapshotStore() {
+            public void save(String id, byte[] snapshot) throws IOException {
+                if (failing[0]) {
+                    throw new IOException("disk full");
+                }
+                files.save(id, snapshot);
+            }
+
+            public byte[] load(String id) throws IOException {
+                return files.load(id);
+            }
+
+            public void delete(String id) throws IOException {
+                files.delete(id);
+            }
+        };
+        FsmRegistry<TestHookState, TestEvent, TestContext> registry = new FsmRegistry<>(1, store);
+        FsmDefinition<TestHookState, TestEvent, TestContext> definition = registry.definition("workflow", hookBuilder::buildDefinition);
+        FsmInstance<TestHookState, TestEvent, TestContext> a = registry.instance("a", definition, hookCtx);
+        a.fire(TestEvent.BEGIN);
+        try {
+            registry.instance("b", definition, hookCtx);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Could not save the snapshot of a", e.getMessage());
+        }
+        assertSame(a, registry.instance("a", definition, hookCtx));
+        assertEquals(0, registry.getStats().getEvictions());
+
+        failing[0] = false;
+        registry.instance("b", definition, hookCtx);
+        assertEquals(1, registry.getStats().getEvictions());
+        assertEquals(TestHookState.ENTRY_HOOK, registry.instance("a", definition, hookCtx).getCurrentState());
+    }
+}
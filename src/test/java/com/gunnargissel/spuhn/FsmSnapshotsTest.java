@@ -0,0 +1,100 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class FsmSnapshotsTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestHookState, TestEvent, TestContext> hookBuilder;
+    private TestContext hookCtx;
+
+    public FsmSnapshotsTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        hookCtx = new TestContext("test");
+        hookBuilder = new FiniteStateMachineBuilder<>(hookCtx, Optional.empty());
+        hookBuilder.transition().from(TestHookState.INITIAL).to(TestHookState.ENTRY_HOOK).on(TestEvent.BEGIN);
+        hookBuilder.transition().from(TestHookState.ENTRY_HOOK).to(TestHookState.NO_ENTRY_HOOK).on(TestEvent.END);
+        hookBuilder.setInitialState(TestHookState.INITIAL);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * Test to ensure a snapshot restores an instance of another equal definition without running
+     * entry hooks
+     */
+    public void testSnapshotAndRestore() {
+        FiniteStateMachine<TestHookState, TestEvent, TestContext> fsm = hookBuilder.build();
+        fsm.fire(TestEvent.BEGIN);
+        byte[] snapshot = fsm.snapshot();
+        assertEquals(12, snapshot.length);
+
+        TestContext restoredCtx = new TestContext("restored");
+        FsmInstance<TestHookState, TestEvent, TestContext> restored = hookBuilder.buildDefinition().newInstance(restoredCtx);
+        restored.restore(snapshot);
+        assertTrue(restored.isCurrentState(TestHookState.ENTRY_HOOK));
+        assertEquals("restored", restoredCtx.getState());
+        restored.fire(TestEvent.END);
+        assertTrue(restored.isCurrentState(TestHookState.NO_ENTRY_HOOK));
+    }
+
+    /**
+     * Test to ensure a snapshot is rejected by a definition with another fingerprint
+     */
+    public void testRestoreRejectsOtherDefinition() {
+        byte[] snapshot = hookBuilder.build().snapshot();
+        hookBuilder.transition().from(TestHookState.NO_ENTRY_HOOK).to(TestHookState.INITIAL).on(TestEvent.BEGIN);
+        FsmDefinition<TestHookState, TestEvent, TestContext> changed = hookBuilder.buildDefinition();
+        try {
+            changed.newInstance(hookCtx).restore(snapshot);
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_SNAPSHOT, e.getReason());
+        }
+    }
+
+    /**
+     * Test to ensure many instances round trip through channels, including states that are not
+     * enum constants and need more than one byte per identifier
+     */
+    public void testBulkWriteAndRead() throws Exception {
+        FiniteStateMachineBuilder<TestIndexedState, String, String> builder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        for (int i = 0; i < 999; i++) {
+            builder.transition().from(new TestIndexedState(i)).to(new TestIndexedState(i + 1)).on("next");
+        }
+        builder.setInitialState(new TestIndexedState(0));
+        FsmDefinition<TestIndexedState, String, String> definition = builder.buildDefinition();
+        List<FsmInstance<TestIndexedState, String, String>> instances = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            FsmInstance<TestIndexedState, String, String> instance = definition.newInstance("context");
+            for (int j = 0; j < i % 1000; j++) {
+                instance.fire("next");
+            }
+            instances.add(instance);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FsmSnapshots.write(definition, instances, Channels.newChannel(out));
+        assertEquals(18 + 2 * 100000, out.size());
+
+        FsmDefinition<TestIndexedState, String, String> rebuilt = builder.buildDefinition();
+        assertEquals(definition.getFingerprint(), rebuilt.getFingerprint());
+        List<FsmInstance<TestIndexedState, String, String>> restored = FsmSnapshots.read(rebuilt, Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), i -> "restored" + i);
+        assertEquals(instances.size(), restored.size());
+        for (int i = 0; i < instances.size(); i++) {
+            assertEquals(instances.get(i).getCurrentState(), restored.get(i).getCurrentState());
+        }
+        assertEquals("restored7", restored.get(7).getContext());
+    }
+}
@@ -0,0 +1,127 @@
+package com.gunnargissel.spuhn;
+
+import junit.framework.TestCase;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class FsmTimerTest extends TestCase {
+
+    private FiniteStateMachineBuilder<TestState, TestEvent, String> builder;
+    private long now;
+    private FsmTimer timer;
+
+    public FsmTimerTest(String sTestName) throws Exception {
+        super(sTestName);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        builder = new FiniteStateMachineBuilder<>("context", Optional.empty());
+        builder.transition().from(TestState.INITIAL).to(TestState.WAITING_1).on(TestEvent.BEGIN);
+        builder.transition().from(TestState.WAITING_1).to(TestState.WAITING_2).on(TestEvent.DOWN);
+        builder.transition().from(TestState.WAITING_1).to(TestState.END).on(TestEvent.CANCEL).after(Duration.ofSeconds(30));
+        builder.transition().from(TestState.WAITING_2).to(TestState.INITIAL).on(TestEvent.CANCEL).after(Duration.ofSeconds(100));
+        builder.setInitialState(TestState.INITIAL);
+        now = 0;
+        timer = new FsmTimer(Duration.ofSeconds(1), 8, () -> now);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private void advanceTo(long seconds) {
+        now = Duration.ofSeconds(seconds).toNanos();
+    }
+
+    /**
+     * Test to ensure a timeout fires its event once the state has been held for the timeout, and
+     * not before
+     */
+    public void testTimeoutFires() {
+        FsmInstance<TestState, TestEvent, String> instance = builder.buildDefinition().newInstance("context");
+        timer.attach(instance);
+        assertEquals(0, timer.getPending());
+        instance.fire(TestEvent.BEGIN);
+        assertEquals(1, timer.getPending());
+        advanceTo(29);
+        assertEquals(0, timer.advance());
+        assertTrue(instance.isCurrentState(TestState.WAITING_1));
+        advanceTo(30);
+        assertEquals(1, timer.advance());
+        assertTrue(instance.isCurrentState(TestState.END));
+        assertEquals(0, timer.getPending());
+    }
+
+    /**
+     * Test to ensure leaving a state cancels its timeout and arms the next state's, including a
+     * timeout several turns of the wheel long
+     */
+    public void testLeavingCancels() {
+        FsmInstance<TestState, TestEvent, String> instance = builder.buildDefinition().newInstance("context");
+        timer.attach(instance);
+        instance.fire(TestEvent.BEGIN);
+        advanceTo(10);
+        instance.fire(TestEvent.DOWN);
+        assertEquals(1, timer.getPending());
+        advanceTo(109);
+        assertEquals(0, timer.advance());
+        assertTrue(instance.isCurrentState(TestState.WAITING_2));
+        advanceTo(110);
+        assertEquals(1, timer.advance());
+        assertTrue(instance.isCurrentState(TestState.INITIAL));
+        timer.detach(instance);
+        instance.fire(TestEvent.BEGIN);
+        assertEquals(0, timer.getPending());
+    }
+
+    /**
+     * Test to ensure an instance that an expired timeout's action moves into another timed state
+     * is not fired again in the same advance, and neither are timeouts that have not expired
+     */
+    public void testRearmedWhileFiring() {
+        List<FsmInstance<TestState, TestEvent, String>> instances = new ArrayList<>();
+        builder.transition().from(TestState.WAITING_1).to(TestState.END).on(TestEvent.CANCEL).after(Duration.ofSeconds(30)).during(ctx -> {
+            // whichever of a and b fires first moves the other on before its timeout fires
+            FsmInstance<TestState, TestEvent, String> other = instances.get("a".equals(ctx) ? 1 : 0);
+            if (!"c".equals(ctx) && other.isCurrentState(TestState.WAITING_1)) {
+                other.fire(TestEvent.DOWN);
+            }
+        });
+        FsmDefinition<TestState, TestEvent, String> definition = builder.buildDefinition();
+        for (String ctx : new String[] { "a", "b", "c" }) {
+            FsmInstance<TestState, TestEvent, String> instance = definition.newInstance(ctx);
+            timer.attach(instance);
+            instances.add(instance);
+        }
+        instances.get(0).fire(TestEvent.BEGIN);
+        instances.get(1).fire(TestEvent.BEGIN);
+        advanceTo(4);
+        instances.get(2).fire(TestEvent.BEGIN);
+        advanceTo(30);
+        assertEquals(1, timer.advance());
+        assertTrue(instances.get(0).isCurrentState(TestState.END) != instances.get(1).isCurrentState(TestState.END));
+        assertTrue(instances.get(0).isCurrentState(TestState.WAITING_2) || instances.get(1).isCurrentState(TestState.WAITING_2));
+        assertTrue(instances.get(2).isCurrentState(TestState.WAITING_1));
+        assertEquals(2, timer.getPending());
+        advanceTo(34);
+        assertEquals(1, timer.advance());
+        assertTrue(instances.get(2).isCurrentState(TestState.END));
+    }
+
+    /**
+     * Test to ensure the timed transitions from one state must share their event and timeout
+     */
+    public void testConflictingTimeoutsRejected() {
+        builder.transition().from(TestState.WAITING_1).to(TestState.INITIAL).on(TestEvent.REFRESH).after(Duration.ofSeconds(5));
+        try {
+            builder.buildDefinition();
+            fail();
+        } catch (FiniteStateMachineException e) {
+            assertEquals(FiniteStateMachineException.Reason.INVALID_DEFINITION, e.getReason());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.gunnargissel.spuhn;
+
+/**
+ * A state identified by an index, for tests that need more states than TestState holds
+ */
+public class TestIndexedState implements State<String> {
+    private final int index;
+
+    TestIndexedState(int index) {
+        this.index = index;
+    }
+
+    public void enter(String ctx) {
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TestIndexedState && ((TestIndexedState) obj).index == index;
+    }
+
+    @Override
+    public String toString() {
+        return "S" + index;
+    }
+}
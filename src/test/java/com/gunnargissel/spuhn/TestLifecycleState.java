@@ -0,0 +1,20 @@
+package com.gunnargissel.spuhn;
+
+import java.util.List;
+
+/**
+ * States that override different lifecycle hooks, for tests of which hooks are called
+ */
+public enum TestLifecycleState implements State<List<String>> {
+    OPEN {
+        public void exit(List<String> log) {
+            log.add("exit " + this);
+        }
+    },
+    CLOSED {
+        public void enter(List<String> log) {
+            log.add("enter " + this);
+        }
+    },
+    PLAIN
+}
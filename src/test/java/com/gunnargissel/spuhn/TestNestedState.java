@@ -0,0 +1,18 @@
+package com.gunnargissel.spuhn;
+
+import java.util.List;
+
+/**
+ * States that record their entry and exit hooks, for tests of nested states
+ */
+public enum TestNestedState implements State<List<String>> {
+    IDLE, WORKING, EDITING, REVIEWING, CANCELLED;
+
+    public void enter(List<String> log) {
+        log.add("enter " + this);
+    }
+
+    public void exit(List<String> log) {
+        log.add("exit " + this);
+    }
+}
@@ -0,0 +1,27 @@
+package com.gunnargissel.spuhn;
+
+/**
+ * A state identified by an index that overrides no hooks, for tests of state equivalence
+ */
+public class TestPlainState implements State<String> {
+    private final int index;
+
+    TestPlainState(int index) {
+        this.index = index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TestPlainState && ((TestPlainState) obj).index == index;
+    }
+
+    @Override
+    public String toString() {
+        return "P" + index;
+    }
+}